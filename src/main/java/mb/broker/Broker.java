@@ -4,28 +4,79 @@ import mb.config.MonitoringClientConfig;
 import mb.monitoring.MonitoringClient;
 import mb.utils.ValidationUtils;
 import mb.ComponentFactory;
+import mb.utils.IMessageIO;
 import mb.utils.IOUtils;
 import mb.election.ElectionManager;
+import mb.election.HeartbeatService;
+import mb.lifecycle.IMessageHandler;
+import mb.lifecycle.IServerLifecycleManager;
+import mb.lifecycle.NioServerLifecycleManager;
 import mb.lifecycle.ServerLifecycleManager;
 import mb.broker.exchange.*;
+import mb.broker.queue.IMessageQueue;
+import mb.broker.queue.PartitionConsumer;
+import mb.broker.queue.PartitionedQueue;
+import mb.broker.queue.QueueFactory;
+import mb.broker.queue.QueueLimits;
+import mb.broker.queue.QueueOptions;
+import mb.broker.queue.StreamQueue;
+import mb.broker.replication.ReplicationLog;
 import mb.config.BrokerConfig;
 import mb.config.DNSConfig;
+import mb.config.DeliveryConfig;
 import mb.config.ElectionConfig;
+import mb.config.ExchangeConfig;
+import mb.config.QueueConfig;
+import mb.config.ReplicationConfig;
+import mb.config.TransportConfig;
 import mb.enums.ElectionType;
 import mb.enums.ExchangeType;
+import mb.enums.FailureDetectorType;
+import mb.enums.FanoutMode;
+import mb.enums.FsyncPolicy;
+import mb.enums.OverflowPolicy;
+import mb.enums.QueueImplementation;
+import mb.enums.QueueType;
+import mb.enums.ReplicationAck;
+import mb.enums.SlowConsumerPolicy;
+import mb.enums.TopicMatcher;
+import mb.enums.TransportType;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.*;
-
-public class Broker implements IBroker {
-    ServerLifecycleManager serverLifecycleManager;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+import static mb.utils.CommandBuilder.REPLICATE;
+import static mb.utils.LoggingUtil.logErrorMsg;
+import static mb.utils.LoggingUtil.logInfoMsg;
+
+public final class Broker implements IBroker, IMessageHandler<IClientSession> {
+    static final String REPLY_TO_PREFIX = "reply-to.";
+
+    IServerLifecycleManager serverLifecycleManager;
+    TransportConfig transportConfig;
+    DeliveryConfig deliveryConfig;
+    QueueConfig queueConfig;
+    QueueFactory queueFactory;
+    ExchangeConfig exchangeConfig;
     ElectionManager electionManager;
     MonitoringClient monitoringClient;
+    MonitoringClientConfig monitoringClientConfig;
+    ReplicationLog replicationLog;
+    ReplicatedState replicatedState;
 
     ConcurrentMap<String, IExchange> exchangeMap = new ConcurrentHashMap<>();
-    ConcurrentMap<String, BlockingQueue<String>> queueMap = new ConcurrentHashMap<>();
+    ConcurrentMap<String, DeclaredQueue> queueMap = new ConcurrentHashMap<>();
+    ScheduledExecutorService scheduler;   // expires queues and logs statistics
+    ConcurrentMap<String, IMessageIO> replyTargets = new ConcurrentHashMap<>();
+    AtomicLong nextReplyAddress = new AtomicLong();
 
     public Broker(BrokerConfig config) {
         String domain = ElectionType.fromString(config.electionType()) == ElectionType.NONE ? config.domain() : config.electionDomain();
@@ -45,28 +96,99 @@ public class Broker implements IBroker {
                 config.electionPeerHosts(),
                 config.electionPeerPorts(),
                 config.electionPeerIds(),
-                config.electionHeartbeatTimeoutMs()
+                config.electionHeartbeatTimeoutMs(),
+                FailureDetectorType.fromString(config.electionFailureDetector()),
+                config.electionPhiThreshold(),
+                config.electionPhiWindowSize(),
+                config.electionPhiMinStdDevMs(),
+                config.electionPhiAcceptablePauseMs(),
+                config.electionDataDir(),
+                config.electionRaftTimeoutJitterMs()
         );
-        MonitoringClientConfig monitoringClientConfig = new MonitoringClientConfig(
+        monitoringClientConfig = new MonitoringClientConfig(
                 config.monitoringHost(),
                 config.monitoringPort(),
                 config.host(),
-                config.port()
+                config.port(),
+                config.monitoringStatsIntervalMs()
+        );
+        transportConfig = new TransportConfig(
+                TransportType.fromString(config.transport()),
+                config.port(),
+                config.transportIoThreads(),
+                config.transportFlushBatch()
+        );
+        deliveryConfig = new DeliveryConfig(
+                config.deliveryBatchSize(),
+                config.deliveryLingerMs()
+        );
+        queueConfig = new QueueConfig(
+                QueueImplementation.fromString(config.queueImplementation()),
+                config.queueRingCapacity(),
+                config.queueBlockTimeoutMs(),
+                config.queueDataDir(),
+                FsyncPolicy.fromString(config.queueFsync()),
+                config.queueFsyncIntervalMs(),
+                config.queueSegmentBytes(),
+                config.queueSpillThresholdBytes()
         );
 
-        serverLifecycleManager = new ServerLifecycleManager(config.port(), this::handleSMQPConnection, dnsConfig);
+        exchangeConfig = new ExchangeConfig(
+                config.exchangeRoutingCacheSize(),
+                TopicMatcher.fromString(config.exchangeTopicMatcher()),
+                FanoutMode.fromString(config.exchangeFanoutMode()),
+                config.exchangeFanoutLogCapacity(),
+                SlowConsumerPolicy.fromString(config.exchangeFanoutSlowPolicy())
+        );
+        ReplicationConfig replicationConfig = new ReplicationConfig(
+                ReplicationAck.fromString(config.replicationAck()),
+                config.replicationTimeoutMs(),
+                config.replicationBacklog()
+        );
+
+        queueFactory = new QueueFactory(queueConfig);
         electionManager = new ElectionManager(electionConfig);
         monitoringClient = new MonitoringClient(monitoringClientConfig);
+        replicatedState = new ReplicatedState(this);
+        // Without leader election, there is no follower that could take over
+        replicationLog = new ReplicationLog(getId(),
+                electionConfig.electionType() == ElectionType.NONE ? List.of() : electionManager.getPeers(),
+                replicationConfig, replicatedState::snapshot);
+        electionManager.addPeerCommand(REPLICATE, replicatedState::receive);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "broker-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
         exchangeMap.put("default", new DefaultExchange());
+        queueFactory.restoreDurableQueues().forEach((name, queue) -> {
+            QueueOptions options = queue instanceof StreamQueue streamQueue
+                    ? new QueueOptions(queue.getLimits(), true, false, 0, QueueType.STREAM, streamQueue.getMaxAgeMs(), 1)
+                    : new QueueOptions(queue.getLimits(), true, false, 0);
+            queueMap.put(name, new DeclaredQueue(name, queue, options));
+            exchangeMap.get("default").bindQueue(name, queue);
+        });
+        // Last, since the transport hands the broker to the connections it accepts
+        serverLifecycleManager = switch (transportConfig.transportType()) {
+            case BLOCKING -> new ServerLifecycleManager(transportConfig.port(), this::handleSMQPConnection, dnsConfig);
+            case NIO -> new NioServerLifecycleManager<>(transportConfig, this, dnsConfig);
+        };
     }
 
     public static void main(String[] args) {
         ComponentFactory.createBroker(args[0]).run();
     }
 
+    /**
+     * Follows the leader, applying the state it replicates, until this broker becomes leader and serves clients.
+     */
     @Override
     public void run() {
-        electionManager.start(serverLifecycleManager::run);
+        scheduleStatistics();
+        electionManager.start(() -> {
+            promote();
+            serverLifecycleManager.run();
+        });
     }
 
     @Override
@@ -88,105 +210,340 @@ public class Broker implements IBroker {
     public void shutdown() {
         serverLifecycleManager.shutdown();
         electionManager.shutdown();
+        replicationLog.close();
         monitoringClient.shutdown();
+        scheduler.shutdownNow();
+        queueFactory.close();
+    }
+
+    @Override
+    public IClientSession onConnect(IMessageIO io) {
+        io.sendMessage("ok SMQP");
+        return new ClientSession();
+    }
+
+    @Override
+    public boolean onMessage(IMessageIO io, IClientSession clientSession, String message) {
+        if (message.isEmpty()) {
+            return true;
+        }
+        return handleCommand(io, clientSession, message.split(" "));
+    }
+
+    @Override
+    public boolean onFrame(IMessageIO io, IClientSession clientSession, ByteBuffer frame) {
+        IMessageIO frameIO = clientSession.getFrameIO();
+        String[] args = SMQPFrame.decode(frame);
+        if (args == null) {
+            frameIO.printError("malformed frame");
+            return true;
+        }
+        return handleCommand(frameIO, clientSession, args);
     }
 
+    private boolean handleCommand(IMessageIO io, IClientSession clientSession, String[] args) {
+        String cmd = args[0];
+        if (clientSession.hasActiveSubscription()) {
+            // While subscribed, the client may only settle deliveries and stop the subscription
+            switch (cmd) {
+                case "ack", "nack" -> handleAcknowledgement(io, clientSession, args);
+                case "stop" -> {
+                    // No further command is handled until the subscription ended, so no delivery follows a later reply
+                    if (args.length == 1) clientSession.stopSubscription(io.suspendInput());
+                }
+            }
+            return true;
+        }
+        switch (cmd) {
+            case "framing":
+                handleFramingNegotiation(io, clientSession, args);
+                break;
+            case "exchange":
+                handleExchangeDeclaration(io, clientSession, args);
+                break;
+            case "queue":
+                handleQueueDeclaration(io, clientSession, args);
+                break;
+            case "bind":
+                handleQueueBinding(io, clientSession, args);
+                break;
+            case "unbind":
+                handleQueueUnbinding(io, clientSession, args);
+                break;
+            case "delete":
+                handleDeletion(io, args);
+                break;
+            case "subscribe":
+                handleSubscription(io, clientSession, args);
+                break;
+            case "ack":
+            case "nack":
+                handleAcknowledgement(io, clientSession, args);
+                break;
+            case "publish":
+                handlePublish(io, clientSession, args);
+                break;
+            case "mpublish":
+                handleBatchPublish(io, clientSession, args);
+                break;
+            case "reply-to":
+                handleReplyTo(io, clientSession, args);
+                break;
+            case "exit":
+                io.sendMessage("ok bye");
+                return false;
+            default:
+                io.printError("protocol error");
+        }
+        return true;
+    }
+
+    /**
+     * Serves a client on the blocking transport. Clients may pipeline commands: replies are only flushed once all
+     * commands the client already sent are handled, or after {@link TransportConfig#flushBatch()} commands.
+     */
     private void handleSMQPConnection(Socket SMQPConnection) throws IOException {
         try (
                 Socket connection = SMQPConnection;
-                IOUtils io = new IOUtils(connection.getInputStream(), connection.getOutputStream());
-                IClientSession clientSession = new ClientSession()
+                IOUtils io = new IOUtils(connection.getInputStream(), connection.getOutputStream(), false);
+                IClientSession clientSession = onConnect(io)
         ) {
-            io.sendMessage("ok SMQP");
+            io.flush();
+            int unflushedCommands = 0;
             String message;
             while (!connection.isClosed() && (message = io.readMessage()) != null) {
-                if (message.isEmpty()) {
-                    continue;
+                if (!onMessage(io, clientSession, message)) {
+                    return; // Exits loops; resources will be closed (and flushed) automatically by try-with-resources block
                 }
-                String[] args = message.split(" ");
-                String cmd = args[0];
-                switch (cmd) {
-                    case "exchange":
-                        handleExchangeDeclaration(io, clientSession, args);
-                        break;
-                    case "queue":
-                        handleQueueDeclaration(io, clientSession, args);
-                        break;
-                    case "bind":
-                        handleQueueBinding(io, clientSession, args);
-                        break;
-                    case "subscribe":
-                        handleSubscription(io, clientSession);
-                        break;
-                    case "publish":
-                        handlePublish(io, clientSession, args);
-                        break;
-                    case "exit":
-                        io.sendMessage("ok bye");
-                        return; // Exits loops; resources will be closed automatically by try-with-resources block
-                    default:
-                        io.printError("protocol error");
+                if (++unflushedCommands >= transportConfig.flushBatch() || !io.hasBufferedInput()) {
+                    io.flush();
+                    unflushedCommands = 0;
                 }
             }
         }
     }
 
-    private void handleExchangeDeclaration(IOUtils io, IClientSession clientSession, String[] args) {
-        if (ValidationUtils.invalidArgNum(args, 3)) {
-            io.printUsage("exchange <type> <name>");
+    private void handleFramingNegotiation(IMessageIO io, IClientSession clientSession, String[] args) {
+        if (ValidationUtils.invalidArgNum(args, 2) || !"binary".equals(args[1])) {
+            io.printUsage("framing binary");
             return;
         }
-        if (Arrays.stream(ExchangeType.values()).noneMatch(e -> e.name().equals(args[1].toUpperCase()))) {
+        if (!io.enableBinaryFraming()) {
+            io.printError("binary framing is not supported by this transport");
+            return;
+        }
+        io.sendMessage("ok binary");   // Last text message, subsequent messages are frames
+        IMessageIO frameIO = new SMQPFrameIO(io);
+        clientSession.setFrameIO(frameIO);
+        if (clientSession.getReplyAddress() != null) {
+            replyTargets.replace(clientSession.getReplyAddress(), frameIO);
+        }
+    }
+
+    private void handleExchangeDeclaration(IMessageIO io, IClientSession clientSession, String[] args) {
+        String usage = "exchange <type> <name> [matcher=trie|automaton | mode=queues|log]";
+        if (args.length != 3 && args.length != 4) {
+            io.printUsage(usage);
+            return;
+        }
+        String typeName = args[1].toUpperCase().replace('-', '_');
+        if (Arrays.stream(ExchangeType.values()).noneMatch(e -> e.name().equals(typeName))) {
             io.printError("unknown exchange type: " + args[1]);
             return;
         }
 
-        ExchangeType exchangeType = ExchangeType.valueOf(args[1].toUpperCase());
+        ExchangeType exchangeType = ExchangeType.valueOf(typeName);
         String exchangeName = args[2];
+        // Topic exchanges accept a matcher, fanout exchanges a mode
+        String option = args.length == 4 ? args[3] : null;
+        TopicMatcher matcher = option == null ? exchangeConfig.topicMatcher()
+                : exchangeType == ExchangeType.TOPIC ? parseOption(option, "matcher", TopicMatcher::fromString)
+                : null;
+        FanoutMode fanoutMode = option == null ? exchangeConfig.fanoutMode()
+                : exchangeType == ExchangeType.FANOUT ? parseOption(option, "mode", FanoutMode::fromString)
+                : null;
+        if (matcher == null && fanoutMode == null) {
+            io.printUsage(usage);
+            return;
+        }
 
-       exchangeMap.computeIfAbsent(exchangeName, (name) -> {
-           IExchange newExchange = null;
-           switch (exchangeType) {
-               case ExchangeType.DIRECT -> newExchange = new DirectExchange();
-               case ExchangeType.FANOUT -> newExchange = exchangeMap.put(name, new FanoutExchange());
-               case ExchangeType.TOPIC -> newExchange = exchangeMap.put(name, new TopicExchange());
-           }
-           return newExchange;
-       });
-
-        if (exchangeMap.get(exchangeName) != null) {
-            if (exchangeType != exchangeMap.get(exchangeName).getType()) {
+        ReplicationLog.Change change = replicationLog.beginChange();
+        try (change) {
+            IExchange exchange = exchangeMap.computeIfAbsent(exchangeName,
+                    (name) -> createExchange(exchangeType, matcher, fanoutMode));
+            if (exchangeType != exchange.getType()) {
                 io.printError("exchange already exists with different type");
                 return;
             }
-        } else {
-            switch (exchangeType) {
-                case ExchangeType.DIRECT -> exchangeMap.put(exchangeName, new DirectExchange());
-                case ExchangeType.FANOUT -> exchangeMap.put(exchangeName, new FanoutExchange());
-                case ExchangeType.TOPIC -> exchangeMap.put(exchangeName, new TopicExchange());
+            boolean sameOptions = switch (exchange) {
+                case TopicExchange topicExchange -> topicExchange.getMatcher() == matcher;
+                case FanoutExchange fanoutExchange -> fanoutExchange.getMode() == fanoutMode;
+                default -> true;
+            };
+            if (option != null && !sameOptions) {
+                io.printError("exchange already exists with different options");
+                return;
             }
+            change.append(ReplicatedState.exchangeEntry(exchangeName, exchange));
         }
         clientSession.setLastDeclaredExchange(exchangeName);
-        io.sendMessage("ok");
+        replyWhenReplicated(io, change, () -> io.sendMessage("ok"));
     }
 
-    private void handleQueueDeclaration(IOUtils io, IClientSession clientSession, String[] args) {
-        if (ValidationUtils.invalidArgNum(args, 2)) {
-            io.printUsage("queue <name>");
+    /**
+     * Creates an exchange of a type.
+     *
+     * @param matcher    the matcher of a topic exchange
+     * @param fanoutMode the mode of a fanout exchange
+     */
+    IExchange createExchange(ExchangeType exchangeType, TopicMatcher matcher, FanoutMode fanoutMode) {
+        return switch (exchangeType) {
+            case ExchangeType.DEFAULT -> new DefaultExchange();
+            case ExchangeType.DIRECT -> new DirectExchange();
+            case ExchangeType.FANOUT -> new FanoutExchange(fanoutMode, exchangeConfig.fanoutLogCapacity(),
+                    exchangeConfig.fanoutSlowPolicy());
+            case ExchangeType.TOPIC -> new TopicExchange(exchangeConfig.routingCacheSize(), matcher);
+            case ExchangeType.CONSISTENT_HASH -> new ConsistentHashExchange();
+        };
+    }
+
+    /**
+     * Parses an option of the form {@code <name>=<value>}.
+     *
+     * @param option     the option
+     * @param name       the name of the option
+     * @param fromString parses the value, throws an {@link IllegalArgumentException} if it is invalid
+     * @return the value, or null if the option has another name or an invalid value
+     */
+    static <T> T parseOption(String option, String name, Function<String, T> fromString) {
+        if (!option.startsWith(name + "=")) {
+            return null;
+        }
+        try {
+            return fromString.apply(option.substring(name.length() + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void handleQueueDeclaration(IMessageIO io, IClientSession clientSession, String[] args) {
+        QueueOptions options = args.length >= 2 ? parseQueueOptions(args) : null;
+        if (options == null) {
+            io.printUsage("queue <name> [max-length] [max-bytes] [overflow=block|drop-head|reject] [durable] "
+                    + "[auto-delete] [expires=<ms>] [stream] [max-age=<ms>] [partitions=<n>]");
             return;
         }
         String queueName = args[1];
-        queueMap.computeIfAbsent(queueName, (name) -> {
-            BlockingQueue<String> queue = new LinkedBlockingQueue<>();
-            exchangeMap.get("default").bindQueue(name, queue);
-            return queue;
-        });
+        if (queueName.startsWith(REPLY_TO_PREFIX)) {
+            io.printError("queue names starting with " + REPLY_TO_PREFIX + " are reserved");
+            return;
+        }
+        ReplicationLog.Change change = replicationLog.beginChange();
+        try (change) {
+            DeclaredQueue declaredQueue;
+            try {
+                declaredQueue = queueMap.computeIfAbsent(queueName, (name) -> {
+                    IMessageQueue newQueue = queueFactory.createQueue(name, options);
+                    exchangeMap.get("default").bindQueue(name, newQueue);
+                    DeclaredQueue newDeclaredQueue = new DeclaredQueue(name, newQueue, options);
+                    if (options.expiresMs() > 0) {
+                        scheduleExpiry(newDeclaredQueue, options.expiresMs());
+                    }
+                    return newDeclaredQueue;
+                });
+            } catch (UncheckedIOException e) {
+                logErrorMsg(e, "Failed to create durable queue %s", queueName);
+                io.printError("could not create durable queue");
+                return;
+            }
+            if (args.length > 2 && !options.equals(declaredQueue.getOptions())) {
+                io.printError("queue already exists with different options");
+                return;
+            }
+            declaredQueue.touch();
+            change.append(ReplicatedState.queueEntry(queueName, declaredQueue.getOptions()));
+        }
         clientSession.setLastDeclaredQueue(queueName);
-        io.sendMessage("ok");
+        replyWhenReplicated(io, change, () -> io.sendMessage("ok"));
     }
 
+    /**
+     * Parses the optional limits and flags of a queue declaration: up to two numbers (length and size limit, where 0
+     * means unlimited), followed by the options in any order. Durable queues can neither be auto-delete nor expire,
+     * since these options are not restored with them.
+     * <p>
+     * Stream queues are always durable. Their size limit and {@code max-age} are retention limits; a length limit and
+     * an overflow policy do not apply to them. Partitioned queues can be neither durable nor streams, and their limits
+     * apply to each partition.
+     *
+     * @return the options, or null if they are invalid
+     */
+    static QueueOptions parseQueueOptions(String[] args) {
+        long[] bounds = new long[2];
+        int boundCount = 0;
+        OverflowPolicy overflowPolicy = null;
+        boolean durable = false;
+        boolean autoDelete = false;
+        long expiresMs = 0;
+        boolean stream = false;
+        long maxAgeMs = 0;
+        int partitions = 0;
+        for (int i = 2; i < args.length; i++) {
+            boolean optionsStarted = overflowPolicy != null || durable || autoDelete || expiresMs > 0 || stream
+                    || maxAgeMs > 0 || partitions > 0;
+            if (args[i].startsWith("overflow=") && overflowPolicy == null) {
+                try {
+                    overflowPolicy = OverflowPolicy.fromString(args[i].substring("overflow=".length()));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            } else if (args[i].equals("durable") && !durable) {
+                durable = true;
+            } else if (args[i].equals("auto-delete") && !autoDelete) {
+                autoDelete = true;
+            } else if (args[i].startsWith("expires=") && expiresMs == 0) {
+                String value = args[i].substring("expires=".length());
+                if (!ValidationUtils.isLong(value) || Long.parseLong(value) <= 0) {
+                    return null;
+                }
+                expiresMs = Long.parseLong(value);
+            } else if (args[i].equals("stream") && !stream) {
+                stream = true;
+            } else if (args[i].startsWith("max-age=") && maxAgeMs == 0) {
+                String value = args[i].substring("max-age=".length());
+                if (!ValidationUtils.isLong(value) || Long.parseLong(value) <= 0) {
+                    return null;
+                }
+                maxAgeMs = Long.parseLong(value);
+            } else if (args[i].startsWith("partitions=") && partitions == 0) {
+                String value = args[i].substring("partitions=".length());
+                if (!ValidationUtils.isInt(value) || Integer.parseInt(value) < 1
+                        || Integer.parseInt(value) > PartitionedQueue.MAX_PARTITIONS) {
+                    return null;
+                }
+                partitions = Integer.parseInt(value);
+            } else if (!optionsStarted && boundCount < bounds.length && ValidationUtils.isLong(args[i])
+                    && Long.parseLong(args[i]) >= 0) {
+                bounds[boundCount++] = Long.parseLong(args[i]);
+            } else {
+                return null;
+            }
+        }
+        if (bounds[0] > Integer.MAX_VALUE || ((durable || stream) && (autoDelete || expiresMs > 0))
+                || (stream && (bounds[0] > 0 || overflowPolicy != null)) || (!stream && maxAgeMs > 0)
+                || ((durable || stream) && partitions > 1)) {
+            return null;
+        }
+        partitions = Math.max(1, partitions);
+        QueueLimits limits = new QueueLimits((int) bounds[0], bounds[1],
+                overflowPolicy == null ? OverflowPolicy.BLOCK : overflowPolicy);
+        if (stream) {
+            return new QueueOptions(limits, true, false, 0, QueueType.STREAM, maxAgeMs, 1);
+        }
+        return new QueueOptions(limits, durable, autoDelete, expiresMs, QueueType.CLASSIC, 0, partitions);
+    }
 
-    private void handleQueueBinding(IOUtils io, IClientSession clientSession, String[] args) {
+    private void handleQueueBinding(IMessageIO io, IClientSession clientSession, String[] args) {
         if (ValidationUtils.invalidArgNum(args, 2)) {
             io.printUsage("bind <binding-key>");
             return;
@@ -195,56 +552,442 @@ public class Broker implements IBroker {
         String bindingKey = args[1];
         IExchange exchange = getValidatedExchange(clientSession, io);
         if (exchange == null) return;
-        BlockingQueue<String> queue = getValidatedQueue(clientSession, io);
-        if (queue == null) return;
-        exchange.bindQueue(bindingKey, queue);
-        io.sendMessage("ok");
+        DeclaredQueue declaredQueue = getValidatedQueue(clientSession, io);
+        if (declaredQueue == null) return;
+        String exchangeName = clientSession.getLastDeclaredExchange();
+        ReplicationLog.Change change = replicationLog.beginChange();
+        try (change) {
+            try {
+                exchange.bindQueue(bindingKey, declaredQueue.getQueue());
+            } catch (IllegalArgumentException e) {
+                io.printError("invalid binding key: " + bindingKey);
+                return;
+            }
+            String[] entry = replicatedState.bound(exchangeName, declaredQueue.getName(), bindingKey);
+            if (declaredQueue.isDeleted()) {
+                // Deleted concurrently, possibly before the binding was added, so it would never be removed
+                exchange.unbindQueue(bindingKey, declaredQueue.getQueue());
+                replicatedState.unbound(exchangeName, exchange.getType(), declaredQueue.getName(), bindingKey);
+                io.printError("queue does not exist");
+                return;
+            }
+            change.append(entry);
+        }
+        replyWhenReplicated(io, change, () -> io.sendMessage("ok"));
     }
 
-    private void handleSubscription(IOUtils io, IClientSession clientSession) throws IOException {
-        BlockingQueue<String> queue = getValidatedQueue(clientSession, io);
-        if (queue == null) return;
+    private void handleQueueUnbinding(IMessageIO io, IClientSession clientSession, String[] args) {
+        if (ValidationUtils.invalidArgNum(args, 2)) {
+            io.printUsage("unbind <binding-key>");
+            return;
+        }
 
-        Runnable subscriptionTask = () -> {
-            try {
-                while (true) {
-                    String msg = queue.take();
-                    io.sendMessage(msg);
+        String bindingKey = args[1];
+        IExchange exchange = getValidatedExchange(clientSession, io);
+        if (exchange == null) return;
+        DeclaredQueue declaredQueue = getValidatedQueue(clientSession, io);
+        if (declaredQueue == null) return;
+        ReplicationLog.Change change = replicationLog.beginChange();
+        try (change) {
+            if (!exchange.unbindQueue(bindingKey, declaredQueue.getQueue())) {
+                io.printError("binding does not exist");
+                return;
+            }
+            change.append(replicatedState.unbound(clientSession.getLastDeclaredExchange(), exchange.getType(),
+                    declaredQueue.getName(), bindingKey));
+        }
+        replyWhenReplicated(io, change, () -> io.sendMessage("ok"));
+    }
+
+    private void handleDeletion(IMessageIO io, String[] args) {
+        if (ValidationUtils.invalidArgNum(args, 3) || !"queue".equals(args[1])) {
+            io.printUsage("delete queue <name>");
+            return;
+        }
+        DeclaredQueue declaredQueue = queueMap.get(args[2]);
+        ReplicationLog.Change change = replicationLog.beginChange();
+        try (change) {
+            if (declaredQueue == null || !deleteQueue(declaredQueue, change)) {
+                io.printError("queue does not exist");
+                return;
+            }
+        }
+        replyWhenReplicated(io, change, () -> io.sendMessage("ok"));
+    }
+
+    /**
+     * Deletes a queue: cancels its subscriptions, removes its bindings from all exchanges and drops its messages.
+     * Runs atomically with declarations of a queue with the same name.
+     *
+     * @param declaredQueue the queue to delete
+     * @return true if the queue was deleted, false if it was deleted before
+     */
+    boolean deleteQueue(DeclaredQueue declaredQueue) {
+        try (ReplicationLog.Change change = replicationLog.beginChange()) {
+            return deleteQueue(declaredQueue, change);
+        }
+    }
+
+    /**
+     * Deletes a queue as part of a change, which the deletion is appended to.
+     */
+    private boolean deleteQueue(DeclaredQueue declaredQueue, ReplicationLog.Change change) {
+        boolean[] deleted = {false};
+        queueMap.computeIfPresent(declaredQueue.getName(), (name, current) -> {
+            if (current != declaredQueue) {
+                return current;
+            }
+            declaredQueue.markDeleted().forEach(Subscription::cancel);
+            replicatedState.deleted(name);
+            exchangeMap.values().forEach(exchange -> exchange.removeQueue(declaredQueue.getQueue()));
+            queueFactory.deleteQueue(name, declaredQueue.getQueue());
+            deleted[0] = true;
+            return null;
+        });
+        if (deleted[0]) {
+            change.append(ReplicatedState.deleteEntry(declaredQueue.getName()));
+        }
+        return deleted[0];
+    }
+
+    /**
+     * Deletes an expiring queue once it was unused for its expiry period.
+     *
+     * @param declaredQueue the queue
+     * @param delayMs       the time until the queue expires at the earliest
+     */
+    private void scheduleExpiry(DeclaredQueue declaredQueue, long delayMs) {
+        scheduler.schedule(() -> {
+            if (declaredQueue.isDeleted()) {
+                return;
+            }
+            long remainingMs = declaredQueue.getRemainingLifetimeMs();
+            if (remainingMs > 0) {
+                scheduleExpiry(declaredQueue, remainingMs);
+            } else {
+                deleteQueue(declaredQueue);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Logs the statistics of the components of the broker every {@link MonitoringClientConfig#statsIntervalMs()}.
+     */
+    private void scheduleStatistics() {
+        long intervalMs = monitoringClientConfig.statsIntervalMs();
+        if (intervalMs > 0) {
+            scheduler.scheduleAtFixedRate(this::logStatistics, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Logs the counters of the routing caches of topic exchanges that were used, and of the suspicions of the failure
+     * detector if the leader was ever suspected.
+     */
+    private void logStatistics() {
+        HeartbeatService.Stats detectorStats = electionManager.getFailureDetectorStats();
+        if (detectorStats.suspicions() > 0) {
+            logInfoMsg("Failure detector: %d suspicions of the leader, %d false, %d confirmed after %.0f ms on average"
+                            + " and %d ms at most", detectorStats.suspicions(), detectorStats.falseSuspicions(),
+                    detectorStats.confirmedSuspicions(), detectorStats.meanDetectionLatencyMs(),
+                    detectorStats.maxDetectionLatencyMs());
+        }
+        exchangeMap.forEach((name, exchange) -> {
+            if (exchange instanceof TopicExchange topicExchange) {
+                RoutingCache.Stats stats = topicExchange.getRoutingCacheStats();
+                long lookups = stats.hits() + stats.misses();
+                if (lookups > 0) {
+                    logInfoMsg("Routing cache of exchange %s: %d hits, %d misses (%.1f%% hits), %d evictions",
+                            name, stats.hits(), stats.misses(), 100.0 * stats.hits() / lookups, stats.evictions());
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Takes over from the previous leader: stops applying the replicated state, schedules the expiry of the queues it
+     * holds, which only the leader deletes, and starts replicating to the followers.
+     */
+    private void promote() {
+        replicatedState.promote();
+        queueMap.values().forEach(declaredQueue -> {
+            if (declaredQueue.getOptions().expiresMs() > 0) {
+                scheduleExpiry(declaredQueue, declaredQueue.getRemainingLifetimeMs());
+            }
+        });
+        replicationLog.start();
+    }
+
+    /**
+     * Subscribes the session to its last declared queue. A subscription to a stream queue reads the stream through a
+     * consumer of its own, starting at the offset given by {@code from}: the oldest retained message, the last
+     * message, the next published message (the default), or the first message published at or after a time in epoch
+     * milliseconds. A subscription to a partitioned queue consumes the partitions assigned to it.
+     */
+    private void handleSubscription(IMessageIO io, IClientSession clientSession, String[] args) {
+        int prefetch = Subscription.AUTO_ACK;
+        String from = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("from=") && from == null) {
+                from = args[i].substring("from=".length());
+            } else if (i == 1 && ValidationUtils.isInt(args[i]) && Integer.parseInt(args[i]) >= 1) {
+                prefetch = Integer.parseInt(args[i]);
+            } else {
+                from = "";
+                break;
+            }
+        }
+        if (from != null && !from.equals("first") && !from.equals("last") && !from.equals("next")
+                && !ValidationUtils.isLong(from)) {
+            io.printUsage("subscribe [<prefetch>] [from=first|last|next|<timestamp>]");
+            return;
+        }
+        DeclaredQueue declaredQueue = getValidatedQueue(clientSession, io);
+        if (declaredQueue == null) return;
+
+        BlockingQueue<String> queue = declaredQueue.getQueue();
+        if (queue instanceof StreamQueue streamQueue) {
+            queue = streamQueue.newConsumer(switch (from == null ? "next" : from) {
+                case "first" -> streamQueue.getFirstOffset();
+                case "last" -> Math.max(streamQueue.getFirstOffset(), streamQueue.getEndOffset() - 1);
+                case "next" -> streamQueue.getEndOffset();
+                default -> streamQueue.offsetAt(Long.parseLong(from));
+            });
+        } else if (from != null) {
+            io.printError("not a stream queue");
+            return;
+        }
+        PartitionConsumer partitionConsumer = null;
+        if (queue instanceof PartitionedQueue partitionedQueue) {
+            queue = partitionConsumer = partitionedQueue.newConsumer();
+        }
+        PartitionConsumer consumer = partitionConsumer;
+        Consumer<Subscription> onStopped = stopped -> {
+            if (consumer != null) {
+                consumer.close();
+            }
+            onSubscriptionStopped(declaredQueue, stopped);
+        };
+        // Messages of a stream stay in the stream when they are acknowledged
+        Consumer<List<String>> onAcknowledged = declaredQueue.getOptions().isStream() ? messages -> {} : messages -> {
+            try (ReplicationLog.Change change = replicationLog.beginChange()) {
+                change.append(ReplicatedState.ackEntry(declaredQueue.getName(), messages));
             }
         };
+        Subscription subscription = new Subscription(queue, io, clientSession, prefetch, deliveryConfig,
+                onAcknowledged, onStopped);
+        if (!declaredQueue.subscribe(subscription)) {
+            onStopped.accept(subscription);
+            io.printError("queue does not exist");
+            return;
+        }
 
-        boolean subscriptionStarted = clientSession.startSubscription(subscriptionTask);
+        io.sendMessage("ok");
+        io.flush();
+        boolean subscriptionStarted = clientSession.startSubscription(subscription);
         if (!subscriptionStarted) { // defensive programming
+            onStopped.accept(subscription);
             io.printError("could not startMonitoring subscription");
             System.err.println("ServerError: Did not startMonitoring subscription because of active subscription");
         }
+    }
+
+    /**
+     * Deletes an auto-delete queue when its last subscription stopped.
+     */
+    private void onSubscriptionStopped(DeclaredQueue declaredQueue, Subscription subscription) {
+        if (declaredQueue.unsubscribe(subscription)) {
+            deleteQueue(declaredQueue);
+        }
+    }
+
+    /**
+     * Settles the oldest unacknowledged deliveries of the session. Acknowledgements are not answered on success, so
+     * that they do not interleave with the deliveries of a running subscription.
+     */
+    private void handleAcknowledgement(IMessageIO io, IClientSession clientSession, String[] args) {
+        if (ValidationUtils.invalidArgNum(args, 2) || !ValidationUtils.isInt(args[1]) || Integer.parseInt(args[1]) < 1) {
+            io.printUsage(args[0] + " <n>");
+            return;
+        }
+        int count = Integer.parseInt(args[1]);
+        if ("ack".equals(args[0])) {
+            clientSession.acknowledge(count);
+        } else {
+            clientSession.requeue(count);
+        }
+    }
 
+    /**
+     * Assigns the session a direct reply-to address, which routes replies straight to its connection without declaring
+     * a queue. The session keeps the address until it is closed.
+     */
+    private void handleReplyTo(IMessageIO io, IClientSession clientSession, String[] args) {
+        if (ValidationUtils.invalidArgNum(args, 1)) {
+            io.printUsage("reply-to");
+            return;
+        }
+        if (clientSession.getReplyAddress() == null) {
+            String address = REPLY_TO_PREFIX + nextReplyAddress.getAndIncrement();
+            replyTargets.put(address, io);
+            clientSession.setReplyAddress(address, () -> replyTargets.remove(address));
+        }
+        io.sendMessage("ok " + clientSession.getReplyAddress());
+    }
+
+    /**
+     * Sends a reply straight to the connection that owns a direct reply-to address, bypassing exchanges and queues.
+     * If the connection is gone, the reply is dropped and the publisher is told so.
+     */
+    private void handleDirectReply(IMessageIO io, String address, String msg, String correlationId) {
+        IMessageIO target = replyTargets.get(address);
+        if (target == null) {
+            io.printError("no such reply-to address");
+            return;
+        }
+        target.deliverReply(correlationId, msg);
+        target.flush();
         io.sendMessage("ok");
-        while (!"stop".equals(io.readMessage()));
-        clientSession.stopSubscription();
     }
 
-    private void handlePublish(IOUtils io, IClientSession clientSession, String[] args) {
+    private void handlePublish(IMessageIO io, IClientSession clientSession, String[] args) {
+        if ((args.length == 3 || args.length == 4) && args[2].isEmpty()) {
+            io.printError("empty message");
+            return;
+        }
+        if (args.length == 4 && args[1].startsWith(REPLY_TO_PREFIX)) {
+            handleDirectReply(io, args[1], args[2], args[3]);
+            return;
+        }
         if (ValidationUtils.invalidArgNum(args, 3)) {
-            io.printUsage("publish <routing-key> <message>");
+            io.printUsage("publish <routing-key> <message> | publish reply-to.<n> <message> <correlation-id>");
             return;
         }
         String routingKey = args[1];
         String msg = args[2];
+        if (routingKey.startsWith(REPLY_TO_PREFIX)) {
+            io.printUsage("publish reply-to.<n> <message> <correlation-id>");
+            return;
+        }
 
         IExchange exchange = getValidatedExchange(clientSession, io);
         if (exchange == null) return;
+        publish(io, clientSession.getLastDeclaredExchange(), exchange, routingKey, List.of(msg), published -> {
+            if (published == 0) {
+                io.printError("queue full");
+            } else {
+                io.sendMessage("ok");
+            }
+        });
+    }
 
-        exchange.publish(routingKey, msg);
-        io.sendMessage("ok");
+    private void handleBatchPublish(IMessageIO io, IClientSession clientSession, String[] args) {
+        if (args.length < 3) {
+            io.printUsage("mpublish <routing-key> <message>...");
+            return;
+        }
+        String routingKey = args[1];
+        List<String> messages = Arrays.asList(args).subList(2, args.length);
+        if (messages.contains("")) {
+            io.printError("empty message");
+            return;
+        }
 
-        monitoringClient.sendMessage(routingKey);
+        IExchange exchange = getValidatedExchange(clientSession, io);
+        if (exchange == null) return;
+        publish(io, clientSession.getLastDeclaredExchange(), exchange, routingKey, messages, published -> {
+            if (published < messages.size()) {
+                io.printError(String.format("queue full, published %d of %d", published, messages.size()));
+            } else {
+                io.sendMessage("ok " + published);
+            }
+        });
+    }
+
+    /**
+     * Publishes messages to the exchange, each to all matching queues or to none, and replicates the published ones.
+     * If a queue has no room, waits for room as far as its overflow policy lets publishers wait and goes on with the
+     * remaining messages. The wait runs on a thread of its own while the input of the connection is suspended, so the
+     * event loop goes on serving the other connections, and outside the change, since snapshots wait for changes in
+     * progress.
+     *
+     * @param reply sends the reply, given the number of messages, counted from the start, that were published
+     */
+    private void publish(IMessageIO io, String exchangeName, IExchange exchange, String routingKey,
+                         List<String> messages, IntConsumer reply) {
+        ReplicationLog.Change change = replicationLog.beginChange();
+        int published;
+        try (change) {
+            published = publishInChange(change, exchangeName, exchange, routingKey, messages);
+        }
+        if (published == messages.size()) {
+            replyWhenReplicated(io, change, () -> reply.accept(published));
+            monitoringClient.sendMessage(routingKey, published);
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueConfig.blockTimeoutMs());
+        Runnable resume = io.suspendInput();
+        Thread.ofVirtual().name("publish-waiter").start(() -> {
+            ReplicationLog.Change lastChange = change;
+            int total = published;
+            while (total < messages.size() && exchange.awaitRoom(routingKey, messages.get(total), deadline)) {
+                ReplicationLog.Change next = replicationLog.beginChange();
+                int count;
+                try (next) {
+                    count = publishInChange(next, exchangeName, exchange, routingKey,
+                            messages.subList(total, messages.size()));
+                }
+                if (count > 0) {
+                    lastChange = next;
+                    total += count;
+                }
+            }
+            int result = total;
+            lastChange.replicated().thenRun(() -> {
+                reply.accept(result);
+                resume.run();
+            });
+            if (result > 0) {
+                monitoringClient.sendMessage(routingKey, result);
+            }
+        });
+    }
+
+    /**
+     * Publishes the messages that the matching queues have room for and appends them to the change.
+     *
+     * @return the number of published messages, counted from the start
+     */
+    private static int publishInChange(ReplicationLog.Change change, String exchangeName, IExchange exchange,
+                                       String routingKey, List<String> messages) {
+        int published = messages.size() == 1
+                ? exchange.publish(routingKey, messages.get(0)) ? 1 : 0
+                : exchange.publishBatch(routingKey, messages);
+        if (published > 0) {
+            change.append(ReplicatedState.publishEntry(exchangeName, routingKey, messages.subList(0, published)));
+        }
+        return published;
     }
 
-    private IExchange getValidatedExchange(IClientSession clientSession, IOUtils io) {
+    /**
+     * Sends the reply to a change once the change is replicated as the acknowledgement mode requires. Meanwhile, the
+     * connection handles no further commands, while the event loop of the connection goes on serving the others.
+     */
+    private static void replyWhenReplicated(IMessageIO io, ReplicationLog.Change change, Runnable reply) {
+        CompletableFuture<Void> replicated = change.replicated();
+        if (replicated.isDone()) {
+            reply.run();
+            return;
+        }
+        Runnable resume = io.suspendInput();
+        replicated.thenRun(() -> {
+            reply.run();
+            resume.run();
+        });
+    }
+
+    private IExchange getValidatedExchange(IClientSession clientSession, IMessageIO io) {
         String exchangeName = clientSession.getLastDeclaredExchange();
         if (exchangeName == null) {
             io.printError("no exchange declared");
@@ -259,18 +1002,17 @@ public class Broker implements IBroker {
         return exchange;
     }
 
-    private BlockingQueue<String> getValidatedQueue(IClientSession clientSession, IOUtils io) {
+    private DeclaredQueue getValidatedQueue(IClientSession clientSession, IMessageIO io) {
         String queueName = clientSession.getLastDeclaredQueue();
         if (queueName == null) {
             io.printError("no queue declared");
             return null;
         }
 
-        BlockingQueue<String> queue = queueMap.get(queueName);
-        if (queue == null) {
-            io.printError("queue does not exist");
-            System.err.printf("Server error: Client-declared queue `%s` does not exist%n", queueName);
+        DeclaredQueue declaredQueue = queueMap.get(queueName);
+        if (declaredQueue == null) {
+            io.printError("queue does not exist");  // Deleted since the client declared it
         }
-        return queue;
+        return declaredQueue;
     }
 }
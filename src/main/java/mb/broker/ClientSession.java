@@ -1,9 +1,29 @@
 package mb.broker;
 
+import mb.utils.IMessageIO;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
 public class ClientSession implements IClientSession {
-    private Thread subscriptionThread;
+    private final AtomicReference<Thread> subscriptionThread = new AtomicReference<>();
+    private final AtomicReference<Runnable> whenSubscriptionStopped = new AtomicReference<>();
     private String lastDeclaredExchange;
     private String lastDeclaredQueue;
+    private String replyAddress;
+    private Runnable releaseReplyAddress;
+    private IMessageIO frameIO;
+    private final Deque<Delivery> unackedDeliveries = new ArrayDeque<>();   // guarded by itself
+
+    /**
+     * A message that was delivered but not yet acknowledged.
+     */
+    private record Delivery(Subscription subscription, String message) {
+    }
 
     @Override
     public void setLastDeclaredExchange(String exchangeName) {
@@ -26,29 +46,130 @@ public class ClientSession implements IClientSession {
     }
 
     @Override
-    public boolean startSubscription(Runnable subscriptionTask) {
-        if (subscriptionThread != null) {
+    public void setReplyAddress(String address, Runnable release) {
+        replyAddress = address;
+        releaseReplyAddress = release;
+    }
+
+    @Override
+    public String getReplyAddress() {
+        return replyAddress;
+    }
+
+    @Override
+    public void setFrameIO(IMessageIO frameIO) {
+        this.frameIO = frameIO;
+    }
+
+    @Override
+    public IMessageIO getFrameIO() {
+        return frameIO;
+    }
+
+    @Override
+    public boolean startSubscription(Subscription subscription) {
+        Thread thread = Thread.ofVirtual().unstarted(subscription);
+        if (!subscriptionThread.compareAndSet(null, thread)) {
             return false;
         }
-        subscriptionThread = Thread.startVirtualThread(subscriptionTask);
+        thread.start();
         return true;
     }
 
     @Override
-    public void stopSubscription() {
-        if (subscriptionThread != null) {
-            subscriptionThread.interrupt();
-            try {
-                subscriptionThread.join(); // Ensure the thread finishes execution
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt(); // Restore interrupt status
+    public boolean hasActiveSubscription() {
+        return subscriptionThread.get() != null;
+    }
+
+    @Override
+    public void stopSubscription(Runnable whenStopped) {
+        Thread thread = subscriptionThread.get();
+        if (thread == null) {
+            whenStopped.run();
+            return;
+        }
+        whenSubscriptionStopped.set(whenStopped);
+        thread.interrupt();
+        if (subscriptionThread.get() == null) {     // Ended before it could see the callback
+            runWhenSubscriptionStopped();
+        }
+    }
+
+    @Override
+    public void subscriptionEnded() {
+        if (subscriptionThread.compareAndSet(Thread.currentThread(), null)) {
+            runWhenSubscriptionStopped();
+        }
+    }
+
+    @Override
+    public void trackDeliveries(Subscription subscription, List<String> messages) {
+        synchronized (unackedDeliveries) {
+            for (String message : messages) {
+                unackedDeliveries.addLast(new Delivery(subscription, message));
             }
-            subscriptionThread = null;
         }
     }
 
+    @Override
+    public int acknowledge(int count) {
+        List<Delivery> deliveries = removeOldestDeliveries(count);
+        forEachSubscription(deliveries, Subscription::acknowledge);
+        return deliveries.size();
+    }
+
+    @Override
+    public int requeue(int count) {
+        List<Delivery> deliveries = removeOldestDeliveries(count);
+        forEachSubscription(deliveries, (subscription, messages) -> {
+            subscription.requeue(messages);
+            subscription.releaseCredits(messages.size());
+        });
+        return deliveries.size();
+    }
+
     @Override
     public void close() {
-        stopSubscription();
+        stopSubscription(() -> {
+            requeue(Integer.MAX_VALUE);
+            if (releaseReplyAddress != null) {
+                releaseReplyAddress.run();
+            }
+        });
+    }
+
+    /**
+     * Runs the callback of {@link #stopSubscription(Runnable)}, unless the subscription thread or the stopping thread
+     * already ran it.
+     */
+    private void runWhenSubscriptionStopped() {
+        Runnable whenStopped = whenSubscriptionStopped.getAndSet(null);
+        if (whenStopped != null) {
+            whenStopped.run();
+        }
+    }
+
+    /**
+     * Passes consecutive deliveries of the same subscription together, to keep their order.
+     */
+    private static void forEachSubscription(List<Delivery> deliveries, BiConsumer<Subscription, List<String>> action) {
+        int start = 0;
+        for (int i = 1; i <= deliveries.size(); i++) {
+            Subscription subscription = deliveries.get(start).subscription();
+            if (i == deliveries.size() || deliveries.get(i).subscription() != subscription) {
+                action.accept(subscription, deliveries.subList(start, i).stream().map(Delivery::message).toList());
+                start = i;
+            }
+        }
+    }
+
+    private List<Delivery> removeOldestDeliveries(int count) {
+        synchronized (unackedDeliveries) {
+            List<Delivery> deliveries = new ArrayList<>(Math.min(count, unackedDeliveries.size()));
+            while (deliveries.size() < count && !unackedDeliveries.isEmpty()) {
+                deliveries.add(unackedDeliveries.pollFirst());
+            }
+            return deliveries;
+        }
     }
 }
@@ -0,0 +1,100 @@
+package mb.broker;
+
+import mb.broker.queue.IMessageQueue;
+import mb.broker.queue.QueueOptions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue declared on the broker, with the options it was declared with. Tracks the subscriptions and the last use of
+ * the queue, which decide when an auto-delete or expiring queue is deleted.
+ */
+class DeclaredQueue {
+    private final String name;
+    private final IMessageQueue queue;
+    private final QueueOptions options;
+    private final Set<Subscription> subscriptions = new HashSet<>();    // guarded by this
+    private long lastUsedNanos = System.nanoTime();                     // guarded by this
+    private boolean deleted = false;                                    // guarded by this
+
+    DeclaredQueue(String name, IMessageQueue queue, QueueOptions options) {
+        this.name = name;
+        this.queue = queue;
+        this.options = options;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    IMessageQueue getQueue() {
+        return queue;
+    }
+
+    QueueOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Registers a subscription to the queue.
+     *
+     * @return true if the subscription was registered, false if the queue is deleted
+     */
+    synchronized boolean subscribe(Subscription subscription) {
+        if (deleted) {
+            return false;
+        }
+        subscriptions.add(subscription);
+        return true;
+    }
+
+    /**
+     * Unregisters a stopped subscription from the queue.
+     *
+     * @return true if it was the last subscription of an auto-delete queue, which must be deleted now
+     */
+    synchronized boolean unsubscribe(Subscription subscription) {
+        lastUsedNanos = System.nanoTime();
+        return subscriptions.remove(subscription) && subscriptions.isEmpty() && options.autoDelete() && !deleted;
+    }
+
+    /**
+     * Records that the queue was declared again, which restarts its expiry.
+     */
+    synchronized void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns how long the queue may stay unused before it expires. A queue with subscriptions is in use, so it
+     * expires at the earliest after its full expiry period.
+     *
+     * @return the remaining time in milliseconds, at most 0 if the queue expired
+     */
+    synchronized long getRemainingLifetimeMs() {
+        if (!subscriptions.isEmpty()) {
+            return options.expiresMs();
+        }
+        return options.expiresMs() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsedNanos);
+    }
+
+    synchronized boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Marks the queue as deleted, so that it accepts no further subscriptions.
+     *
+     * @return the subscriptions of the queue, which must be cancelled
+     */
+    synchronized List<Subscription> markDeleted() {
+        deleted = true;
+        List<Subscription> cancelled = new ArrayList<>(subscriptions);
+        subscriptions.clear();
+        return cancelled;
+    }
+}
@@ -1,5 +1,9 @@
 package mb.broker;
 
+import mb.utils.IMessageIO;
+
+import java.util.List;
+
 /**
  * Interface for client session handling
  */
@@ -33,19 +37,92 @@ public interface IClientSession extends AutoCloseable {
      */
     String getLastDeclaredQueue();
 
+    /**
+     * Sets the direct reply-to address of this session.
+     *
+     * @param address the address
+     * @param release called when the session is closed, to release the address
+     */
+    void setReplyAddress(String address, Runnable release);
+
+    /**
+     * Retrieves the direct reply-to address of this session.
+     *
+     * @return the address, or null if the session has none
+     */
+    String getReplyAddress();
+
+    /**
+     * Sets the IO that sends replies and deliveries as frames, once the client negotiated binary framing.
+     *
+     * @param frameIO the IO, which is kept for all subsequent frames of the session
+     */
+    void setFrameIO(IMessageIO frameIO);
+
+    /**
+     * Retrieves the IO that sends replies and deliveries as frames.
+     *
+     * @return the IO, or null if the client did not negotiate binary framing
+     */
+    IMessageIO getFrameIO();
+
     /**
      * Start a client subscription in the background, if no there is no running subscription.
      *
-     * @param subscriptionTask the subscription task to startLEP in the background
+     * @param subscription the subscription to run in the background
      * @return true if there is no running subscription, false otherwise.
      */
-    boolean startSubscription(Runnable subscriptionTask);
+    boolean startSubscription(Subscription subscription);
+
+    /**
+     * Checks whether this session currently has a running subscription.
+     *
+     * @return true if there is a running subscription, false otherwise.
+     */
+    boolean hasActiveSubscription();
+
+    /**
+     * Stops the active subscription, if there is one, without waiting for it: the subscription is signalled to stop,
+     * and finishes on its own thread.
+     *
+     * @param whenStopped called once the subscription ended, right away if there is none; may run on any thread
+     */
+    void stopSubscription(Runnable whenStopped);
+
+    /**
+     * Forgets the active subscription once it ended, because it was stopped or e.g. because its queue was deleted, so
+     * the session handles all commands again. Called by the thread of the subscription.
+     */
+    void subscriptionEnded();
+
+    /**
+     * Tracks messages delivered by a subscription until the client acknowledges or rejects them.
+     *
+     * @param subscription the subscription that delivered the messages
+     * @param messages     the delivered messages, in delivery order
+     */
+    void trackDeliveries(Subscription subscription, List<String> messages);
+
+    /**
+     * Acknowledges the oldest unacknowledged messages, which frees their space in the prefetch window.
+     *
+     * @param count the number of messages to acknowledge
+     * @return the number of acknowledged messages, which is less than count if fewer messages were unacknowledged
+     */
+    int acknowledge(int count);
 
     /**
-     * Stops the active subscription, if there is one.
+     * Rejects the oldest unacknowledged messages and returns them to the head of their queue.
+     *
+     * @param count the number of messages to reject
+     * @return the number of rejected messages, which is less than count if fewer messages were unacknowledged
      */
-    void stopSubscription();
+    int requeue(int count);
 
+    /**
+     * Stops the active subscription and, once it ended, returns all unacknowledged messages to their queues and
+     * releases the direct reply-to address.
+     */
     @Override
     void close();
 }
@@ -0,0 +1,392 @@
+package mb.broker;
+
+import mb.broker.exchange.FanoutExchange;
+import mb.broker.exchange.IExchange;
+import mb.broker.exchange.TopicExchange;
+import mb.broker.queue.IMessageQueue;
+import mb.broker.queue.PartitionedQueue;
+import mb.broker.queue.QueueOptions;
+import mb.broker.replication.ReplicationBatch;
+import mb.enums.ExchangeType;
+import mb.enums.FanoutMode;
+import mb.enums.TopicMatcher;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+
+import static mb.utils.CommandBuilder.OK;
+import static mb.utils.LoggingUtil.logErrorMsg;
+import static mb.utils.LoggingUtil.logWarningMsg;
+
+/**
+ * The state of the broker as the replication log sees it: the entries that describe changes of the exchanges, queues
+ * and bindings, and the bindings declared by clients, which the exchanges cannot list. On the leader, it takes
+ * snapshots of the state. On a follower, it applies the entries of the leader to the exchanges and queues of the
+ * broker, until the follower becomes leader itself.
+ * <p>
+ * The entries are broker commands:
+ * <pre>
+ * reset                                          clears the state
+ * exchange &lt;type&gt; &lt;name&gt; [&lt;option&gt;]                declares an exchange
+ * queue &lt;name&gt; &lt;options&gt;...                       declares a queue
+ * bind|unbind &lt;exchange&gt; &lt;queue&gt; &lt;binding-key&gt;   binds or unbinds a queue
+ * delete &lt;queue&gt;                                 deletes a queue
+ * publish &lt;exchange&gt; &lt;routing-key&gt; &lt;message&gt;...  publishes messages
+ * ack &lt;queue&gt; &lt;message&gt;...                      removes acknowledged messages from a queue
+ * restore &lt;queue&gt; &lt;partition&gt; &lt;message&gt;...      appends the messages of a snapshot to a queue partition
+ * </pre>
+ * A snapshot holds the messages that are ready for delivery. It leaves out the history of stream queues, the messages
+ * a queue spilled to disk and the messages delivered but not yet acknowledged, which the queues cannot list.
+ */
+class ReplicatedState {
+    private static final int RESTORE_CHUNK_SIZE = 1024;
+    private static final int MAX_PENDING_DISCARD_AGE = 1024;
+
+    private final Broker broker;
+    // Bindings by exchange name, in the order they were added, guarded by itself
+    private final Map<String, Set<Binding>> bindings = new HashMap<>();
+    // Only used while following, guarded by this
+    private boolean promoted = false;
+    private long streamId = 0;
+    private long nextSeq = 1;
+    // Acknowledged messages that could not be removed from their queue yet, by queue name: several subscribers may
+    // share a queue on the leader, and a message may be acknowledged before the entry of its publish is appended
+    private final Map<String, List<PendingDiscard>> pendingDiscards = new HashMap<>();
+
+    ReplicatedState(Broker broker) {
+        this.broker = broker;
+    }
+
+    // ==============ENTRIES==============
+
+    static String[] exchangeEntry(String name, IExchange exchange) {
+        String type = exchange.getType().name().toLowerCase().replace('_', '-');
+        return switch (exchange) {
+            case TopicExchange topicExchange ->
+                    new String[]{"exchange", type, name, "matcher=" + topicExchange.getMatcher().getStringValue()};
+            case FanoutExchange fanoutExchange ->
+                    new String[]{"exchange", type, name, "mode=" + fanoutExchange.getMode().getStringValue()};
+            default -> new String[]{"exchange", type, name};
+        };
+    }
+
+    /**
+     * @return the entry of a queue declaration with all options, which {@link Broker#parseQueueOptions} parses back
+     * into the same options
+     */
+    static String[] queueEntry(String name, QueueOptions options) {
+        List<String> entry = new ArrayList<>(List.of("queue", name));
+        if (options.isStream()) {
+            entry.addAll(List.of("0", String.valueOf(options.limits().maxBytes()), "stream"));
+            if (options.maxAgeMs() > 0) {
+                entry.add("max-age=" + options.maxAgeMs());
+            }
+            return entry.toArray(String[]::new);
+        }
+        entry.addAll(List.of(String.valueOf(options.limits().maxLength()), String.valueOf(options.limits().maxBytes()),
+                "overflow=" + options.limits().overflowPolicy().getStringValue()));
+        if (options.durable()) {
+            entry.add("durable");
+        }
+        if (options.autoDelete()) {
+            entry.add("auto-delete");
+        }
+        if (options.expiresMs() > 0) {
+            entry.add("expires=" + options.expiresMs());
+        }
+        if (options.partitions() > 1) {
+            entry.add("partitions=" + options.partitions());
+        }
+        return entry.toArray(String[]::new);
+    }
+
+    static String[] deleteEntry(String queueName) {
+        return new String[]{"delete", queueName};
+    }
+
+    static String[] publishEntry(String exchangeName, String routingKey, List<String> messages) {
+        return messagesEntry(new String[]{"publish", exchangeName, routingKey}, messages);
+    }
+
+    static String[] ackEntry(String queueName, List<String> messages) {
+        return messagesEntry(new String[]{"ack", queueName}, messages);
+    }
+
+    /**
+     * Records that a client bound a queue.
+     *
+     * @return the entry of the binding
+     */
+    String[] bound(String exchangeName, String queueName, String bindingKey) {
+        synchronized (bindings) {
+            bindings.computeIfAbsent(exchangeName, name -> new LinkedHashSet<>())
+                    .add(new Binding(queueName, bindingKey));
+        }
+        return new String[]{"bind", exchangeName, queueName, bindingKey};
+    }
+
+    /**
+     * Records that a client unbound a queue. Since a fanout exchange ignores binding keys, unbinding a queue from it
+     * removes all bindings of the queue.
+     *
+     * @return the entry of the unbinding
+     */
+    String[] unbound(String exchangeName, ExchangeType exchangeType, String queueName, String bindingKey) {
+        synchronized (bindings) {
+            Set<Binding> exchangeBindings = bindings.get(exchangeName);
+            if (exchangeBindings != null) {
+                exchangeBindings.removeIf(binding -> binding.queueName().equals(queueName)
+                        && (exchangeType == ExchangeType.FANOUT || binding.bindingKey().equals(bindingKey)));
+            }
+        }
+        return new String[]{"unbind", exchangeName, queueName, bindingKey};
+    }
+
+    /**
+     * Records that a queue was deleted, with all its bindings.
+     */
+    void deleted(String queueName) {
+        synchronized (bindings) {
+            bindings.values().forEach(exchangeBindings ->
+                    exchangeBindings.removeIf(binding -> binding.queueName().equals(queueName)));
+        }
+    }
+
+    /**
+     * Takes a snapshot of the state. Must be called while no change is in progress.
+     *
+     * @return the entries that rebuild the state on a follower, starting with a reset
+     */
+    List<String[]> snapshot() {
+        List<String[]> entries = new ArrayList<>();
+        entries.add(new String[]{"reset"});
+        broker.exchangeMap.forEach((name, exchange) -> {
+            if (exchange.getType() != ExchangeType.DEFAULT) {
+                entries.add(exchangeEntry(name, exchange));
+            }
+        });
+        broker.queueMap.forEach((name, declaredQueue) -> {
+            entries.add(queueEntry(name, declaredQueue.getOptions()));
+            if (declaredQueue.getOptions().isStream()) {
+                return;
+            }
+            if (declaredQueue.getQueue() instanceof PartitionedQueue partitionedQueue) {
+                for (int partition = 0; partition < partitionedQueue.getPartitionCount(); partition++) {
+                    addRestoreEntries(entries, name, partition, partitionedQueue.messagesOf(partition));
+                }
+            } else {
+                addRestoreEntries(entries, name, 0, declaredQueue.getQueue());
+            }
+        });
+        synchronized (bindings) {
+            bindings.forEach((exchangeName, exchangeBindings) -> exchangeBindings.forEach(binding -> entries.add(
+                    new String[]{"bind", exchangeName, binding.queueName(), binding.bindingKey()})));
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the entries that restore the messages of a queue partition, in chunks. Queues without partitions have a
+     * single one.
+     */
+    private static void addRestoreEntries(List<String[]> entries, String queueName, int partition,
+                                          Iterable<String> messages) {
+        String[] prefix = {"restore", queueName, Integer.toString(partition)};
+        List<String> chunk = new ArrayList<>();
+        for (String message : messages) {
+            chunk.add(message);
+            if (chunk.size() == RESTORE_CHUNK_SIZE) {
+                entries.add(messagesEntry(prefix, chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            entries.add(messagesEntry(prefix, chunk));
+        }
+    }
+
+    // ==============FOLLOWER==============
+
+    /**
+     * Applies the entries of a {@code replicate} request of the leader, skipping those that were applied before.
+     *
+     * @param args the request
+     * @return {@code ok <next-seq>}, or an error if this node does not follow the sender or lost track of the stream
+     */
+    synchronized String receive(String[] args) {
+        ReplicationBatch batch = ReplicationBatch.parse(args);
+        if (batch == null) {
+            return "error usage: replicate <leader-id> <stream-id> <first-seq> [<token-count> <token>...]...";
+        }
+        int leaderId = broker.getLeader();
+        if (promoted || leaderId == broker.getId() || (leaderId != -1 && leaderId != batch.leaderId())) {
+            return "error not a follower of " + batch.leaderId();
+        }
+        if (batch.streamId() != streamId) {
+            if (batch.firstSeq() != 1 || batch.entries().isEmpty()) {
+                return ReplicationBatch.OUT_OF_SYNC;
+            }
+            streamId = batch.streamId();
+            nextSeq = 1;
+        } else if (batch.firstSeq() > nextSeq) {
+            return ReplicationBatch.OUT_OF_SYNC;
+        }
+        for (int i = (int) (nextSeq - batch.firstSeq()); i < batch.entries().size(); i++) {
+            try {
+                apply(batch.entries().get(i));
+            } catch (UncheckedIOException | IllegalArgumentException e) {
+                logErrorMsg(e, "Failed to apply replicated %s", batch.entries().get(i)[0]);
+            }
+            nextSeq++;
+        }
+        return OK + " " + nextSeq;
+    }
+
+    /**
+     * Stops applying entries of the leader, because this node became leader.
+     */
+    synchronized void promote() {
+        promoted = true;
+        pendingDiscards.clear();
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private record Binding(String queueName, String bindingKey) {
+    }
+
+    /**
+     * @param message the acknowledged message
+     * @param seq     the sequence number of the entry that acknowledged it
+     */
+    private record PendingDiscard(String message, long seq) {
+    }
+
+    private static String[] messagesEntry(String[] head, List<String> messages) {
+        String[] entry = Arrays.copyOf(head, head.length + messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            entry[head.length + i] = messages.get(i);
+        }
+        return entry;
+    }
+
+    private void apply(String[] entry) {
+        switch (entry[0]) {
+            case "reset" -> reset();
+            case "exchange" -> {
+                ExchangeType type = ExchangeType.valueOf(entry[1].toUpperCase().replace('-', '_'));
+                String option = entry.length > 3 ? entry[3] : null;
+                TopicMatcher matcher = option == null ? null
+                        : Broker.parseOption(option, "matcher", TopicMatcher::fromString);
+                FanoutMode fanoutMode = option == null ? null
+                        : Broker.parseOption(option, "mode", FanoutMode::fromString);
+                broker.exchangeMap.computeIfAbsent(entry[2], name -> broker.createExchange(type,
+                        matcher != null ? matcher : broker.exchangeConfig.topicMatcher(),
+                        fanoutMode != null ? fanoutMode : broker.exchangeConfig.fanoutMode()));
+            }
+            case "queue" -> {
+                QueueOptions options = Broker.parseQueueOptions(entry);
+                if (options == null) {
+                    throw new IllegalArgumentException("Invalid queue options");
+                }
+                broker.queueMap.computeIfAbsent(entry[1], name -> {
+                    IMessageQueue queue = broker.queueFactory.createQueue(name, options);
+                    broker.exchangeMap.get("default").bindQueue(name, queue);
+                    return new DeclaredQueue(name, queue, options);
+                });
+            }
+            case "bind", "unbind" -> {
+                IExchange exchange = broker.exchangeMap.get(entry[1]);
+                DeclaredQueue declaredQueue = broker.queueMap.get(entry[2]);
+                if (exchange == null || declaredQueue == null) {
+                    return;
+                }
+                if (entry[0].equals("bind")) {
+                    exchange.bindQueue(entry[3], declaredQueue.getQueue());
+                    bound(entry[1], entry[2], entry[3]);
+                } else {
+                    exchange.unbindQueue(entry[3], declaredQueue.getQueue());
+                    unbound(entry[1], exchange.getType(), entry[2], entry[3]);
+                }
+            }
+            case "delete" -> {
+                DeclaredQueue declaredQueue = broker.queueMap.get(entry[1]);
+                if (declaredQueue != null) {
+                    broker.deleteQueue(declaredQueue);
+                }
+                pendingDiscards.remove(entry[1]);
+            }
+            case "publish" -> {
+                IExchange exchange = broker.exchangeMap.get(entry[1]);
+                if (exchange != null) {
+                    exchange.replicate(entry[2], Arrays.asList(entry).subList(3, entry.length));
+                    pendingDiscards.keySet().removeIf(this::retryDiscards);
+                }
+            }
+            case "ack" -> discard(entry[1], Arrays.asList(entry).subList(2, entry.length));
+            case "restore" -> {
+                DeclaredQueue declaredQueue = broker.queueMap.get(entry[1]);
+                List<String> messages = Arrays.asList(entry).subList(3, entry.length);
+                if (declaredQueue != null && declaredQueue.getQueue() instanceof PartitionedQueue partitionedQueue) {
+                    partitionedQueue.replicate(Integer.parseInt(entry[2]), messages);
+                } else if (declaredQueue != null) {
+                    declaredQueue.getQueue().replicate(null, messages);
+                }
+            }
+            default -> logWarningMsg("Ignoring unknown replicated entry %s", entry[0]);
+        }
+    }
+
+    private void reset() {
+        broker.queueMap.values().forEach(broker::deleteQueue);
+        broker.exchangeMap.keySet().removeIf(name -> !name.equals("default"));
+        synchronized (bindings) {
+            bindings.clear();
+        }
+        pendingDiscards.clear();
+    }
+
+    /**
+     * Removes acknowledged messages from a queue. A message that is not in the queue, or not at its head for queues
+     * that only remove their head, is retried after later entries, until it is older than
+     * {@value #MAX_PENDING_DISCARD_AGE} entries. Then it is given up: it was delivered before the snapshot, or the
+     * subscribers of the leader took it out of order, and would be delivered again after a failover.
+     */
+    private void discard(String queueName, List<String> messages) {
+        DeclaredQueue declaredQueue = broker.queueMap.get(queueName);
+        if (declaredQueue == null) {
+            return;
+        }
+        boolean discarded = false;
+        for (String message : messages) {
+            if (declaredQueue.getQueue().discard(message)) {
+                discarded = true;
+            } else {
+                pendingDiscards.computeIfAbsent(queueName, name -> new ArrayList<>())
+                        .add(new PendingDiscard(message, nextSeq));
+            }
+        }
+        if (discarded && pendingDiscards.containsKey(queueName) && retryDiscards(queueName)) {
+            pendingDiscards.remove(queueName);
+        }
+    }
+
+    /**
+     * Retries the pending discards of a queue until none succeeds, and gives up those that are too old.
+     *
+     * @return true if no discards of the queue are pending anymore
+     */
+    private boolean retryDiscards(String queueName) {
+        DeclaredQueue declaredQueue = broker.queueMap.get(queueName);
+        List<PendingDiscard> pending = pendingDiscards.get(queueName);
+        if (declaredQueue == null) {
+            return true;
+        }
+        pending.removeIf(discard -> nextSeq - discard.seq() > MAX_PENDING_DISCARD_AGE);
+        boolean discarded = true;
+        while (discarded && !pending.isEmpty()) {
+            discarded = pending.removeIf(discard -> declaredQueue.getQueue().discard(discard.message()));
+        }
+        return pending.isEmpty();
+    }
+}
@@ -0,0 +1,192 @@
+package mb.broker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec of the binary SMQP framing, which a client negotiates by sending {@code framing binary} after the
+ * {@code ok SMQP} greeting. Afterward, every message in both directions is a frame prefixed by its length (a
+ * big-endian int32, handled by the transport). The frame body is laid out as follows:
+ * <pre>
+ * opcode (u8) | field count (u8) | field count * (field length (u16) | UTF-8 field) | UTF-8 payload (remaining bytes)
+ * </pre>
+ * Fields carry names and keys, the payload carries the message, which may contain spaces and newlines. Payloads are
+ * UTF-8 like the lines of the text transport, which is the canonical representation of the broker's {@code String}
+ * messages, so a message travels unchanged between text and binary clients. Malformed UTF-8 in a payload is replaced
+ * by U+FFFD.
+ */
+public final class SMQPFrame {
+    // Client to broker
+    public static final byte EXCHANGE = 0x01;   // fields: type, name, [matcher=<matcher> | mode=<mode>]
+    public static final byte QUEUE = 0x02;      // fields: name, [options]
+    public static final byte BIND = 0x03;       // fields: binding key
+    public static final byte SUBSCRIBE = 0x04;  // fields: [prefetch], [from=<offset>]
+    public static final byte PUBLISH = 0x05;    // fields: routing key, [correlation id]; payload: message
+    public static final byte STOP = 0x06;
+    public static final byte EXIT = 0x07;
+    public static final byte MPUBLISH = 0x08;   // fields: routing key; payload: messages, each prefixed by its length (int32)
+    public static final byte ACK = 0x09;        // fields: n
+    public static final byte NACK = 0x0A;       // fields: n
+    public static final byte UNBIND = 0x0B;     // fields: binding key
+    public static final byte DELETE = 0x0C;     // fields: "queue", name
+    public static final byte REPLY_TO = 0x0D;
+
+    // Broker to client
+    public static final byte REPLY = 0x40;      // payload: UTF-8 reply, e.g. "ok" or "error <reason>"
+    public static final byte DELIVER = 0x41;    // payload: message
+    public static final byte DIRECT_REPLY = 0x42;   // fields: correlation id; payload: message
+
+    public static final Charset PAYLOAD_CHARSET = StandardCharsets.UTF_8;
+
+    private static final byte[] REPLY_HEADER = {REPLY, 0};
+    private static final byte[] DELIVER_HEADER = {DELIVER, 0};
+    private static final byte[] DIRECT_REPLY_HEADER = {DIRECT_REPLY, 1};
+
+    private SMQPFrame() {
+    }
+
+    /**
+     * Decodes a frame body into the arguments of the equivalent text command: the command name, followed by the
+     * fields, followed by the payload if the frame has one. The payload of a publish frame follows the routing key,
+     * as in {@code publish <routing-key> <message> [correlation-id]}.
+     *
+     * @param frame the frame body without its length prefix
+     * @return the command arguments, or null if the frame is malformed
+     */
+    public static String[] decode(ByteBuffer frame) {
+        if (frame.remaining() < 2) {
+            return null;
+        }
+        String command = commandOf(frame.get());
+        int fieldCount = Byte.toUnsignedInt(frame.get());
+        if ("mpublish".equals(command)) {
+            return decodeBatch(frame, command, fieldCount);
+        }
+        String[] args = new String[1 + fieldCount + (hasPayload(command) ? 1 : 0)];
+        args[0] = command;
+        for (int i = 1; i <= fieldCount; i++) {
+            if (frame.remaining() < Short.BYTES) {
+                return null;
+            }
+            int length = Short.toUnsignedInt(frame.getShort());
+            if (frame.remaining() < length) {
+                return null;
+            }
+            args[i] = readString(frame, length, StandardCharsets.UTF_8);
+        }
+        if (hasPayload(command)) {
+            String payload = readString(frame, frame.remaining(), PAYLOAD_CHARSET);
+            int index = Math.min(2, args.length - 1);
+            System.arraycopy(args, index, args, index + 1, args.length - 1 - index);
+            args[index] = payload;
+        } else if (frame.hasRemaining()) {
+            return null;
+        }
+        return args;
+    }
+
+    /**
+     * Decodes a batch publish frame into {@code mpublish <routing-key> <message>...}.
+     */
+    private static String[] decodeBatch(ByteBuffer frame, String command, int fieldCount) {
+        if (fieldCount != 1 || frame.remaining() < Short.BYTES) {
+            return null;
+        }
+        int keyLength = Short.toUnsignedInt(frame.getShort());
+        if (frame.remaining() < keyLength) {
+            return null;
+        }
+        String routingKey = readString(frame, keyLength, StandardCharsets.UTF_8);
+
+        // Count the messages first to size the arguments exactly
+        int messageCount = 0;
+        for (int position = frame.position(); position < frame.limit(); messageCount++) {
+            if (frame.limit() - position < Integer.BYTES) {
+                return null;
+            }
+            int length = frame.getInt(position);
+            if (length < 0 || frame.limit() - position - Integer.BYTES < length) {
+                return null;
+            }
+            position += Integer.BYTES + length;
+        }
+
+        String[] args = new String[2 + messageCount];
+        args[0] = command;
+        args[1] = routingKey;
+        for (int i = 2; i < args.length; i++) {
+            args[i] = readString(frame, frame.getInt(), PAYLOAD_CHARSET);
+        }
+        return args;
+    }
+
+    /**
+     * Encodes a reply to a command.
+     *
+     * @param reply the reply
+     * @return the parts of the reply frame, see {@link mb.utils.IMessageIO#sendFrame(byte[]...)}
+     */
+    public static byte[][] reply(String reply) {
+        return new byte[][]{REPLY_HEADER, reply.getBytes(StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * Encodes a message delivered to a subscriber.
+     *
+     * @param message the message
+     * @return the parts of the delivery frame, see {@link mb.utils.IMessageIO#sendFrame(byte[]...)}
+     */
+    public static byte[][] deliver(String message) {
+        return new byte[][]{DELIVER_HEADER, message.getBytes(PAYLOAD_CHARSET)};
+    }
+
+    /**
+     * Encodes a reply sent to the direct reply-to address of a client.
+     *
+     * @param correlationId the correlation id of the reply
+     * @param message       the message
+     * @return the parts of the reply frame, see {@link mb.utils.IMessageIO#sendFrame(byte[]...)}
+     */
+    public static byte[][] directReply(String correlationId, String message) {
+        byte[] id = correlationId.getBytes(StandardCharsets.UTF_8);
+        byte[] idLength = {(byte) (id.length >>> 8), (byte) id.length};
+        return new byte[][]{DIRECT_REPLY_HEADER, idLength, id, message.getBytes(PAYLOAD_CHARSET)};
+    }
+
+    private static String commandOf(byte opcode) {
+        return switch (opcode) {
+            case EXCHANGE -> "exchange";
+            case QUEUE -> "queue";
+            case BIND -> "bind";
+            case SUBSCRIBE -> "subscribe";
+            case PUBLISH -> "publish";
+            case STOP -> "stop";
+            case EXIT -> "exit";
+            case MPUBLISH -> "mpublish";
+            case ACK -> "ack";
+            case NACK -> "nack";
+            case UNBIND -> "unbind";
+            case DELETE -> "delete";
+            case REPLY_TO -> "reply-to";
+            default -> "";
+        };
+    }
+
+    private static boolean hasPayload(String command) {
+        return "publish".equals(command);
+    }
+
+    private static String readString(ByteBuffer frame, int length, Charset charset) {
+        String value;
+        if (frame.hasArray()) {
+            value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, charset);
+        } else {
+            byte[] bytes = new byte[length];
+            frame.get(frame.position(), bytes);
+            value = new String(bytes, charset);
+        }
+        frame.position(frame.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,44 @@
+package mb.broker;
+
+import mb.utils.IMessageIO;
+
+/**
+ * Sends replies and deliveries of a client that negotiated binary SMQP framing as {@link SMQPFrame frames}.
+ */
+class SMQPFrameIO implements IMessageIO {
+    private final IMessageIO io;
+
+    SMQPFrameIO(IMessageIO io) {
+        this.io = io;
+    }
+
+    @Override
+    public void sendMessage(String message) {
+        io.sendFrame(SMQPFrame.reply(message));
+    }
+
+    @Override
+    public void printError(String errorMsg) {
+        sendMessage("error " + errorMsg);
+    }
+
+    @Override
+    public void deliver(String message) {
+        io.sendFrame(SMQPFrame.deliver(message));
+    }
+
+    @Override
+    public void deliverReply(String correlationId, String message) {
+        io.sendFrame(SMQPFrame.directReply(correlationId, message));
+    }
+
+    @Override
+    public void flush() {
+        io.flush();
+    }
+
+    @Override
+    public Runnable suspendInput() {
+        return io.suspendInput();
+    }
+}
@@ -0,0 +1,216 @@
+package mb.broker;
+
+import mb.broker.queue.IMessageQueue;
+import mb.config.DeliveryConfig;
+import mb.utils.IMessageIO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * Delivers the messages of a queue to a subscribed client. Runs in the background until it is interrupted.
+ * <p>
+ * Without a prefetch window, messages count as acknowledged as soon as they are delivered. With a prefetch window,
+ * at most {@code prefetch} delivered messages may be unacknowledged at a time; they are tracked by the client session
+ * until the client acknowledges them, and returned to the queue if the client rejects them or disconnects.
+ * <p>
+ * Messages are delivered in batches: once a message is available, the subscription drains up to
+ * {@link DeliveryConfig#batchSize()} messages (bounded by the free prefetch window) and flushes them at once. If
+ * {@link DeliveryConfig#lingerMs()} is positive, it waits at most that long for a batch to fill up; otherwise, it
+ * delivers whatever the queue holds right away.
+ * <p>
+ * If the queue is deleted, the subscription is {@link #cancel() cancelled}: it stops, ends the subscription of the
+ * session, so the client may send any command again, and tells the client with {@code error queue deleted}.
+ */
+public class Subscription implements Runnable {
+    public static final int AUTO_ACK = 0;
+
+    private final BlockingQueue<String> queue;
+    private final IMessageIO io;
+    private final IClientSession clientSession;
+    private final Semaphore credits;    // null if messages are acknowledged automatically
+    private final int batchSize;
+    private final long lingerNanos;
+    private final Consumer<List<String>> onAcknowledged;
+    private final Consumer<Subscription> onStopped;
+    private volatile Thread runner;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param queue         the queue to deliver messages from
+     * @param io            the connection to deliver messages to
+     * @param clientSession the session that tracks unacknowledged messages
+     * @param prefetch       the maximal number of unacknowledged messages, or {@link #AUTO_ACK}
+     * @param deliveryConfig the batching of deliveries
+     * @param onAcknowledged called with the messages the queue was told to forget, in the order they were taken
+     * @param onStopped      called by the subscription thread once the subscription stopped
+     */
+    public Subscription(BlockingQueue<String> queue, IMessageIO io, IClientSession clientSession, int prefetch,
+                        DeliveryConfig deliveryConfig, Consumer<List<String>> onAcknowledged,
+                        Consumer<Subscription> onStopped) {
+        this.queue = queue;
+        this.io = io;
+        this.clientSession = clientSession;
+        this.credits = prefetch == AUTO_ACK ? null : new Semaphore(prefetch);
+        this.batchSize = Math.max(1, deliveryConfig.batchSize());
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(deliveryConfig.lingerMs());
+        this.onAcknowledged = onAcknowledged;
+        this.onStopped = onStopped;
+    }
+
+    public BlockingQueue<String> getQueue() {
+        return queue;
+    }
+
+    /**
+     * Stops the subscription from another thread than the one of its session, because its queue was deleted.
+     */
+    public void cancel() {
+        cancelled = true;
+        Thread thread = runner;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        runner = Thread.currentThread();
+        try {
+            deliver();
+        } finally {
+            clientSession.subscriptionEnded();  // Before the client is told, which may send any command right away
+            if (cancelled) {
+                Thread.interrupted();   // An interrupted thread must not write to the connection
+                io.printError("queue deleted");
+                io.flush();
+            }
+            onStopped.accept(this);
+        }
+    }
+
+    private void deliver() {
+        List<String> batch = new ArrayList<>(Math.min(batchSize, 1024));
+        try {
+            while (!Thread.currentThread().isInterrupted() && !cancelled) {
+                int window = acquireWindow();
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    releaseCredits(window);
+                    throw e;
+                }
+                fillBatch(batch, window);
+
+                if (Thread.currentThread().isInterrupted()) {
+                    // Stopped while taking the messages, do not lose them
+                    requeue(batch);
+                    releaseCredits(window);
+                    return;
+                }
+                if (credits != null) {
+                    clientSession.trackDeliveries(this, batch);
+                    releaseCredits(window - batch.size());
+                }
+                for (String message : batch) {
+                    io.deliver(message);
+                }
+                io.flush();
+                if (credits == null) {
+                    acknowledge(batch);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blocks until at least one message may be delivered and reserves as much of the prefetch window as one batch
+     * can use. Only the subscription thread acquires credits, so the available credits cannot shrink in between.
+     *
+     * @return the maximal number of messages of the next batch
+     */
+    private int acquireWindow() throws InterruptedException {
+        if (credits == null) {
+            return batchSize;
+        }
+        credits.acquire();
+        int extra = Math.min(batchSize - 1, credits.availablePermits());
+        credits.acquire(extra);
+        return 1 + extra;
+    }
+
+    /**
+     * Adds up to {@code window} messages to the batch, waiting for at most the linger time if the queue runs dry.
+     * An interrupt ends the wait but is left to the caller, which must not lose the messages already taken.
+     */
+    private void fillBatch(List<String> batch, int window) {
+        queue.drainTo(batch, window - batch.size());
+        if (lingerNanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + lingerNanos;
+        try {
+            while (batch.size() < window) {
+                String msg = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (msg == null) {
+                    return;
+                }
+                batch.add(msg);
+                queue.drainTo(batch, window - batch.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Frees space in the prefetch window once delivered messages are acknowledged or rejected.
+     *
+     * @param count the number of acknowledged or rejected messages
+     */
+    void releaseCredits(int count) {
+        if (credits != null) {
+            credits.release(count);
+        }
+    }
+
+    /**
+     * Confirms to the queue that messages taken by this subscription were processed, and frees their space in the
+     * prefetch window.
+     *
+     * @param messages the messages in the order they were taken
+     */
+    void acknowledge(List<String> messages) {
+        if (queue instanceof IMessageQueue messageQueue) {
+            messageQueue.acknowledge(messages);
+        }
+        releaseCredits(messages.size());
+        onAcknowledged.accept(messages);
+    }
+
+    /**
+     * Returns messages taken by this subscription to its queue.
+     *
+     * @param messages the messages in the order they were taken
+     */
+    void requeue(List<String> messages) {
+        if (queue instanceof IMessageQueue messageQueue) {
+            messageQueue.requeue(messages);
+            return;
+        }
+        for (String message : messages) {
+            if (!queue.offer(message)) {
+                logErrorMsg("Failed to requeue message '%s'", message);
+            }
+        }
+    }
+}
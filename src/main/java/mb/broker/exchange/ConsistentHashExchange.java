@@ -0,0 +1,207 @@
+package mb.broker.exchange;
+
+import mb.enums.ExchangeType;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Exchange that routes each message to exactly one bound queue, chosen by consistent hashing of the routing key.
+ * Messages with the same routing key go to the same queue, so their order is kept, while the key space is spread
+ * over all bound queues.
+ * <p>
+ * The binding key is the weight of the binding, a positive integer. Each queue owns {@link #POINTS_PER_WEIGHT} points
+ * per unit of the summed weights of its bindings, at most {@link #MAX_WEIGHT}, on a hash ring, and a routing key is routed to the owner of the
+ * first point at or after the hash of the key. The points of a queue do not depend on the other queues, so binding or
+ * unbinding a queue only remaps the keys that hash next to its points.
+ */
+public class ConsistentHashExchange extends IExchange {
+    static final int POINTS_PER_WEIGHT = 100;
+    static final int MAX_WEIGHT = 1000;
+
+    private volatile Ring ring = Ring.EMPTY;
+    // Bookkeeping of the bindings, guarded by this
+    private final Map<BlockingQueue<String>, Member> members = new IdentityHashMap<>();
+    private long nextMemberId = 0;
+
+    @Override
+    public ExchangeType getType() {
+        return ExchangeType.CONSISTENT_HASH;
+    }
+
+    /**
+     * Binds a queue with the weight given by the binding key. Binding a queue with several weights adds them up.
+     *
+     * @throws IllegalArgumentException if the binding key is not an integer between 1 and {@link #MAX_WEIGHT}, or if
+     *                                  the summed weights of the queue would exceed {@link #MAX_WEIGHT}
+     */
+    @Override
+    synchronized void bindQueueHook(String bindingKey, BlockingQueue<String> queue) {
+        int weight = parseWeight(bindingKey);
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Invalid binding key: the weight must be between 1 and " + MAX_WEIGHT);
+        }
+        Member member = members.get(queue);
+        if (member != null && member.weights().contains(weight)) {
+            return;
+        }
+        if (member != null && member.totalWeight() + weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("Invalid binding key: the summed weights of a queue must not exceed "
+                    + MAX_WEIGHT);
+        }
+        if (member == null) {
+            member = new Member(nextMemberId++, new HashSet<>());
+            members.put(queue, member);
+        }
+        member.weights().add(weight);
+        ring = buildRing();
+    }
+
+    @Override
+    synchronized boolean unbindQueueHook(String bindingKey, BlockingQueue<String> queue) {
+        Member member = members.get(queue);
+        if (member == null || !member.weights().remove(parseWeight(bindingKey))) {
+            return false;
+        }
+        if (member.weights().isEmpty()) {
+            members.remove(queue);
+        }
+        ring = buildRing();
+        return true;
+    }
+
+    @Override
+    synchronized void removeQueueHook(BlockingQueue<String> queue) {
+        if (members.remove(queue) != null) {
+            ring = buildRing();
+        }
+    }
+
+    @Override
+    Collection<BlockingQueue<String>> routeHook(String routingKey) {
+        return ring.route(hash(routingKey));
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    /**
+     * A bound queue. The id seeds the positions of the points of the queue, and is not reused when the queue is
+     * unbound, so a queue that is bound again does not take over the keys of another queue.
+     *
+     * @param id      the id of the queue within the exchange
+     * @param weights the distinct weights the queue is bound with
+     */
+    private record Member(long id, Set<Integer> weights) {
+        int totalWeight() {
+            int total = 0;
+            for (int weight : weights) {
+                total += weight;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Immutable hash ring, replaced as a whole when a binding changes.
+     *
+     * @param points the positions of the points in ascending order
+     * @param routes routes[i] holds the owner of points[i], shared by all points of the owner
+     */
+    private record Ring(long[] points, List<BlockingQueue<String>>[] routes) {
+        @SuppressWarnings("unchecked")
+        static final Ring EMPTY = new Ring(new long[0], (List<BlockingQueue<String>>[]) new List<?>[0]);
+
+        Collection<BlockingQueue<String>> route(long hash) {
+            if (points.length == 0) {
+                return List.of();
+            }
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;                 // First point after the hash
+            }
+            return routes[i == points.length ? 0 : i];    // Wrap around
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Ring buildRing() {
+        int count = 0;
+        for (Member member : members.values()) {
+            count += member.totalWeight() * POINTS_PER_WEIGHT;
+        }
+        long[] points = new long[count];
+        int n = 0;
+        for (Member member : members.values()) {
+            int memberPoints = member.totalWeight() * POINTS_PER_WEIGHT;
+            for (int i = 0; i < memberPoints; i++) {
+                points[n++] = position(member, i);
+            }
+        }
+        Arrays.sort(points);
+
+        // Find the slot of each point in the sorted positions; positions are 64-bit hashes, so ties are negligible,
+        // and tied points take consecutive slots
+        List<BlockingQueue<String>>[] routes = (List<BlockingQueue<String>>[]) new List<?>[count];
+        for (Map.Entry<BlockingQueue<String>, Member> entry : members.entrySet()) {
+            List<BlockingQueue<String>> route = List.of(entry.getKey());
+            Member member = entry.getValue();
+            int memberPoints = member.totalWeight() * POINTS_PER_WEIGHT;
+            for (int i = 0; i < memberPoints; i++) {
+                long position = position(member, i);
+                int slot = Arrays.binarySearch(points, position);
+                while (slot > 0 && points[slot - 1] == position) {
+                    slot--;
+                }
+                while (routes[slot] != null) {
+                    slot++;
+                }
+                routes[slot] = route;
+            }
+        }
+        return new Ring(points, routes);
+    }
+
+    /**
+     * Returns the position of a point of a queue. The first points of a queue stay in place when its weight changes.
+     *
+     * @param member the queue
+     * @param index  the index of the point among those of the queue
+     */
+    private static long position(Member member, int index) {
+        return mix(member.id() * 0x9E3779B97F4A7C15L + index);
+    }
+
+    /**
+     * Parses the weight of a binding key.
+     *
+     * @return the weight, or 0 if the binding key is not a valid weight
+     */
+    private static int parseWeight(String bindingKey) {
+        try {
+            int weight = Integer.parseInt(bindingKey);
+            return weight >= 1 && weight <= MAX_WEIGHT ? weight : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Hashes a routing key to a position on the ring, without allocating.
+     */
+    static long hash(String routingKey) {
+        long h = 0xCBF29CE484222325L;     // FNV-1a, finished by a mixer to spread similar keys over the whole ring
+        for (int i = 0; i < routingKey.length(); i++) {
+            h = (h ^ routingKey.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, which maps similar inputs to unrelated 64-bit values.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -2,6 +2,8 @@ package mb.broker.exchange;
 
 import mb.enums.ExchangeType;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -23,26 +25,41 @@ public class DirectExchange extends IExchange {
                 newQueueList.add(queue);
                 return newQueueList;
             } else {
-                // Add the queue to the existing list
-                existingQueues.add(queue);
+                // Add the queue to the existing list, unless it is already bound with this key
+                existingQueues.addIfAbsent(queue);
                 return existingQueues;
             }
         });
     }
 
     @Override
-    public void publishMsgHook(String routingKey, String message) {
-        CopyOnWriteArrayList<BlockingQueue<String>> queues = boundQueues.get(routingKey);
-        if (queues == null) return;
-        queues.forEach(queue -> {
-            if (queue != null) {
-                try {
-                    queue.put(message);
-                } catch (InterruptedException e) {
-                    System.err.printf("Server error: " +
-                            "Failed to put message '%s' into queue with routing key %s\n", message, routingKey);
-                }
-            }
+    boolean unbindQueueHook(String bindingKey, BlockingQueue<String> queue) {
+        boolean[] removed = {false};
+        boundQueues.computeIfPresent(bindingKey, (key, existingQueues) -> {  // atomic
+            removed[0] = existingQueues.remove(queue);
+            return existingQueues.isEmpty() ? null : existingQueues;    // Drop keys without queues
         });
+        return removed[0];
+    }
+
+    @Override
+    void removeQueueHook(BlockingQueue<String> queue) {
+        for (String bindingKey : boundQueues.keySet()) {
+            unbindQueueHook(bindingKey, queue);
+        }
+    }
+
+    @Override
+    Collection<BlockingQueue<String>> routeHook(String routingKey) {
+        CopyOnWriteArrayList<BlockingQueue<String>> queues = boundQueues.get(routingKey);
+        return queues != null ? queues : List.of();
+    }
+
+    /**
+     * Returns no partition key, since every message routed to a queue has the same routing key: its binding key.
+     */
+    @Override
+    String partitionKeyHook(String routingKey) {
+        return null;
     }
 }
@@ -1,33 +1,108 @@
 package mb.broker.exchange;
 
+import mb.config.BrokerConfig;
 import mb.enums.ExchangeType;
+import mb.enums.FanoutMode;
+import mb.enums.SlowConsumerPolicy;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class FanoutExchange extends IExchange {
     private final CopyOnWriteArrayList<BlockingQueue<String>> boundQueues = new CopyOnWriteArrayList<>();
+    private final FanoutMode mode;
+    private final FanoutLog log;    // null unless in log mode
+
+    public FanoutExchange() {
+        this(FanoutMode.QUEUES, BrokerConfig.DEFAULT_EXCHANGE_FANOUT_LOG_CAPACITY, SlowConsumerPolicy.SPILL);
+    }
+
+    /**
+     * @param mode        how messages reach the bound queues: published into each queue by the publisher, or
+     *                    appended once to a shared log, from which each queue is filled by a cursor of its own
+     * @param logCapacity the number of messages the shared log holds; ignored unless in log mode
+     * @param slowPolicy  what happens to a queue whose cursor falls a whole log behind; ignored unless in log mode
+     */
+    public FanoutExchange(FanoutMode mode, int logCapacity, SlowConsumerPolicy slowPolicy) {
+        this.mode = mode;
+        this.log = mode == FanoutMode.LOG ? new FanoutLog(logCapacity, slowPolicy) : null;
+    }
 
     @Override
     public ExchangeType getType() {
         return ExchangeType.FANOUT;
     }
 
+    public FanoutMode getMode() {
+        return mode;
+    }
+
     @Override
     void bindQueueHook(String bindingKey, BlockingQueue<String> queue) {
-        boundQueues.add(queue);
+        if (log != null) {
+            log.addCursor(queue);
+            return;
+        }
+        boundQueues.addIfAbsent(queue);
     }
 
+    /**
+     * Unbinds the queue, whatever binding key it was bound with, since a fanout exchange ignores binding keys.
+     */
     @Override
-    public void publishMsgHook(String routingKey, String message) {
-        boundQueues.forEach(queue -> {
-            try {
-                queue.put(message);
-            } catch (InterruptedException e) {
-                System.err.printf("Server error: " +
-                        "Failed to put message '%s' into queue of fanout exchange\n", message);
-            }
-        });
+    boolean unbindQueueHook(String bindingKey, BlockingQueue<String> queue) {
+        return log != null ? log.removeCursor(queue) : boundQueues.remove(queue);
+    }
+
+    @Override
+    void removeQueueHook(BlockingQueue<String> queue) {
+        unbindQueueHook("", queue);
+    }
 
+    @Override
+    Collection<BlockingQueue<String>> routeHook(String routingKey) {
+        return boundQueues;
+    }
+
+    /**
+     * In log mode, appends the message to the shared log instead of publishing it to every queue, so the publisher
+     * does not depend on the number of bound queues. The queues receive the message asynchronously, so a full queue
+     * does not reject the message.
+     */
+    @Override
+    boolean publishMsgHook(String routingKey, String message) {
+        if (log == null) {
+            return super.publishMsgHook(routingKey, message);
+        }
+        log.append(message);
+        return true;
+    }
+
+    @Override
+    int publishBatchHook(String routingKey, List<String> messages) {
+        if (log == null) {
+            return super.publishBatchHook(routingKey, messages);
+        }
+        log.appendAll(messages);
+        return messages.size();
+    }
+
+    /**
+     * In log mode, publishing never waits for the queues.
+     */
+    @Override
+    boolean awaitRoomHook(String routingKey, String message, long deadline) {
+        return log == null ? super.awaitRoomHook(routingKey, message, deadline) : true;
+    }
+
+    @Override
+    void replicateHook(String routingKey, List<String> messages) {
+        if (log == null) {
+            super.replicateHook(routingKey, messages);
+            return;
+        }
+        log.appendAll(messages);
     }
 }
@@ -0,0 +1,298 @@
+package mb.broker.exchange;
+
+import mb.broker.queue.IMessageQueue;
+import mb.enums.SlowConsumerPolicy;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+import static mb.utils.LoggingUtil.logWarningMsg;
+
+/**
+ * Shared log of a fanout exchange in log mode. A published message is written once into a ring of slots, no matter
+ * how many queues are bound; each bound queue has a cursor into the ring, which its own thread advances, moving the
+ * messages it passes into the queue in batches.
+ * <p>
+ * Publishing never waits for cursors. A cursor that is a whole ring behind, because its queue does not keep up, is
+ * handled by the {@link SlowConsumerPolicy} before its oldest unread slot is overwritten:
+ * <ul>
+ *     <li>{@code SPILL} copies the unread messages of the cursor out of the ring, into a private backlog of at most
+ *     {@value #MAX_BACKLOG_RINGS} rings of messages, beyond which the oldest messages of the backlog are dropped</li>
+ *     <li>{@code DROP} discards the oldest half ring of the unread messages of the cursor</li>
+ *     <li>{@code DISCONNECT} unbinds the queue from the exchange</li>
+ * </ul>
+ * Lock order: the log before a cursor.
+ */
+final class FanoutLog {
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_BACKLOG_RINGS = 4;
+
+    private final String[] slots;
+    private final int mask;
+    private final SlowConsumerPolicy slowPolicy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final Map<BlockingQueue<String>, Cursor> cursors = new IdentityHashMap<>();  // guarded by lock
+    private volatile long head = 0; // written under lock; the next sequence, cursors may read the slots before it
+    private long minPosition = 0;   // guarded by lock; no cursor is before this sequence
+    private int waiting = 0;        // guarded by lock; number of cursor threads waiting for messages
+
+    /**
+     * @param capacity   the number of slots, rounded up to a power of 2
+     * @param slowPolicy what to do with a cursor that would be overtaken
+     */
+    FanoutLog(int capacity, SlowConsumerPolicy slowPolicy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new String[size];
+        this.mask = size - 1;
+        this.slowPolicy = slowPolicy;
+    }
+
+    /**
+     * Binds a queue, which receives the messages appended from now on.
+     *
+     * @return false if the queue is already bound
+     */
+    boolean addCursor(BlockingQueue<String> queue) {
+        lock.lock();
+        try {
+            if (cursors.containsKey(queue)) {
+                return false;
+            }
+            Cursor cursor = new Cursor(queue, head);
+            cursors.put(queue, cursor);
+            cursor.thread = Thread.ofVirtual().name("fanout-cursor").start(() -> cursor.run());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unbinds a queue. Messages its cursor has not moved into the queue yet are discarded.
+     *
+     * @return false if the queue was not bound
+     */
+    boolean removeCursor(BlockingQueue<String> queue) {
+        lock.lock();
+        try {
+            Cursor cursor = cursors.remove(queue);
+            if (cursor == null) {
+                return false;
+            }
+            cursor.close();
+            published.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a message to the log. Does not block on the bound queues.
+     *
+     * @param message the message
+     */
+    void append(String message) {
+        lock.lock();
+        try {
+            write(message);
+            signalWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends messages to the log. Does not block on the bound queues.
+     *
+     * @param messages the messages
+     */
+    void appendAll(List<String> messages) {
+        lock.lock();
+        try {
+            messages.forEach(this::write);
+            signalWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    /**
+     * Writes a message into the next slot. Must be called while holding the lock.
+     */
+    private void write(String message) {
+        if (head - slots.length >= minPosition) {
+            minPosition = overtake(head - slots.length);
+        }
+        slots[(int) head & mask] = message;
+        head++;
+    }
+
+    private void signalWaiting() {
+        if (waiting > 0) {
+            published.signalAll();
+        }
+    }
+
+    /**
+     * Applies the slow consumer policy to the cursors that have not read the slot of a sequence, which is about to
+     * be overwritten. Must be called while holding the lock.
+     *
+     * @param sequence the sequence of the slot
+     * @return the minimal position of the remaining cursors, at least {@link #head} if there are none
+     */
+    private long overtake(long sequence) {
+        long min = head;
+        for (Iterator<Cursor> it = cursors.values().iterator(); it.hasNext(); ) {
+            Cursor cursor = it.next();
+            cursor.lock.lock();
+            try {
+                if (cursor.position <= sequence) {
+                    switch (slowPolicy) {
+                        case SPILL -> spill(cursor);
+                        case DROP -> {
+                            long keepFrom = head - slots.length / 2;
+                            logWarningMsg("Fanout log dropped %d messages of a slow queue", keepFrom - cursor.position);
+                            cursor.position = keepFrom;
+                        }
+                        case DISCONNECT -> {
+                            logWarningMsg("Fanout log unbound a slow queue");
+                            it.remove();
+                            cursor.close();
+                            continue;
+                        }
+                    }
+                }
+                min = Math.min(min, cursor.position);
+            } finally {
+                cursor.lock.unlock();
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Copies the unread messages of a cursor into its backlog. If the backlog would exceed its limit, its oldest
+     * messages are dropped, as with {@code DROP}. Must be called while holding the lock of the log and of the cursor.
+     */
+    private void spill(Cursor cursor) {
+        int maxBacklog = MAX_BACKLOG_RINGS * slots.length;
+        int dropped = 0;
+        for (long s = cursor.position; s < head; s++) {
+            if (cursor.backlog.size() == maxBacklog) {
+                cursor.backlog.poll();
+                dropped++;
+            }
+            cursor.backlog.add(slots[(int) s & mask]);
+        }
+        cursor.position = head;
+        if (dropped > 0) {
+            logWarningMsg("Fanout log dropped %d messages of a slow queue, whose backlog is full", dropped);
+        }
+    }
+
+    /**
+     * The position of a bound queue in the log, advanced by a thread of its own.
+     */
+    private final class Cursor {
+        private final BlockingQueue<String> queue;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<String> backlog = new ArrayDeque<>();  // guarded by lock; messages before position
+        private long position;                  // guarded by lock; the sequence of the next message to read
+        private volatile boolean closed = false;
+        private Thread thread;                  // guarded by the lock of the log
+
+        Cursor(BlockingQueue<String> queue, long position) {
+            this.queue = queue;
+            this.position = position;
+        }
+
+        void run() {
+            List<String> batch = new ArrayList<>();
+            try {
+                while (!closed) {
+                    read(batch);
+                    if (batch.isEmpty()) {
+                        awaitMessages();
+                        continue;
+                    }
+                    deliver(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            }
+        }
+
+        void close() {
+            closed = true;
+            thread.interrupt();
+        }
+
+        /**
+         * Reads the next messages: the backlog first, then the ring, sequentially from the position.
+         */
+        private void read(List<String> batch) {
+            lock.lock();
+            try {
+                while (!backlog.isEmpty() && batch.size() < MAX_BATCH) {
+                    batch.add(backlog.poll());
+                }
+                if (!batch.isEmpty()) {
+                    return;
+                }
+                long end = Math.min(head, position + MAX_BATCH);
+                for (long s = position; s < end; s++) {
+                    batch.add(slots[(int) s & mask]);
+                }
+                position = end;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void awaitMessages() throws InterruptedException {
+            FanoutLog.this.lock.lockInterruptibly();
+            try {
+                waiting++;
+                try {
+                    while (!closed && !hasMessages()) {
+                        published.await();
+                    }
+                } finally {
+                    waiting--;
+                }
+            } finally {
+                FanoutLog.this.lock.unlock();
+            }
+        }
+
+        private boolean hasMessages() {
+            lock.lock();
+            try {
+                return !backlog.isEmpty() || position < head;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void deliver(List<String> batch) throws InterruptedException {
+            if (queue instanceof IMessageQueue messageQueue) {
+                int accepted = messageQueue.publishAll(batch);
+                if (accepted < batch.size()) {
+                    logErrorMsg("Queue rejected %d messages of a fanout log", batch.size() - accepted);
+                }
+                return;
+            }
+            for (String message : batch) {
+                queue.put(message);
+            }
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package mb.broker.exchange;
 
+import mb.broker.queue.IMessageQueue;
 import mb.enums.ExchangeType;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -31,20 +36,103 @@ public abstract class IExchange {
         bindQueueHook(bindingKey, queue);
     }
 
+    /**
+     * Removes the binding of a queue to the exchange with the given binding key.
+     *
+     * @param bindingKey the binding key the queue was bound with (not null, not empty)
+     * @param queue      the queue to unbind (not null)
+     * @return true if the binding existed, false otherwise
+     */
+    public final boolean unbindQueue(String bindingKey, BlockingQueue<String> queue) {
+        assert bindingKey != null && !bindingKey.isEmpty() : "Binding key is null or empty.";
+        assert queue != null : "Queue is null.";
+        return unbindQueueHook(bindingKey, queue);
+    }
+
+    /**
+     * Removes all bindings of a queue to the exchange, e.g. because the queue is deleted.
+     *
+     * @param queue the queue to unbind (not null)
+     */
+    public final void removeQueue(BlockingQueue<String> queue) {
+        assert queue != null : "Queue is null.";
+        removeQueueHook(queue);
+    }
+
     /**
      * Publish a message to the exchange, if there exists a queue witch a matching binding key. If the routing key is
-     * invalid or empty the message is silently ignored. This operation is blocking.
+     * invalid or empty the message is silently ignored. The message is published to all matching queues or to none,
+     * so they stay consistent with each other and with replicas. This operation never blocks: a queue whose overflow
+     * policy waits for room rejects a message that does not fit, so the publisher can wait with
+     * {@link #awaitRoom(String, String, long)} and try again.
      *
      * @param routingKey the routing key of the message (not null)
      * @param message    the message to be published (not null, not empty)
+     * @return false if a matching queue has no room for the message, so it was not published, true otherwise
      */
-    public final void publish(String routingKey, String message) {
+    public final boolean publish(String routingKey, String message) {
         assert routingKey != null : "Routing key is null.";
         assert message != null && !message.isEmpty() : "Message is null or empty.";
         if (routingKey.isBlank()) {
+            return true;
+        }
+        return publishMsgHook(routingKey, message);
+    }
+
+    /**
+     * Publish a batch of messages with the same routing key to the exchange. The routing key is resolved only once,
+     * and each matching queue receives the batch in order with a single bulk operation. If the routing key is
+     * invalid or empty the messages are silently ignored. Like {@link #publish(String, String)}, each message is
+     * published to all matching queues or to none, and this operation never blocks.
+     *
+     * @param routingKey the routing key of the messages (not null)
+     * @param messages   the messages to be published (not null, no null or empty elements)
+     * @return the number of messages, counted from the start of the batch, that were published to every matching
+     * queue; the others were published to none
+     */
+    public final int publishBatch(String routingKey, List<String> messages) {
+        assert routingKey != null : "Routing key is null.";
+        assert messages != null && messages.stream().noneMatch(m -> m == null || m.isEmpty()) : "Message is null or empty.";
+        if (routingKey.isBlank() || messages.isEmpty()) {
+            return messages.size();
+        }
+        return publishBatchHook(routingKey, messages);
+    }
+
+    /**
+     * Waits until the queues matching the routing key have room for a message, as far as their overflow policies let
+     * publishers wait, without publishing it, so that publishing it right afterward does not block unless other
+     * publishers fill the queues meanwhile.
+     *
+     * @param routingKey the routing key of the message (not null)
+     * @param message    the message (not null, not empty)
+     * @param deadline   the {@link System#nanoTime()} at which to stop waiting
+     * @return false if a matching queue is still full by the deadline, or right away if its overflow policy rejects
+     * messages that do not fit
+     */
+    public final boolean awaitRoom(String routingKey, String message, long deadline) {
+        assert routingKey != null : "Routing key is null.";
+        assert message != null && !message.isEmpty() : "Message is null or empty.";
+        if (routingKey.isBlank()) {
+            return true;
+        }
+        return awaitRoomHook(routingKey, message, deadline);
+    }
+
+    /**
+     * Publishes messages that were published to the exchange of the same name on the leader, so that the matching
+     * queues stay replicas of those of the leader. Unlike {@link #publishBatch(String, List)}, never blocks and never
+     * rejects a message because a queue is full, since the leader already applied the limits of the queues.
+     *
+     * @param routingKey the routing key of the messages (not null)
+     * @param messages   the messages (not null, no null or empty elements)
+     */
+    public final void replicate(String routingKey, List<String> messages) {
+        assert routingKey != null : "Routing key is null.";
+        if (routingKey.isBlank() || messages.isEmpty()) {
             return;
         }
-        publishMsgHook(routingKey, message);
+        replicateHook(routingKey, messages);
     }
 
     /**
@@ -57,12 +145,196 @@ public abstract class IExchange {
     abstract void bindQueueHook(String bindingKey, BlockingQueue<String> queue);
 
     /**
-     * Hook method to publish a message to the queue specified by the routing key.
-     * Subclasses must implement this method to define their specific binding logic.
+     * Hook method to remove the binding of a queue with the specified binding key. Subclasses must release everything
+     * they only kept for this binding.
      *
-     * @param routingKey the binding key to bind the queue
+     * @param bindingKey the binding key the queue was bound with
+     * @param queue      the queue to unbind
+     * @return true if the binding existed, false otherwise
+     */
+    abstract boolean unbindQueueHook(String bindingKey, BlockingQueue<String> queue);
+
+    /**
+     * Hook method to remove all bindings of a queue.
+     *
+     * @param queue the queue to unbind
+     */
+    abstract void removeQueueHook(BlockingQueue<String> queue);
+
+    /**
+     * Hook method to resolve the queues that a message with the given routing key is published to.
+     * Subclasses must implement this method to define their specific routing logic.
+     *
+     * @param routingKey the routing key of the message
+     * @return the matching queues, empty if there are none
+     */
+    abstract Collection<BlockingQueue<String>> routeHook(String routingKey);
+
+    /**
+     * Hook method to publish a message to all queues specified by the routing key, or to none.
+     *
+     * @param routingKey the routing key of the message
      * @param message    the message to be published
+     * @return false if a queue has no room for the message, true otherwise
      */
-    abstract void publishMsgHook(String routingKey, String message);
-}
+    boolean publishMsgHook(String routingKey, String message) {
+        return publishTo(routeHook(routingKey), partitionKeyHook(routingKey), message);
+    }
+
+    /**
+     * Hook method to publish a batch of messages to the queues specified by the routing key, each message to all of
+     * them or to none.
+     *
+     * @param routingKey the routing key of the messages
+     * @param messages   the messages to be published
+     * @return the number of messages, counted from the start of the batch, that were published to every queue
+     */
+    int publishBatchHook(String routingKey, List<String> messages) {
+        return publishAllTo(routeHook(routingKey), partitionKeyHook(routingKey), messages);
+    }
+
+    /**
+     * Hook method to wait for room in the queues specified by the routing key.
+     *
+     * @param routingKey the routing key of the message
+     * @param message    the message
+     * @param deadline   the {@link System#nanoTime()} at which to stop waiting
+     * @return false if a queue is still full by the deadline
+     */
+    boolean awaitRoomHook(String routingKey, String message, long deadline) {
+        String partitionKey = partitionKeyHook(routingKey);
+        for (BlockingQueue<String> queue : routeHook(routingKey)) {
+            try {
+                if (queue instanceof IMessageQueue messageQueue
+                        && !messageQueue.awaitRoom(partitionKey, message, deadline)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hook method to publish replicated messages to the queues specified by the routing key, see
+     * {@link IMessageQueue#replicate(String, List)}.
+     *
+     * @param routingKey the routing key of the messages
+     * @param messages   the messages
+     */
+    void replicateHook(String routingKey, List<String> messages) {
+        String partitionKey = partitionKeyHook(routingKey);
+        for (BlockingQueue<String> queue : routeHook(routingKey)) {
+            if (queue instanceof IMessageQueue messageQueue) {
+                messageQueue.replicate(partitionKey, messages);
+            } else {
+                messages.forEach(queue::offer);
+            }
+        }
+    }
+
+    /**
+     * Hook method to derive the partition key of a message from its routing key, which partitioned queues use to keep
+     * messages with the same key in order. By default, the routing key is the partition key.
+     *
+     * @param routingKey the routing key of the message
+     * @return the partition key, or null if the routing key says nothing about the message itself, so that
+     * partitioned queues spread the messages over their partitions
+     */
+    String partitionKeyHook(String routingKey) {
+        return routingKey;
+    }
+
+    /**
+     * Publishes a message to all matching queues or to none, without waiting for room. A single queue takes the
+     * message if it has room; several queues first reserve room for it.
+     *
+     * @param queues       the matching queues
+     * @param partitionKey the partition key of the message, null if it has none
+     * @param message      the message to be published
+     * @return false if a queue has no room for the message, true otherwise
+     */
+    static boolean publishTo(Collection<BlockingQueue<String>> queues, String partitionKey, String message) {
+        Iterator<BlockingQueue<String>> iterator = queues.iterator();
+        if (!iterator.hasNext()) {
+            return true;
+        }
+        BlockingQueue<String> queue = iterator.next();
+        if (!iterator.hasNext()) {
+            return queue instanceof IMessageQueue messageQueue
+                    ? messageQueue.tryPublish(partitionKey, message)
+                    : queue.offer(message);
+        }
+        return publishReserved(queue, iterator, partitionKey, List.of(message)) == 1;
+    }
 
+    /**
+     * Publishes messages to all matching queues, each message to all of them or to none, without waiting for room.
+     *
+     * @param queues       the matching queues
+     * @param partitionKey the partition key of the messages, null if they have none
+     * @param messages     the messages to be published
+     * @return the number of messages, counted from the start, that were published to every queue
+     */
+    static int publishAllTo(Collection<BlockingQueue<String>> queues, String partitionKey, List<String> messages) {
+        Iterator<BlockingQueue<String>> iterator = queues.iterator();
+        if (!iterator.hasNext()) {
+            return messages.size();
+        }
+        BlockingQueue<String> queue = iterator.next();
+        if (!iterator.hasNext()) {
+            return queue instanceof IMessageQueue messageQueue
+                    ? messageQueue.tryPublishAll(partitionKey, messages)
+                    : offerAll(queue, messages);
+        }
+        return publishReserved(queue, iterator, partitionKey, messages);
+    }
+
+    /**
+     * Reserves room for the messages in every queue, then appends the messages that all queues have room for.
+     *
+     * @param first     the first queue
+     * @param remaining the other queues
+     * @return the number of appended messages, counted from the start
+     */
+    private static int publishReserved(BlockingQueue<String> first, Iterator<BlockingQueue<String>> remaining,
+                                       String partitionKey, List<String> messages) {
+        List<IMessageQueue.Reservation> reservations = new ArrayList<>();
+        int accepted = messages.size();
+        BlockingQueue<String> queue = first;
+        while (true) {
+            IMessageQueue.Reservation reservation = reserve(queue, partitionKey, messages);
+            reservations.add(reservation);
+            accepted = Math.min(accepted, reservation.count());
+            if (accepted == 0 || !remaining.hasNext()) {
+                break;
+            }
+            queue = remaining.next();
+        }
+        for (IMessageQueue.Reservation reservation : reservations) {
+            reservation.commit(accepted);
+        }
+        return accepted;
+    }
+
+    private static IMessageQueue.Reservation reserve(BlockingQueue<String> queue, String partitionKey,
+                                                     List<String> messages) {
+        if (queue instanceof IMessageQueue messageQueue) {
+            return messageQueue.reserve(partitionKey, messages);
+        }
+        return new IMessageQueue.Reservation(messages.size(), count -> offerAll(queue, messages.subList(0, count)));
+    }
+
+    private static int offerAll(BlockingQueue<String> queue, List<String> messages) {
+        int offered = 0;
+        for (String message : messages) {
+            if (!queue.offer(message)) {
+                break;
+            }
+            offered++;
+        }
+        return offered;
+    }
+}
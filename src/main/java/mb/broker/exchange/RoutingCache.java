@@ -0,0 +1,150 @@
+package mb.broker.exchange;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache from routing keys to the queues they resolve to, with CLOCK eviction. Lookups are lock-free and only
+ * set the reference bit of the entry; inserts sweep the clock hand over the entries, clearing reference bits, and
+ * evict the first entry that was not referenced since the last sweep.
+ * <p>
+ * Every entry records the binding epoch it was resolved in. A lookup with a newer epoch is a miss, so a binding
+ * invalidates all cached routes at once without touching the cache. When bindings are removed, the cache is
+ * {@link #clear(long) cleared}, so that it does not keep unbound queues reachable.
+ */
+public class RoutingCache {
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Entry[] clock;
+    private int size = 0;   // guarded by this
+    private int hand = 0;   // guarded by this
+    private long minEpoch = 0;  // guarded by this
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+        final String routingKey;
+        final int slot;
+        final long epoch;
+        final List<BlockingQueue<String>> queues;
+        volatile boolean referenced = true;
+
+        Entry(String routingKey, int slot, long epoch, List<BlockingQueue<String>> queues) {
+            this.routingKey = routingKey;
+            this.slot = slot;
+            this.epoch = epoch;
+            this.queues = queues;
+        }
+    }
+
+    /**
+     * The counters of a routing cache.
+     *
+     * @param hits      the number of lookups that found a current route
+     * @param misses    the number of lookups that found no route or an outdated one
+     * @param evictions the number of routes evicted to make room for others
+     */
+    public record Stats(long hits, long misses, long evictions) {
+        /**
+         * @return the share of lookups that were hits, 0 if there were none
+         */
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    /**
+     * @param capacity the maximal number of cached routes (at least 1)
+     */
+    public RoutingCache(int capacity) {
+        this.clock = new Entry[capacity];
+    }
+
+    /**
+     * Looks up the route of a routing key.
+     *
+     * @param routingKey the routing key
+     * @param epoch      the current binding epoch
+     * @return the queues the key resolves to, or null if there is no route of the current epoch
+     */
+    public List<BlockingQueue<String>> get(String routingKey, long epoch) {
+        Entry entry = entries.get(routingKey);
+        if (entry == null || entry.epoch != epoch) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced) {    // Avoid writing to shared memory on every hit
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.queues;
+    }
+
+    /**
+     * Caches the route of a routing key, evicting another route if the cache is full.
+     *
+     * @param routingKey the routing key
+     * @param epoch      the binding epoch the route was resolved in
+     * @param queues     the queues the key resolves to (immutable)
+     */
+    public synchronized void put(String routingKey, long epoch, List<BlockingQueue<String>> queues) {
+        if (epoch < minEpoch) {
+            return;     // Resolved before the cache was cleared
+        }
+        Entry existing = entries.get(routingKey);
+        int slot;
+        if (existing != null) {
+            if (existing.epoch > epoch) {
+                return;     // Resolved concurrently in a newer epoch
+            }
+            slot = existing.slot;
+        } else if (size < clock.length) {
+            slot = size++;
+        } else {
+            slot = evict();
+        }
+        Entry entry = new Entry(routingKey, slot, epoch, queues);
+        clock[slot] = entry;
+        entries.put(routingKey, entry);
+    }
+
+    /**
+     * Removes all routes, and rejects routes that are resolved in an older epoch afterward.
+     *
+     * @param epoch the current binding epoch
+     */
+    public synchronized void clear(long epoch) {
+        entries.clear();
+        Arrays.fill(clock, null);
+        size = 0;
+        hand = 0;
+        minEpoch = epoch;
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    /**
+     * Advances the clock hand to the first entry that was not referenced since the last sweep and evicts it.
+     *
+     * @return the slot of the evicted entry
+     */
+    private int evict() {
+        while (clock[hand].referenced) {
+            clock[hand].referenced = false;
+            hand = (hand + 1) % clock.length;
+        }
+        Entry victim = clock[hand];
+        entries.remove(victim.routingKey, victim);
+        evictions.increment();
+        int slot = hand;
+        hand = (hand + 1) % clock.length;
+        return slot;
+    }
+}
@@ -1,34 +1,142 @@
 package mb.broker.exchange;
 
 import mb.broker.exchange.trie.Trie;
+import mb.config.BrokerConfig;
 import mb.enums.ExchangeType;
+import mb.enums.TopicMatcher;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
 
 public class TopicExchange extends IExchange {
+    private static final ThreadLocal<Publisher> PUBLISHERS = ThreadLocal.withInitial(Publisher::new);
+
     private final Trie boundQueuesTrie = new Trie();
+    private final TopicMatcher matcher;
+    private final RoutingCache routingCache;    // null if routes are not cached
+
+    public TopicExchange() {
+        this(BrokerConfig.DEFAULT_EXCHANGE_ROUTING_CACHE_SIZE);
+    }
+
+    /**
+     * @param routingCacheSize the maximal number of routing keys whose resolved queues are cached, 0 to disable the
+     *                         cache
+     */
+    public TopicExchange(int routingCacheSize) {
+        this(routingCacheSize, TopicMatcher.TRIE);
+    }
+
+    /**
+     * @param routingCacheSize the maximal number of routing keys whose resolved queues are cached, 0 to disable the
+     *                         cache; ignored by the automaton matcher, which caches routes by itself
+     * @param matcher          how routing keys are matched against the binding keys: by searching the trie of
+     *                         binding keys, or by the automaton compiled from it, whose cost does not depend on the
+     *                         number of bindings
+     */
+    public TopicExchange(int routingCacheSize, TopicMatcher matcher) {
+        this.matcher = matcher;
+        this.routingCache = routingCacheSize > 0 && matcher == TopicMatcher.TRIE
+                ? new RoutingCache(routingCacheSize)
+                : null;
+    }
+
     @Override
     public ExchangeType getType() {
         return ExchangeType.TOPIC;
     }
 
+    public TopicMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Returns the counters of the routing cache.
+     *
+     * @return the counters, all 0 if the cache is disabled
+     */
+    public RoutingCache.Stats getRoutingCacheStats() {
+        return routingCache != null ? routingCache.getStats() : new RoutingCache.Stats(0, 0, 0);
+    }
+
     @Override
     void bindQueueHook(String bindingKey, BlockingQueue<String> queue) {
         boundQueuesTrie.insert(bindingKey, queue);
     }
 
     @Override
-    public void publishMsgHook(String routingKey, String message) {
-        List<BlockingQueue<String>> targetQueues = boundQueuesTrie.search(routingKey);
-        targetQueues.forEach(queue -> {
-            try {
-                queue.put(message);
-            } catch (InterruptedException e) {
-                System.err.printf("Server error: " +
-                        "Failed to put message '%s' into queue of fanout exchange\n", message);
-            }
-        });
+    boolean unbindQueueHook(String bindingKey, BlockingQueue<String> queue) {
+        if (!boundQueuesTrie.remove(bindingKey, queue)) {
+            return false;
+        }
+        clearRoutingCache();
+        return true;
     }
 
+    @Override
+    void removeQueueHook(BlockingQueue<String> queue) {
+        if (boundQueuesTrie.removeAll(queue) > 0) {
+            clearRoutingCache();
+        }
+    }
+
+    /**
+     * Without a routing cache, collects the matching queues into a reused list instead of resolving a new one, so that
+     * a publish to a single queue does not allocate. With a cache or the automaton matcher, the resolved routes are
+     * used as usual.
+     */
+    @Override
+    boolean publishMsgHook(String routingKey, String message) {
+        if (routingCache != null || matcher == TopicMatcher.AUTOMATON) {
+            return super.publishMsgHook(routingKey, message);
+        }
+        Publisher publisher = PUBLISHERS.get();
+        try {
+            boundQueuesTrie.forEachMatch(routingKey, publisher);
+            return publishTo(publisher.queues, routingKey, message);
+        } finally {
+            publisher.queues.clear();
+        }
+    }
+
+    @Override
+    Collection<BlockingQueue<String>> routeHook(String routingKey) {
+        if (matcher == TopicMatcher.AUTOMATON) {
+            return boundQueuesTrie.getAutomaton().match(routingKey);
+        }
+        if (routingCache == null) {
+            return boundQueuesTrie.search(routingKey);
+        }
+        long epoch = boundQueuesTrie.getEpoch();
+        List<BlockingQueue<String>> queues = routingCache.get(routingKey, epoch);
+        if (queues == null) {
+            queues = boundQueuesTrie.search(routingKey);
+            routingCache.put(routingKey, epoch, queues);
+        }
+        return queues;
+    }
+
+    /**
+     * Drops the cached routes, which may still refer to unbound queues.
+     */
+    private void clearRoutingCache() {
+        if (routingCache != null) {
+            routingCache.clear(boundQueuesTrie.getEpoch());
+        }
+    }
+
+    /**
+     * Reusable action of a publish that collects the matching queues.
+     */
+    private static final class Publisher implements Consumer<BlockingQueue<String>> {
+        private final List<BlockingQueue<String>> queues = new ArrayList<>();
+
+        @Override
+        public void accept(BlockingQueue<String> queue) {
+            queues.add(queue);
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package mb.broker.exchange.trie;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns the words of binding keys as dense ids. Words are looked up by a region of a routing key, so that a key
+ * can be scanned without extracting its words.
+ * <p>
+ * Lookups do not lock and may run concurrently with {@link #intern(String)}, which must be called by one thread at a
+ * time. Ids are never reused, a lookup either sees a word with its final id or not at all.
+ */
+public final class SegmentTable {
+    public static final int UNKNOWN = -1;
+
+    private record Segment(String word, int id) {
+    }
+
+    private volatile AtomicReferenceArray<Segment> table = new AtomicReferenceArray<>(16);
+    private volatile int size;
+
+    /**
+     * Returns the id of a word, assigning the next id if the word is new.
+     *
+     * @param word the word
+     * @return the id of the word
+     */
+    int intern(String word) {
+        int id = idOf(word, 0, word.length());
+        if (id != UNKNOWN) {
+            return id;
+        }
+        AtomicReferenceArray<Segment> current = table;
+        if ((size + 1) * 2 > current.length()) {
+            // Keep the table at most half full, so that probe sequences stay short
+            AtomicReferenceArray<Segment> grown = new AtomicReferenceArray<>(current.length() * 2);
+            for (int i = 0; i < current.length(); i++) {
+                Segment segment = current.get(i);
+                if (segment != null) {
+                    place(grown, segment);
+                }
+            }
+            table = grown;
+            current = grown;
+        }
+        id = size;
+        place(current, new Segment(word, id));
+        size = id + 1;
+        return id;
+    }
+
+    /**
+     * Returns the number of interned words. All words interned before have an id below this number.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the id of the word {@code key[start, end)}.
+     *
+     * @param key   the key that contains the word
+     * @param start the index of the first char of the word
+     * @param end   the index after the last char of the word
+     * @return the id, or {@link #UNKNOWN} if the word was never interned
+     */
+    public int idOf(String key, int start, int end) {
+        AtomicReferenceArray<Segment> current = table;
+        int length = end - start;
+        int mask = current.length() - 1;
+        for (int i = spread(hash(key, start, end)) & mask; ; i = (i + 1) & mask) {
+            Segment segment = current.get(i);
+            if (segment == null) {
+                return UNKNOWN;
+            }
+            String word = segment.word();
+            if (word.length() == length && key.regionMatches(start, word, 0, length)) {
+                return segment.id();
+            }
+        }
+    }
+
+    private static void place(AtomicReferenceArray<Segment> table, Segment segment) {
+        int mask = table.length() - 1;
+        int i = spread(segment.word().hashCode()) & mask;
+        while (table.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        table.set(i, segment);
+    }
+
+    /**
+     * Computes the hash of a region of a key, which equals the {@link String#hashCode()} of the region.
+     */
+    static int hash(String key, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        return h;
+    }
+
+    static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,239 @@
+package mb.broker.exchange.trie;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Deterministic automaton that matches routing keys against the bindings of a {@link Trie} snapshot.
+ * <p>
+ * A state of the automaton is a set of trie nodes, namely the partial matches of a prefix of the routing key, and
+ * knows the queues that match if the key ends in it. States are compiled lazily: the first time a word leads out of a
+ * state, the next state is computed from the trie and the transition is cached. Matching a key therefore costs one
+ * transition lookup per word, no matter how many bindings, or how many "#" wildcards, the trie holds.
+ * <p>
+ * Words are identified by their id in the {@link SegmentTable} of the trie. All words that no binding uses lead to
+ * the same state, so they share one transition. If the number of compiled states exceeds {@link #MAX_STATES}, the
+ * states are discarded and compiled anew, which bounds the memory of adversarial key sets.
+ */
+public final class TopicAutomaton {
+    static final int MAX_STATES = 10_000;
+
+    private final TrieNode root;
+    private final SegmentTable segments;
+    private final int segmentCount;     // Words with a higher id are not used by the bindings of the snapshot
+    private final Map<Set<TrieNode>, State> states = new HashMap<>();  // guarded by this
+    private volatile State start;
+
+    /**
+     * @param root          the root of the trie snapshot
+     * @param segments      the words of the trie, which must include all words of the snapshot
+     * @param segmentCount  the number of words of the trie when the snapshot was taken
+     */
+    TopicAutomaton(TrieNode root, SegmentTable segments, int segmentCount) {
+        this.root = root;
+        this.segments = segments;
+        this.segmentCount = segmentCount;
+        synchronized (this) {
+            this.start = state(List.of(root));
+        }
+    }
+
+    /**
+     * Returns the root of the trie snapshot that this automaton matches against.
+     */
+    TrieNode root() {
+        return root;
+    }
+
+    /**
+     * Returns the queues bound to a routing key. Once the states the key passes through are compiled, this does not
+     * allocate or lock.
+     *
+     * @param key the routing key
+     * @return the matching queues, an unmodifiable list without duplicates
+     */
+    public List<BlockingQueue<String>> match(String key) {
+        // Like String.split, ignore trailing empty words
+        int end = key.length();
+        while (end > 0 && key.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        State state = start;
+        for (int wordStart = 0; wordStart < end && state.nodes.length > 0; ) {
+            int wordEnd = key.indexOf('.', wordStart);
+            if (wordEnd < 0 || wordEnd > end) {
+                wordEnd = end;
+            }
+            int id = segments.idOf(key, wordStart, wordEnd);
+            if (id >= segmentCount) {
+                id = SegmentTable.UNKNOWN;
+            }
+            State next = id == SegmentTable.UNKNOWN ? state.unknownWord : state.transitions.get(id);
+            if (next == null) {
+                next = compileTransition(state, id, key, wordStart, wordEnd);
+            }
+            state = next;
+            wordStart = wordEnd + 1;
+        }
+        return state.matches;
+    }
+
+    /**
+     * Returns the number of states compiled since the automaton was created or last reset.
+     */
+    public synchronized int getStateCount() {
+        return states.size();
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    /**
+     * Computes and caches the transition of a state for a word.
+     *
+     * @param state the state
+     * @param id    the id of the word, or {@link SegmentTable#UNKNOWN}
+     * @param key   the key that contains the word, which is {@code key[start, end)}
+     */
+    private synchronized State compileTransition(State state, int id, String key, int start, int end) {
+        State next = id == SegmentTable.UNKNOWN ? state.unknownWord : state.transitions.get(id);
+        if (next != null) {
+            return next;    // Compiled concurrently
+        }
+        if (states.size() >= MAX_STATES) {
+            states.clear();
+            this.start = state(List.of(root));
+        }
+
+        // Same steps as a trie search
+        List<TrieNode> partialMatches = new ArrayList<>();
+        for (TrieNode current : state.nodes) {
+            addIfAbsent(partialMatches, current.child(key, start, end));    // exact
+            addIfAbsent(partialMatches, current.child("*"));                // one
+            TrieNode matchZeroOrMore = current.child("#");                  // zero
+            if (matchZeroOrMore != null) {
+                addIfAbsent(partialMatches, matchZeroOrMore);
+                addIfAbsent(partialMatches, matchZeroOrMore.child(key, start, end));    // more (match word eventually)
+            }
+        }
+        next = state(partialMatches);
+
+        if (id == SegmentTable.UNKNOWN) {
+            state.unknownWord = next;
+        } else {
+            state.transitions = state.transitions.with(id, next);
+        }
+        return next;
+    }
+
+    /**
+     * Returns the state of a set of partial matches, creating it if necessary. Must be called while holding the lock.
+     */
+    private State state(List<TrieNode> partialMatches) {
+        Set<TrieNode> key = Collections.newSetFromMap(new IdentityHashMap<>());
+        key.addAll(partialMatches);
+        return states.computeIfAbsent(key, k -> new State(partialMatches));
+    }
+
+    private static void addIfAbsent(List<TrieNode> list, TrieNode node) {
+        if (node == null) {
+            return;
+        }
+        for (TrieNode n : list) {
+            if (n == node) {
+                return;
+            }
+        }
+        list.add(node);
+    }
+
+    private static final class State {
+        private final TrieNode[] nodes;
+        private final List<BlockingQueue<String>> matches;
+        private volatile Transitions transitions = Transitions.EMPTY;
+        private volatile State unknownWord;
+
+        State(List<TrieNode> partialMatches) {
+            nodes = partialMatches.toArray(new TrieNode[0]);
+
+            // After the last word, "#" wildcards match zero further words
+            Set<BlockingQueue<String>> queues = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<BlockingQueue<String>> matches = new ArrayList<>();
+            for (TrieNode node : nodes) {
+                addQueues(node, queues, matches);
+            }
+            for (TrieNode node : nodes) {
+                TrieNode matchZeroOrMore = node.child("#");
+                if (matchZeroOrMore != null) {
+                    addQueues(matchZeroOrMore, queues, matches);
+                }
+            }
+            this.matches = List.copyOf(matches);
+        }
+
+        private static void addQueues(TrieNode node, Set<BlockingQueue<String>> queues,
+                                      List<BlockingQueue<String>> matches) {
+            for (BlockingQueue<String> queue : node.boundQueues()) {
+                if (queues.add(queue)) {
+                    matches.add(queue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable open-addressing table from word ids to states, replaced as a whole when a transition is added.
+     */
+    private static final class Transitions {
+        static final Transitions EMPTY = new Transitions(new int[0], new State[0], 0);
+
+        private final int[] keys;       // id + 1, 0 marks a free slot; length is 0 or a power of 2
+        private final State[] targets;
+        private final int size;
+
+        private Transitions(int[] keys, State[] targets, int size) {
+            this.keys = keys;
+            this.targets = targets;
+            this.size = size;
+        }
+
+        State get(int id) {
+            if (keys.length == 0) {
+                return null;
+            }
+            int key = id + 1;
+            int mask = keys.length - 1;
+            for (int i = SegmentTable.spread(key * 0x9E3779B9) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return targets[i];
+                }
+                if (keys[i] == 0) {
+                    return null;
+                }
+            }
+        }
+
+        Transitions with(int id, State target) {
+            // Keep the table at most half full, so that probe sequences stay short
+            int capacity = Integer.highestOneBit((size + 1) * 2 - 1) << 1;
+            Transitions copy = new Transitions(new int[capacity], new State[capacity], size + 1);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    copy.place(keys[i], targets[i]);
+                }
+            }
+            copy.place(id + 1, target);
+            return copy;
+        }
+
+        private void place(int key, State target) {
+            int mask = keys.length - 1;
+            int i = SegmentTable.spread(key * 0x9E3779B9) & mask;
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            targets[i] = target;
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package mb.broker.exchange.trie;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * A Trie implementation for storing and matching hierarchical keys with support for wildcard pattern matching.
@@ -20,48 +19,128 @@ import java.util.concurrent.BlockingQueue;
  *         <li>"*" matches exactly one segment</li>
  *         <li>"#" matches zero or more segments, including an empty sequence.</li>
  *     </ul>
+ * </ul>
+ * Searches do not lock: they traverse an immutable snapshot of the trie, read from a single volatile reference.
+ * Inserts copy the path to the bound node and publish a new snapshot.
  */
 public class Trie {
-    private final TrieNode root = new TrieNode();
+    private static final ThreadLocal<Matcher> MATCHERS = ThreadLocal.withInitial(Matcher::new);
+
+    private volatile TrieNode root = TrieNode.EMPTY;
+    private final AtomicLong epoch = new AtomicLong();
+    private volatile SegmentTable segments = new SegmentTable();
+    private volatile TopicAutomaton automaton;  // compiled from an older snapshot, or null
+
+    // Bookkeeping of the bindings, guarded by this
+    private final Map<BlockingQueue<String>, Set<String>> bindingKeys = new IdentityHashMap<>();
+    // Dense ids of the bound queues, which index the visited-queue bitmap of a search
+    private final Map<BlockingQueue<String>, Integer> queueIds = new IdentityHashMap<>();
+    private final Deque<Integer> freeQueueIds = new ArrayDeque<>();
+    private int nextQueueId = 0;
+    private final Map<String, Integer> bindingsPerWord = new HashMap<>();
 
     /**
      * Inserts a key and binds it to a queue. The key may contain wildcards "*" and "#".
+     * <p>
+     * The path to the bound node is copied and the new root is published at once, so concurrent searches see either
+     * all or none of the binding. Inserts and removals are serialized.
      *
      * @param key   the key to insert
      * @param queue the queue to bind to the key
      */
-    public void insert(String key, BlockingQueue<String> queue) {
+    public synchronized void insert(String key, BlockingQueue<String> queue) {
         validateKey(key);
+        String[] words = key.split("\\.");
+        if (!bindingKeys.computeIfAbsent(queue, q -> new HashSet<>()).add(String.join(".", words))) {
+            return;     // Already bound
+        }
+        int queueId = queueIds.computeIfAbsent(queue, q -> freeQueueIds.isEmpty() ? nextQueueId++ : freeQueueIds.pop());
+        for (String word : new HashSet<>(Arrays.asList(words))) {
+            bindingsPerWord.merge(word, 1, Integer::sum);
+            segments.intern(word);  // Before the snapshot that uses the word is published
+        }
+        root = insert(root, words, 0, queue, queueId);
+        epoch.incrementAndGet();    // After the binding is visible, so routes resolved before cannot outlive it
+    }
 
-        TrieNode current = root;
-        TrieNode child;
-        String[] keySplit = key.split("\\.");
+    /**
+     * Removes the binding of a queue to a key. Nodes that are left without queues and children are removed, so the
+     * trie only holds the paths of live bindings.
+     *
+     * @param key   the key the queue is bound to
+     * @param queue the queue to unbind
+     * @return true if the queue was bound to the key, false otherwise
+     */
+    public synchronized boolean remove(String key, BlockingQueue<String> queue) {
+        String[] words = key.split("\\.");
+        Set<String> keys = bindingKeys.get(queue);
+        if (keys == null || !keys.remove(String.join(".", words))) {
+            return false;
+        }
+        TrieNode newRoot = remove(root, words, 0, queue);
+        root = newRoot != null ? newRoot : TrieNode.EMPTY;
+        epoch.incrementAndGet();
 
-        // Go to matching leaf node or create path to new leaf node
-        for (String word : keySplit) {
-            try {
-                current.lock.writeLock().lock();
-                child = current.children.get(word);
-                if (child == null) {
-                    child = new TrieNode();
-                    current.children.put(word, child);
-                    if ("#".equals(word)) {
-                        child.children.put("#", child);
-                    }
-                }
-            } finally {
-                current.lock.writeLock().unlock();
-            }
-            current = child;
+        // Release the id of the queue and the words that are no longer used by any binding
+        if (keys.isEmpty()) {
+            bindingKeys.remove(queue);
+            freeQueueIds.push(queueIds.remove(queue));
+        }
+        for (String word : new HashSet<>(Arrays.asList(words))) {
+            bindingsPerWord.computeIfPresent(word, (w, count) -> count > 1 ? count - 1 : null);
         }
+        if (segments.size() > 2 * bindingsPerWord.size() + 64) {
+            // After the new root is published, so that the words of every snapshot read before this table are in it
+            SegmentTable compacted = new SegmentTable();
+            bindingsPerWord.keySet().forEach(compacted::intern);
+            segments = compacted;
+        }
+        return true;
+    }
 
-        // Add queue
-        current.lock.writeLock().lock();
-        try {
-            current.boundQueues.add(queue);
-        } finally {
-            current.lock.writeLock().unlock();
+    /**
+     * Removes all bindings of a queue.
+     *
+     * @param queue the queue to unbind
+     * @return the number of removed bindings
+     */
+    public synchronized int removeAll(BlockingQueue<String> queue) {
+        Set<String> keys = bindingKeys.get(queue);
+        if (keys == null) {
+            return 0;
         }
+        List<String> boundKeys = List.copyOf(keys);
+        boundKeys.forEach(key -> remove(key, queue));
+        return boundKeys.size();
+    }
+
+    /**
+     * Returns the binding epoch, which changes whenever a queue is bound or unbound. A search result is valid as long as the
+     * epoch read before the search is current.
+     *
+     * @return the binding epoch
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Returns the automaton that matches routing keys against the current bindings. The automaton is replaced on the
+     * first call after a binding changed; it compiles its states while it matches keys.
+     *
+     * @return the automaton of the current snapshot
+     */
+    public TopicAutomaton getAutomaton() {
+        TrieNode snapshot = root;
+        TopicAutomaton current = automaton;
+        if (current == null || current.root() != snapshot) {
+            // Racing callers may each compile one, the automaton of a stale snapshot is replaced by the next call.
+            // The segments are read after the root, so they include all words of the snapshot.
+            SegmentTable snapshotSegments = segments;
+            current = new TopicAutomaton(snapshot, snapshotSegments, snapshotSegments.size());
+            automaton = current;
+        }
+        return current;
     }
 
     /**
@@ -71,48 +150,84 @@ public class Trie {
      * @return a list of queues bound to the key, empty if no matching queues are found.
      */
     public List<BlockingQueue<String>> search(String key) {
+        List<BlockingQueue<String>> matches = new ArrayList<>();
+        forEachMatch(key, matches::add);
+        return Collections.unmodifiableList(matches);
+    }
+
+    /**
+     * Performs an action for each queue bound to a given key, without allocating: the key is scanned in place, and
+     * the partial matches and visited queues are tracked in buffers of the calling thread. Each queue is visited once.
+     * <p>
+     * The action must not search the same trie.
+     *
+     * @param key    the key to search for
+     * @param action the action to perform for each matching queue
+     */
+    public void forEachMatch(String key, Consumer<? super BlockingQueue<String>> action) {
         assert !key.isBlank();
-        String[] keySplit = key.split("\\.");
-
-        List<TrieNode> currentPartialMatches = new ArrayList<>();
-        currentPartialMatches.add(root);
-        for (String word : keySplit) {
-            Queue<TrieNode> previousPartialMatches = new LinkedList<>(currentPartialMatches);
-            currentPartialMatches.clear();
-            while (!previousPartialMatches.isEmpty()) {
-                TrieNode current = previousPartialMatches.poll();
-                try {
-                    current.lock.readLock().lock();
+        Matcher matcher = MATCHERS.get();
+        if (matcher.inUse) {
+            matcher = new Matcher();    // Nested search from an action, must not clobber the buffers
+        }
+        matcher.inUse = true;
+        try {
+            matcher.match(root, key, action);   // A consistent snapshot, bindings inserted during the search are not seen
+        } finally {
+            matcher.inUse = false;
+        }
+    }
 
-                    // Match exact key segment and wildcards
-                    addIfNotNull(currentPartialMatches, current.children.get(word));    // exact
-                    addIfNotNull(currentPartialMatches, current.children.get("*"));     // one
-                    TrieNode matchZeroOrMore = addIfNotNull(currentPartialMatches, current.children.get("#"));    // zero
-                    if (matchZeroOrMore != null) {
-                        addIfNotNull(currentPartialMatches, matchZeroOrMore.children.get(word));  // more (match word eventually)
-                    }
-                } finally {
-                    current.lock.readLock().unlock();
-                }
-            }
+    /**
+     * Returns a copy of a node with the remaining words of a key inserted below it.
+     *
+     * @param node    the node that matches the first {@code depth} words of the key
+     * @param words   the words of the key
+     * @param depth   the number of words matched by the node
+     * @param queue   the queue to bind to the key
+     * @param queueId the id of the queue within the trie
+     * @return the copy of the node
+     */
+    private static TrieNode insert(TrieNode node, String[] words, int depth, BlockingQueue<String> queue,
+                                   int queueId) {
+        if (depth == words.length) {
+            return node.withQueue(queue, queueId);
+        }
+        String word = words[depth];
+        TrieNode child = node.child(word);  // Keys are validated, so "#" is never followed by "#"
+        if (child == null) {
+            child = TrieNode.newChild(word);
         }
+        return node.withChild(word, insert(child, words, depth + 1, queue, queueId));
+    }
 
-        // After iterating over all segments, include matches from "#" wildcards
-        List<TrieNode> finalMatches = new ArrayList<>(currentPartialMatches);
-        for (TrieNode current : currentPartialMatches) {
-            try {
-                current.lock.readLock().lock();
-                addIfNotNull(finalMatches, current.children.get("#"));
-            } finally {
-                current.lock.readLock().unlock();
+    /**
+     * Returns a copy of a node with a queue unbound from the remaining words of a key below it.
+     *
+     * @param node  the node that matches the first {@code depth} words of the key
+     * @param words the words of the key
+     * @param depth the number of words matched by the node
+     * @param queue the queue to unbind
+     * @return the copy of the node, the node itself if the queue is not bound to the key, or null if the copy would
+     * be empty
+     */
+    private static TrieNode remove(TrieNode node, String[] words, int depth, BlockingQueue<String> queue) {
+        TrieNode newNode;
+        if (depth == words.length) {
+            newNode = node.withoutQueue(queue);
+        } else {
+            String word = words[depth];
+            TrieNode child = node.child(word);
+            if (child == null) {
+                return node;
+            }
+            TrieNode newChild = remove(child, words, depth + 1, queue);
+            if (newChild == child) {
+                return node;
             }
+            newNode = newChild != null ? node.withChild(word, newChild) : node.withoutChild(word);
         }
-
-        // Collect queues from all matched nodes
-        return finalMatches.stream()
-                .flatMap(n -> n.boundQueues.stream())
-                .distinct() // Ensure uniqueness
-                .toList();
+        return newNode.isEmpty() ? null : newNode;
     }
 
     /**
@@ -146,16 +261,112 @@ public class Trie {
     }
 
     /**
-     * Adds a node to the list if it is not null.
-     *
-     * @param list the list to add to
-     * @param node the node to add
-     * @return the node
+     * Reusable buffers of a search. The partial matches after each word are kept in {@code frontier}, deduplicated
+     * by identity, and the queues that were already visited are marked in a bitmap indexed by the queue ids.
      */
-    private TrieNode addIfNotNull(List<TrieNode> list, TrieNode node) {
-        if (node != null) {
-            list.add(node);
+    private static final class Matcher {
+        private TrieNode[] frontier = new TrieNode[16];
+        private TrieNode[] next = new TrieNode[16];
+        private int frontierSize;
+        private int nextSize;
+        private long[] visited = new long[1];
+        private int[] visitedIds = new int[16];
+        private int visitedCount;
+        private boolean inUse;
+
+        void match(TrieNode root, String key, Consumer<? super BlockingQueue<String>> action) {
+            // Like String.split, ignore trailing empty words
+            int end = key.length();
+            while (end > 0 && key.charAt(end - 1) == '.') {
+                end--;
+            }
+
+            frontier[0] = root;
+            frontierSize = 1;
+            for (int start = 0; start < end; ) {
+                int wordEnd = key.indexOf('.', start);
+                if (wordEnd < 0 || wordEnd > end) {
+                    wordEnd = end;
+                }
+                nextSize = 0;
+                for (int i = 0; i < frontierSize; i++) {
+                    TrieNode current = frontier[i];
+
+                    // Match exact key segment and wildcards
+                    addNext(current.child(key, start, wordEnd));    // exact
+                    addNext(current.child("*"));                    // one
+                    TrieNode matchZeroOrMore = current.child("#");  // zero
+                    if (matchZeroOrMore != null) {
+                        addNext(matchZeroOrMore);
+                        addNext(matchZeroOrMore.child(key, start, wordEnd));    // more (match word eventually)
+                    }
+                }
+                swap();
+                start = wordEnd + 1;
+            }
+
+            try {
+                for (int i = 0; i < frontierSize; i++) {
+                    visit(frontier[i], action);
+                }
+                // After iterating over all segments, include matches from "#" wildcards
+                for (int i = 0; i < frontierSize; i++) {
+                    TrieNode matchZeroOrMore = frontier[i].child("#");
+                    if (matchZeroOrMore != null) {
+                        visit(matchZeroOrMore, action);
+                    }
+                }
+            } finally {
+                Arrays.fill(frontier, 0, frontierSize, null);   // Do not retain stale snapshots
+                for (int i = 0; i < visitedCount; i++) {
+                    visited[visitedIds[i] >>> 6] = 0;
+                }
+                visitedCount = 0;
+            }
+        }
+
+        private void addNext(TrieNode node) {
+            if (node == null) {
+                return;
+            }
+            for (int i = 0; i < nextSize; i++) {
+                if (next[i] == node) {
+                    return;
+                }
+            }
+            if (nextSize == next.length) {
+                next = Arrays.copyOf(next, nextSize * 2);
+            }
+            next[nextSize++] = node;
+        }
+
+        private void swap() {
+            Arrays.fill(frontier, 0, frontierSize, null);
+            TrieNode[] tmp = frontier;
+            frontier = next;
+            frontierSize = nextSize;
+            next = tmp;
+            nextSize = 0;
+        }
+
+        private void visit(TrieNode node, Consumer<? super BlockingQueue<String>> action) {
+            int[] ids = node.queueIds();
+            for (int i = 0; i < ids.length; i++) {
+                int id = ids[i];
+                if (id >>> 6 >= visited.length) {
+                    visited = Arrays.copyOf(visited, Math.max(visited.length * 2, (id >>> 6) + 1));
+                }
+                long bit = 1L << id;
+                if ((visited[id >>> 6] & bit) != 0) {
+                    continue;
+                }
+                visited[id >>> 6] |= bit;
+                if (visitedCount == visitedIds.length) {
+                    visitedIds = Arrays.copyOf(visitedIds, visitedCount * 2);
+                }
+                visitedIds[visitedCount++] = id;
+                action.accept(node.boundQueues().get(i));
+            }
         }
-        return node;
     }
 }
@@ -1,13 +1,187 @@
 package mb.broker.exchange.trie;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
 
-public class TrieNode {
-    protected final ConcurrentMap<String, TrieNode> children = new ConcurrentHashMap<>();
-    protected List<BlockingQueue<String>> boundQueues = new ArrayList<>();
-    protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-}
+/**
+ * Immutable node of a {@link Trie}. Nodes are never modified once they are reachable from the root of the trie;
+ * bindings are added by copying the path from the root to the bound node.
+ * <p>
+ * A node reached by the word "#" matches zero or more words. Instead of being its own "#" child, which could not be
+ * expressed by path copying, such a node is flagged and {@link #child(String)} returns the node itself for "#".
+ * <p>
+ * Children are kept in an open-addressing table keyed by their word, so that a child can be looked up by a region of
+ * a routing key without extracting the word first.
+ */
+public final class TrieNode {
+    static final TrieNode EMPTY = new TrieNode(false, new String[0], new TrieNode[0], List.of(), new int[0]);
+
+    private final boolean zeroOrMore;
+    private final String[] words;       // table of child words, null marks a free slot; length is 0 or a power of 2
+    private final TrieNode[] children;  // children[i] is the child of words[i]
+    private final List<BlockingQueue<String>> boundQueues;
+    private final int[] queueIds;       // queueIds[i] is the id of boundQueues.get(i) within the trie
+
+    private TrieNode(boolean zeroOrMore, String[] words, TrieNode[] children, List<BlockingQueue<String>> boundQueues,
+                     int[] queueIds) {
+        this.zeroOrMore = zeroOrMore;
+        this.words = words;
+        this.children = children;
+        this.boundQueues = boundQueues;
+        this.queueIds = queueIds;
+    }
+
+    /**
+     * Returns the child that extends the key pattern of this node by a word.
+     *
+     * @param word the word
+     * @return the child, or null if there is none
+     */
+    TrieNode child(String word) {
+        return child(word, 0, word.length());
+    }
+
+    /**
+     * Returns the child that extends the key pattern of this node by the word {@code key[start, end)}.
+     *
+     * @param key   the key that contains the word
+     * @param start the index of the first char of the word
+     * @param end   the index after the last char of the word
+     * @return the child, or null if there is none
+     */
+    TrieNode child(String key, int start, int end) {
+        int length = end - start;
+        if (zeroOrMore && length == 1 && key.charAt(start) == '#') {
+            return this;
+        }
+        if (words.length == 0) {
+            return null;
+        }
+        int mask = words.length - 1;
+        for (int i = SegmentTable.spread(SegmentTable.hash(key, start, end)) & mask; ; i = (i + 1) & mask) {
+            String word = words[i];
+            if (word == null) {
+                return null;
+            }
+            if (word.length() == length && key.regionMatches(start, word, 0, length)) {
+                return children[i];
+            }
+        }
+    }
+
+    List<BlockingQueue<String>> boundQueues() {
+        return boundQueues;
+    }
+
+    int[] queueIds() {
+        return queueIds;
+    }
 
+    /**
+     * Returns a copy of this node with a child replaced or added.
+     */
+    TrieNode withChild(String word, TrieNode child) {
+        if (child(word) == child) {
+            return this;
+        }
+        int count = 1;
+        for (String w : words) {
+            if (w != null && !w.equals(word)) count++;
+        }
+        // Keep the table at most half full, so that probe sequences stay short
+        int capacity = Integer.highestOneBit(count * 2 - 1) << 1;
+        String[] newWords = new String[capacity];
+        TrieNode[] newChildren = new TrieNode[capacity];
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != null && !words[i].equals(word)) {
+                place(newWords, newChildren, words[i], children[i]);
+            }
+        }
+        place(newWords, newChildren, word, child);
+        return new TrieNode(zeroOrMore, newWords, newChildren, boundQueues, queueIds);
+    }
+
+    /**
+     * Returns a copy of this node with a queue bound to it, or this node if the queue is already bound.
+     *
+     * @param queue   the queue
+     * @param queueId the id of the queue within the trie
+     */
+    TrieNode withQueue(BlockingQueue<String> queue, int queueId) {
+        if (boundQueues.contains(queue)) {
+            return this;
+        }
+        int[] newQueueIds = Arrays.copyOf(queueIds, queueIds.length + 1);
+        newQueueIds[queueIds.length] = queueId;
+        return new TrieNode(zeroOrMore, words, children, Stream.concat(boundQueues.stream(), Stream.of(queue)).toList(),
+                newQueueIds);
+    }
+
+    /**
+     * Returns a copy of this node without the child of a word, or this node if there is no such child.
+     */
+    TrieNode withoutChild(String word) {
+        if (child(word) == null) {
+            return this;
+        }
+        int count = -1;
+        for (String w : words) {
+            if (w != null) count++;
+        }
+        if (count == 0) {
+            return new TrieNode(zeroOrMore, EMPTY.words, EMPTY.children, boundQueues, queueIds);
+        }
+        int capacity = Integer.highestOneBit(count * 2 - 1) << 1;
+        String[] newWords = new String[capacity];
+        TrieNode[] newChildren = new TrieNode[capacity];
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != null && !words[i].equals(word)) {
+                place(newWords, newChildren, words[i], children[i]);
+            }
+        }
+        return new TrieNode(zeroOrMore, newWords, newChildren, boundQueues, queueIds);
+    }
+
+    /**
+     * Returns a copy of this node without a bound queue, or this node if the queue is not bound to it.
+     */
+    TrieNode withoutQueue(BlockingQueue<String> queue) {
+        int index = boundQueues.indexOf(queue);
+        if (index < 0) {
+            return this;
+        }
+        List<BlockingQueue<String>> newBoundQueues = new ArrayList<>(boundQueues);
+        newBoundQueues.remove(index);
+        int[] newQueueIds = new int[queueIds.length - 1];
+        System.arraycopy(queueIds, 0, newQueueIds, 0, index);
+        System.arraycopy(queueIds, index + 1, newQueueIds, index, newQueueIds.length - index);
+        return new TrieNode(zeroOrMore, words, children, List.copyOf(newBoundQueues), newQueueIds);
+    }
+
+    /**
+     * Checks whether this node neither binds queues nor has children, so that it can be removed from the trie.
+     */
+    boolean isEmpty() {
+        return boundQueues.isEmpty() && children.length == 0;
+    }
+
+    /**
+     * Returns a new, empty child node for a word.
+     */
+    static TrieNode newChild(String word) {
+        return new TrieNode("#".equals(word), EMPTY.words, EMPTY.children, List.of(), EMPTY.queueIds);
+    }
+
+    private static void place(String[] words, TrieNode[] children, String word, TrieNode child) {
+        int mask = words.length - 1;
+        int i = SegmentTable.spread(word.hashCode()) & mask;
+        while (words[i] != null) {
+            i = (i + 1) & mask;
+        }
+        words[i] = word;
+        children[i] = child;
+    }
+}
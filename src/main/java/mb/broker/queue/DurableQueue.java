@@ -0,0 +1,204 @@
+package mb.broker.queue;
+
+import mb.broker.queue.log.SegmentLog;
+
+import java.io.IOException;
+import java.util.*;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * {@link MessageQueue} whose messages are appended to a {@link SegmentLog}, so they survive a restart of the broker.
+ * Messages are held in memory as well and delivered from there; the log is only read when the queue is restored.
+ * <p>
+ * A message counts as consumed once it is {@link #acknowledge(List) acknowledged} or discarded by the overflow policy.
+ * The log is told the offset below which all messages are consumed, so on restart the queue is restored with exactly
+ * the messages that were not consumed, including those that were delivered but not yet acknowledged.
+ * <p>
+ * Messages are matched to their offsets by identity, so the queue does not support {@link #remove(Object)}.
+ */
+public class DurableQueue extends MessageQueue {
+    private final SegmentLog log;
+    private final ArrayDeque<Long> queuedOffsets = new ArrayDeque<>();    // guarded by the queue lock
+    private final Object acknowledgements = new Object();
+    private final Map<String, Deque<Long>> takenOffsets = new IdentityHashMap<>();  // guarded by acknowledgements
+    private final Set<Long> consumedOffsets = new HashSet<>();           // guarded by acknowledgements
+    private long firstUnconsumedOffset;                                  // guarded by acknowledgements
+
+    private DurableQueue(SegmentLog log, QueueLimits limits, long blockTimeoutMs) {
+        super(limits, blockTimeoutMs);
+        this.log = log;
+        this.firstUnconsumedOffset = log.getCheckpointedOffset();
+    }
+
+    /**
+     * Creates the queue of a log and restores the messages that the log holds beyond its last checkpoint.
+     *
+     * @param log            the log of the queue
+     * @param limits         the limits of the queue
+     * @param blockTimeoutMs how long the {@code BLOCK} policy waits for space before it rejects a message
+     * @return the queue
+     */
+    public static DurableQueue open(SegmentLog log, QueueLimits limits, long blockTimeoutMs) {
+        DurableQueue queue = new DurableQueue(log, limits, blockTimeoutMs);
+        queue.restoreFromLog();
+        return queue;
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    @Override
+    public boolean publish(String message) throws InterruptedException {
+        boolean published = super.publish(message);
+        if (published) {
+            log.commit();
+        }
+        return published;
+    }
+
+    @Override
+    public int publishAll(List<String> messages) throws InterruptedException {
+        int published = super.publishAll(messages);
+        if (published > 0) {
+            log.commit();
+        }
+        return published;
+    }
+
+    @Override
+    public boolean tryPublish(String key, String message) {
+        boolean published = super.tryPublish(key, message);
+        if (published) {
+            log.commit();
+        }
+        return published;
+    }
+
+    @Override
+    public int tryPublishAll(String key, List<String> messages) {
+        int published = super.tryPublishAll(key, messages);
+        if (published > 0) {
+            log.commit();
+        }
+        return published;
+    }
+
+    @Override
+    public Reservation reserve(String key, List<String> messages) {
+        Reservation reservation = super.reserve(key, messages);
+        return new Reservation(reservation.count(), appended -> {
+            reservation.commit(appended);
+            if (appended > 0) {
+                log.commit();
+            }
+        });
+    }
+
+    @Override
+    public void acknowledge(List<String> messages) {
+        synchronized (acknowledgements) {
+            for (String message : messages) {
+                Deque<Long> offsets = takenOffsets.get(message);
+                if (offsets == null) {
+                    continue;
+                }
+                consume(offsets.pollFirst());
+                if (offsets.isEmpty()) {
+                    takenOffsets.remove(message);
+                }
+            }
+            log.setConsumedOffset(firstUnconsumedOffset);
+        }
+    }
+
+    @Override
+    public void replicate(String key, List<String> messages) {
+        super.replicate(key, messages);
+        log.commit();
+    }
+
+    /**
+     * Only removes the message if it is at the head of the queue, for the same reason that {@link #remove(Object)} is
+     * not supported.
+     */
+    @Override
+    public boolean discard(String message) {
+        if (!message.equals(peek())) {
+            return false;
+        }
+        acknowledge(List.of(poll()));
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("Durable queues do not support removing arbitrary messages");
+    }
+
+    // ==============HOOKS==============
+    @Override
+    protected boolean appending(String message) {
+        try {
+            queuedOffsets.addLast(log.append(message));
+            return true;
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to append message to the log: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    protected void removed(String message, boolean taken) {
+        long offset = queuedOffsets.removeFirst();
+        synchronized (acknowledgements) {
+            if (taken) {
+                takenOffsets.computeIfAbsent(message, m -> new ArrayDeque<>(1)).addLast(offset);
+            } else {
+                consume(offset);
+                log.setConsumedOffset(firstUnconsumedOffset);
+            }
+        }
+    }
+
+    @Override
+    protected void requeued(String message) {
+        Long offset = null;
+        synchronized (acknowledgements) {
+            Deque<Long> offsets = takenOffsets.get(message);
+            if (offsets != null) {
+                offset = offsets.pollLast();
+                if (offsets.isEmpty()) {
+                    takenOffsets.remove(message);
+                }
+            }
+        }
+        if (offset == null) {   // Not taken from this queue, so it is not in the log yet
+            try {
+                offset = log.append(message);
+            } catch (IOException e) {
+                logErrorMsg(e, "Failed to append requeued message to the log: %s", e.getMessage());
+                offset = -1L;
+            }
+        }
+        queuedOffsets.addFirst(offset);
+    }
+
+    private void restoreFromLog() {
+        List<String> messages = new ArrayList<>();
+        log.read(firstUnconsumedOffset, (offset, message) -> {
+            queuedOffsets.addLast(offset);
+            messages.add(message);
+        });
+        restore(messages);
+    }
+
+    private void consume(long offset) {
+        consumedOffsets.add(offset);
+        while (consumedOffsets.remove(firstUnconsumedOffset)) {
+            firstUnconsumedOffset++;
+        }
+    }
+}
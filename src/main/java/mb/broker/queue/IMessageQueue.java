@@ -0,0 +1,219 @@
+package mb.broker.queue;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * Interface for broker queues. Extends {@link BlockingQueue} with bulk operations, so exchanges and subscribers can
+ * move many messages with a single synchronization, and with publish operations that honour the
+ * {@link QueueLimits limits} of the queue.
+ */
+public interface IMessageQueue extends BlockingQueue<String> {
+
+    /**
+     * Returns the limits of this queue.
+     *
+     * @return the limits, {@link QueueLimits#UNBOUNDED} by default
+     */
+    default QueueLimits getLimits() {
+        return QueueLimits.UNBOUNDED;
+    }
+
+    /**
+     * Checks whether the messages of this queue survive a restart of the broker.
+     *
+     * @return true if the queue is durable, false by default
+     */
+    default boolean isDurable() {
+        return false;
+    }
+
+    /**
+     * Appends a message, applying the overflow policy of the queue if it is full.
+     *
+     * @param message the message to append (not null)
+     * @return true if the message was appended, false if it was rejected
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    boolean publish(String message) throws InterruptedException;
+
+    /**
+     * Appends the messages in the given order with a single synchronization, applying the overflow policy of the
+     * queue to each message that does not fit. If a message is rejected, the remaining messages are rejected too, so
+     * the appended messages are always a prefix of the batch.
+     *
+     * @param messages the messages to append (not null, no null elements)
+     * @return the number of appended messages
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    int publishAll(List<String> messages) throws InterruptedException;
+
+    /**
+     * Appends a message like {@link #publish(String)}, with a key that queues made of several partitions use to pick
+     * the partition, so messages with the same key keep their order. Ignores the key by default.
+     *
+     * @param key     the partition key of the message, null if it has none
+     * @param message the message to append (not null)
+     * @return true if the message was appended, false if it was rejected
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    default boolean publish(String key, String message) throws InterruptedException {
+        return publish(message);
+    }
+
+    /**
+     * Appends messages like {@link #publishAll(List)}, with a partition key shared by all of them. Ignores the key by
+     * default.
+     *
+     * @param key      the partition key of the messages, null if they have none
+     * @param messages the messages to append (not null, no null elements)
+     * @return the number of appended messages
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    default int publishAll(String key, List<String> messages) throws InterruptedException {
+        return publishAll(messages);
+    }
+
+    /**
+     * Appends a message like {@link #publish(String, String)}, but never waits for room: the {@code BLOCK} policy
+     * rejects a message that does not fit right away, like the {@code REJECT} policy. Offers the message by default.
+     *
+     * @param key     the partition key of the message, null if it has none
+     * @param message the message to append (not null)
+     * @return true if the message was appended, false if it was rejected
+     */
+    default boolean tryPublish(String key, String message) {
+        return offer(message);
+    }
+
+    /**
+     * Appends messages like {@link #publishAll(String, List)}, but never waits for room, see
+     * {@link #tryPublish(String, String)}. Appends the messages one by one by default.
+     *
+     * @param key      the partition key of the messages, null if they have none
+     * @param messages the messages to append (not null, no null elements)
+     * @return the number of appended messages, counted from the start
+     */
+    default int tryPublishAll(String key, List<String> messages) {
+        int published = 0;
+        for (String message : messages) {
+            if (!tryPublish(key, message)) {
+                break;
+            }
+            published++;
+        }
+        return published;
+    }
+
+    /**
+     * Reserves room for messages without waiting, so that a publisher can append the same messages to several queues,
+     * each message to all of them or to none: it reserves room in every queue, then commits the reservations for the
+     * messages that all queues have room for. Other publishers cannot take reserved room, and once committed, the
+     * messages are appended regardless of the limits of the queue. The {@code DROP_HEAD} policy always has room,
+     * which it makes once the reservation is committed.
+     * <p>
+     * By default, room is reserved for all messages, which suits queues that never reject messages for lack of room,
+     * and committing the reservation publishes the messages with {@link #tryPublishAll(String, List)}.
+     *
+     * @param key      the partition key of the messages, null if they have none
+     * @param messages the messages (not null, no null elements), which must not change until the reservation is
+     *                 committed
+     * @return the reservation, which must be committed exactly once
+     */
+    default Reservation reserve(String key, List<String> messages) {
+        return new Reservation(messages.size(), count -> tryPublishAll(key, messages.subList(0, count)));
+    }
+
+    /**
+     * Waits until a message fits into the queue, as far as the overflow policy lets publishers wait, but does not
+     * append it. Lets a publisher wait for room without holding up others, e.g. before it begins a replicated change,
+     * which must not block. Returns right away by default, and for the {@code DROP_HEAD} policy, which always makes
+     * room, and the {@code REJECT} policy, which never waits.
+     *
+     * @param key      the partition key of the message, null if it has none
+     * @param message  the message (not null)
+     * @param deadline the {@link System#nanoTime()} at which to stop waiting
+     * @return false if the message does not fit by the deadline, or right away with the {@code REJECT} policy
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    default boolean awaitRoom(String key, String message, long deadline) throws InterruptedException {
+        return true;
+    }
+
+    /**
+     * Confirms that messages taken from this queue were processed by a subscriber, so the queue may forget them.
+     * Does nothing by default.
+     *
+     * @param messages the processed messages
+     */
+    default void acknowledge(List<String> messages) {
+    }
+
+    /**
+     * Returns messages that were taken from this queue but not processed (e.g. negatively acknowledged by a
+     * subscriber). Requeued messages never block and are not subject to the limits of the queue. By default, they
+     * are appended like new messages; implementations that can, return them to the head of the queue, so they are
+     * redelivered first.
+     *
+     * @param messages the messages to return, in the order they were taken
+     */
+    default void requeue(List<String> messages) {
+        messages.forEach(this::offer);
+    }
+
+    /**
+     * Appends messages that were published to the same queue on the leader, so that this queue stays a replica of it.
+     * Never blocks, and should not apply the limits of the queue: the leader already applied them, and a replica also
+     * holds the messages that subscribers of the leader took but did not acknowledge yet. By default, the messages
+     * are offered like new messages, so a bounded queue drops those that do not fit.
+     *
+     * @param key      the partition key of the messages, null if they have none
+     * @param messages the messages to append (not null, no null elements)
+     */
+    default void replicate(String key, List<String> messages) {
+        messages.forEach(this::offer);
+    }
+
+    /**
+     * Removes a message that a subscriber of the same queue on the leader acknowledged, so that this queue stays a
+     * replica of it. Unless several subscribers share the queue, messages are acknowledged in queue order, so by
+     * default, the message is only removed if it is at the head of the queue.
+     *
+     * @param message the acknowledged message (not null)
+     * @return true if the message was removed, false if it was not found
+     */
+    default boolean discard(String message) {
+        if (!message.equals(peek())) {
+            return false;
+        }
+        acknowledge(List.of(poll()));
+        return true;
+    }
+
+    /**
+     * Drops all messages and releases the resources of this queue, because it is deleted. The queue must not be used
+     * afterward. Clears the queue by default.
+     */
+    default void delete() {
+        clear();
+    }
+
+    /**
+     * Room reserved in a queue for messages that are appended later, see {@link #reserve(String, List)}.
+     *
+     * @param count    the number of messages, counted from the start, that room is reserved for
+     * @param appender appends the given number of messages, counted from the start, and releases the room reserved
+     *                 for the others
+     */
+    record Reservation(int count, IntConsumer appender) {
+        /**
+         * Appends the first messages of the reservation and releases the room reserved for the others.
+         *
+         * @param appended the number of messages to append, at most {@link #count()}
+         */
+        public void commit(int appended) {
+            appender.accept(appended);
+        }
+    }
+}
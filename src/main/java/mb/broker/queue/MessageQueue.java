@@ -0,0 +1,553 @@
+package mb.broker.queue;
+
+import mb.enums.OverflowPolicy;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Broker queue backed by an array deque. Unlike {@link java.util.concurrent.LinkedBlockingQueue}, it does not
+ * allocate a node per message, and bulk operations ({@link #publishAll(List)}, {@link #drainTo(Collection, int)})
+ * acquire its lock only once.
+ * <p>
+ * The queue may be bounded by its number of messages and their total size. The {@link BlockingQueue} operations
+ * treat a full queue as usual (e.g. {@link #offer(String)} fails and {@link #put(String)} waits), while the publish
+ * operations apply the {@link mb.enums.OverflowPolicy overflow policy} of the queue:
+ * <ul>
+ *     <li>{@code BLOCK} waits for space for at most the block timeout, then rejects the message</li>
+ *     <li>{@code DROP_HEAD} discards the oldest messages until the message fits</li>
+ *     <li>{@code REJECT} rejects the message</li>
+ * </ul>
+ * A message that is larger than the size limit itself is always rejected.
+ */
+public class MessageQueue extends AbstractQueue<String> implements IMessageQueue {
+    private final ArrayDeque<String> messages = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final QueueLimits limits;
+    private final long blockTimeoutNanos;
+    private long bytes = 0;     // guarded by lock
+    private int reservedLength = 0;     // guarded by lock; room reserved for messages that are appended later
+    private long reservedBytes = 0;     // guarded by lock
+
+    /**
+     * Creates an unbounded queue.
+     */
+    public MessageQueue() {
+        this(QueueLimits.UNBOUNDED, 0);
+    }
+
+    /**
+     * @param limits         the limits of the queue
+     * @param blockTimeoutMs how long the {@code BLOCK} policy waits for space before it rejects a message
+     */
+    public MessageQueue(QueueLimits limits, long blockTimeoutMs) {
+        this.limits = limits;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+    }
+
+    @Override
+    public QueueLimits getLimits() {
+        return limits;
+    }
+
+    @Override
+    public boolean publish(String message) throws InterruptedException {
+        Objects.requireNonNull(message);
+        lock.lockInterruptibly();
+        try {
+            if (!makeRoom(message, System.nanoTime() + blockTimeoutNanos) || !enqueue(message)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int publishAll(List<String> messages) throws InterruptedException {
+        if (messages.isEmpty()) return 0;
+        lock.lockInterruptibly();
+        try {
+            long deadline = System.nanoTime() + blockTimeoutNanos;
+            int published = 0;
+            for (String message : messages) {
+                if (published > 0 && !fits(message)) {
+                    notEmpty.signalAll();   // Consumers must make room for the rest of the batch
+                }
+                if (!makeRoom(message, deadline) || !enqueue(message)) {
+                    break;
+                }
+                published++;
+            }
+            if (published > 0) {
+                notEmpty.signalAll();
+            }
+            return published;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean tryPublish(String key, String message) {
+        Objects.requireNonNull(message);
+        lock.lock();
+        try {
+            if (!makeRoomNow(message) || !enqueue(message)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int tryPublishAll(String key, List<String> messages) {
+        if (messages.isEmpty()) return 0;
+        lock.lock();
+        try {
+            int published = 0;
+            for (String message : messages) {
+                if (!makeRoomNow(message) || !enqueue(message)) {
+                    break;
+                }
+                published++;
+            }
+            if (published > 0) {
+                notEmpty.signalAll();
+            }
+            return published;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Reservation reserve(String key, List<String> reserved) {
+        boolean dropHead = limits.overflowPolicy() == OverflowPolicy.DROP_HEAD;
+        lock.lock();
+        try {
+            int count = 0;
+            long size = 0;
+            for (String message : reserved) {
+                if ((limits.maxBytes() > 0 && message.length() > limits.maxBytes()) || (!dropHead && !fits(message))) {
+                    break;
+                }
+                if (!dropHead) {    // Drop-head queues make room when the messages are appended
+                    reservedLength++;
+                    reservedBytes += message.length();
+                    size += message.length();
+                }
+                count++;
+            }
+            int reservedCount = dropHead ? 0 : count;
+            long reservedSize = size;
+            return new Reservation(count, appended -> commit(reserved, reservedCount, reservedSize, appended));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitRoom(String key, String message, long deadline) throws InterruptedException {
+        if (limits.overflowPolicy() == OverflowPolicy.DROP_HEAD) {
+            return limits.maxBytes() == 0 || message.length() <= limits.maxBytes();
+        }
+        lock.lockInterruptibly();
+        try {
+            return awaitFits(message, limits.overflowPolicy() == OverflowPolicy.BLOCK ? deadline : System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void requeue(List<String> messages) {
+        if (messages.isEmpty()) return;
+        lock.lock();
+        try {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                String message = messages.get(i);
+                this.messages.addFirst(message);
+                bytes += message.length();
+                requeued(message);
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the messages regardless of the limits of the queue, except that a drop-head queue drops its oldest
+     * messages, as the queue of the leader did.
+     */
+    @Override
+    public void replicate(String key, List<String> replicated) {
+        if (replicated.isEmpty()) return;
+        lock.lock();
+        try {
+            for (String message : replicated) {
+                if (limits.overflowPolicy() == OverflowPolicy.DROP_HEAD) {
+                    while (!messages.isEmpty() && !fits(message)) {
+                        dequeue(false);
+                    }
+                }
+                enqueue(message);
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest occurrence of the message, wherever it is in the queue.
+     */
+    @Override
+    public boolean discard(String message) {
+        return remove(message);
+    }
+
+    @Override
+    public boolean offer(String message) {
+        Objects.requireNonNull(message);
+        lock.lock();
+        try {
+            if (!fits(message) || !enqueue(message)) {
+                return false;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(String message) throws InterruptedException {
+        Objects.requireNonNull(message);
+        lock.lockInterruptibly();
+        try {
+            while (!fits(message)) {
+                notFull.await();
+            }
+            if (!enqueue(message)) {
+                throw new IllegalStateException("Failed to append message to queue");
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(String message, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(message);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!fits(message)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (!enqueue(message)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (messages.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (messages.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String poll() {
+        lock.lock();
+        try {
+            return messages.isEmpty() ? null : dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String peek() {
+        lock.lock();
+        try {
+            return messages.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        if (limits.maxLength() == 0) {
+            return Integer.MAX_VALUE;
+        }
+        lock.lock();
+        try {
+            return Math.max(0, limits.maxLength() - messages.size() - reservedLength);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            if (!messages.removeFirstOccurrence(o)) {
+                return false;
+            }
+            bytes -= ((String) o).length();
+            removed((String) o, false);
+            notFull.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = Math.min(maxElements, messages.size());
+            for (int i = 0; i < n; i++) {
+                c.add(dequeue(true));
+            }
+            if (n > 0) {
+                notFull.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue, which does not support removal.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        lock.lock();
+        try {
+            return List.copyOf(messages).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+    // All methods below must be called while holding the lock.
+
+    private boolean fits(String message) {
+        return (limits.maxLength() == 0 || messages.size() + reservedLength < limits.maxLength())
+                && (limits.maxBytes() == 0 || bytes + reservedBytes + message.length() <= limits.maxBytes());
+    }
+
+    /**
+     * Releases the room of a reservation and appends the first messages of it, regardless of the limits, since
+     * messages may have been requeued meanwhile. Only a drop-head queue drops its oldest messages to make room.
+     */
+    private void commit(List<String> reserved, int reservedCount, long reservedSize, int appended) {
+        lock.lock();
+        try {
+            reservedLength -= reservedCount;
+            reservedBytes -= reservedSize;
+            for (int i = 0; i < appended; i++) {
+                String message = reserved.get(i);
+                if (limits.overflowPolicy() == OverflowPolicy.DROP_HEAD) {
+                    while (!messages.isEmpty() && !fits(message)) {
+                        dequeue(false);
+                    }
+                }
+                if (!enqueue(message)) {
+                    break;
+                }
+            }
+            if (appended > 0) {
+                notEmpty.signalAll();
+            }
+            if (appended < reservedCount) {
+                notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the overflow policy until the message fits into the queue.
+     *
+     * @return true if the message fits, false if it is rejected
+     */
+    private boolean makeRoom(String message, long deadline) throws InterruptedException {
+        if (limits.overflowPolicy() == OverflowPolicy.BLOCK) {
+            return awaitFits(message, deadline);
+        }
+        return makeRoomNow(message);
+    }
+
+    /**
+     * Applies the overflow policy without waiting, so the {@code BLOCK} policy rejects a message like {@code REJECT}.
+     *
+     * @return true if the message fits, false if it is rejected
+     */
+    private boolean makeRoomNow(String message) {
+        if (limits.maxBytes() > 0 && message.length() > limits.maxBytes()) {
+            return false;
+        }
+        if (limits.overflowPolicy() == OverflowPolicy.DROP_HEAD) {
+            while (!fits(message)) {
+                dequeue(false);
+            }
+            return true;
+        }
+        return fits(message);
+    }
+
+    /**
+     * Waits until the message fits into the queue.
+     *
+     * @return false if the message does not fit by the deadline
+     */
+    private boolean awaitFits(String message, long deadline) throws InterruptedException {
+        if (limits.maxBytes() > 0 && message.length() > limits.maxBytes()) {
+            return false;
+        }
+        while (!fits(message)) {
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0) {
+                return false;
+            }
+            notFull.awaitNanos(nanos);
+        }
+        return true;
+    }
+
+    private boolean enqueue(String message) {
+        if (!appending(message)) {
+            return false;
+        }
+        messages.addLast(message);
+        bytes += message.length();
+        return true;
+    }
+
+    private String dequeue(boolean taken) {
+        String message = messages.pollFirst();
+        bytes -= message.length();
+        removed(message, taken);
+        notFull.signal();
+        return message;
+    }
+
+    // ==============HOOKS==============
+    // Called while holding the lock, so subclasses see the messages in queue order.
+
+    /**
+     * Hook method called before a message is appended to the queue.
+     *
+     * @param message the message to append
+     * @return true to append the message, false to reject it
+     */
+    protected boolean appending(String message) {
+        return true;
+    }
+
+    /**
+     * Hook method called after a message left the queue.
+     *
+     * @param message the message
+     * @param taken   true if the message was taken by a consumer, false if it was discarded
+     */
+    protected void removed(String message, boolean taken) {
+    }
+
+    /**
+     * Hook method called after a message was returned to the head of the queue. Messages of one requeue operation are
+     * returned from last to first.
+     *
+     * @param message the message
+     */
+    protected void requeued(String message) {
+    }
+
+    /**
+     * Appends messages without calling any hooks or applying the limits, e.g. to restore the state of a queue.
+     *
+     * @param messages the messages to append
+     */
+    protected void restore(List<String> messages) {
+        lock.lock();
+        try {
+            for (String message : messages) {
+                this.messages.addLast(message);
+                bytes += message.length();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package mb.broker.queue;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * The view of one subscriber on a {@link PartitionedQueue}: a queue of the messages of the partitions currently
+ * assigned to the subscriber, taken from the partitions in turn. Acknowledged and requeued messages are passed on to
+ * the partitions they were taken from.
+ * <p>
+ * Messages cannot be published through a consumer; they are published to the partitioned queue.
+ */
+public class PartitionConsumer extends AbstractQueue<String> implements IMessageQueue {
+    private final PartitionedQueue owner;
+    private volatile int[] assigned = new int[0];
+    private int nextIndex = 0;                                                  // guarded by this
+    private final Map<String, Deque<Integer>> takenFrom = new IdentityHashMap<>();    // guarded by this
+
+    PartitionConsumer(PartitionedQueue owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Stops consuming, so the partitions of this consumer are reassigned. Taken messages can still be acknowledged
+     * and requeued.
+     */
+    public void close() {
+        owner.removeConsumer(this);
+    }
+
+    /**
+     * @return the indices of the partitions assigned to this consumer
+     */
+    public int[] getAssignedPartitions() {
+        return assigned.clone();
+    }
+
+    @Override
+    public String take() throws InterruptedException {
+        while (true) {
+            String message = poll();
+            if (message != null) {
+                return message;
+            }
+            owner.awaitMessages(this, Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            String message = poll();
+            if (message != null) {
+                return message;
+            }
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0 || !owner.awaitMessages(this, nanos)) {
+                return poll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String poll() {
+        int[] partitions = assigned;
+        for (int i = 0; i < partitions.length; i++) {
+            int partition = partitions[(nextIndex + i) % partitions.length];
+            String message = owner.getPartition(partition).poll();
+            if (message != null) {
+                nextIndex = (nextIndex + i + 1) % partitions.length;
+                taken(message, partition);
+                return message;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String peek() {
+        for (int partition : assigned) {
+            String message = owner.getPartition(partition).peek();
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves up to {@code maxElements} messages into the collection, draining the assigned partitions in turn with one
+     * bulk operation each.
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super String> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException();
+        int[] partitions = assigned;
+        List<String> drained = new ArrayList<>();
+        int total = 0;
+        for (int i = 0; i < partitions.length && total < maxElements; i++) {
+            int partition = partitions[(nextIndex + i) % partitions.length];
+            int n = owner.getPartition(partition).drainTo(drained, maxElements - total);
+            for (String message : drained) {
+                taken(message, partition);
+            }
+            c.addAll(drained);
+            drained.clear();
+            total += n;
+        }
+        if (partitions.length > 0) {
+            nextIndex = (nextIndex + 1) % partitions.length;
+        }
+        return total;
+    }
+
+    @Override
+    public void acknowledge(List<String> messages) {
+        forEachPartition(messages, (partition, acknowledged) -> partition.acknowledge(acknowledged));
+    }
+
+    @Override
+    public void requeue(List<String> messages) {
+        forEachPartition(messages, (partition, requeued) -> partition.requeue(requeued));
+        owner.signalWaiting();
+    }
+
+    /**
+     * @return the number of messages in the partitions assigned to this consumer
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (int partition : assigned) {
+            size += owner.getPartition(partition).size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return 0;
+    }
+
+    @Override
+    public boolean publish(String message) {
+        throw unsupported();
+    }
+
+    @Override
+    public int publishAll(List<String> messages) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean offer(String message) {
+        throw unsupported();
+    }
+
+    @Override
+    public void put(String message) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean offer(String message, long timeout, TimeUnit unit) {
+        throw unsupported();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        throw new UnsupportedOperationException("Partition consumers cannot be iterated");
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    /**
+     * Replaces the assigned partitions. Called by the owner while holding its lock.
+     */
+    void assign(int[] partitions) {
+        assigned = partitions;
+    }
+
+    /**
+     * Checks whether an assigned partition holds messages. Called by the owner while holding its lock, so it must
+     * not synchronize on this consumer.
+     */
+    boolean hasMessages() {
+        for (int partition : assigned) {
+            if (!owner.getPartition(partition).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void taken(String message, int partition) {
+        takenFrom.computeIfAbsent(message, m -> new ArrayDeque<>(1)).addLast(partition);
+    }
+
+    /**
+     * Groups taken messages by the partition they were taken from, keeping their order, and passes each group to an
+     * action.
+     */
+    private void forEachPartition(List<String> messages, BiConsumer<IMessageQueue, List<String>> action) {
+        Map<Integer, List<String>> byPartition = new LinkedHashMap<>();
+        synchronized (this) {
+            for (String message : messages) {
+                Deque<Integer> partitions = takenFrom.get(message);
+                if (partitions == null) {
+                    continue;
+                }
+                byPartition.computeIfAbsent(partitions.pollFirst(), p -> new ArrayList<>()).add(message);
+                if (partitions.isEmpty()) {
+                    takenFrom.remove(message);
+                }
+            }
+        }
+        byPartition.forEach((partition, group) -> action.accept(owner.getPartition(partition), group));
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Messages are published to the partitioned queue, not to a consumer");
+    }
+}
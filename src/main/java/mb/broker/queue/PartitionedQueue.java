@@ -0,0 +1,365 @@
+package mb.broker.queue;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue made of several independent partitions behind one name, so publishers and subscribers of a busy queue do not
+ * contend for a single lock. A message with a partition key goes to the partition chosen by the hash of the key, so
+ * messages with the same key stay in order; messages without a key are spread over the partitions round-robin.
+ * <p>
+ * Subscribers read the queue through a {@link PartitionConsumer} of their own. Each partition is assigned to exactly
+ * one consumer at a time, so the messages of a partition are delivered in order; a consumer is assigned several
+ * partitions if there are fewer consumers than partitions, and consumers beyond the number of partitions stay idle
+ * until another one stops. The partitions are reassigned whenever a consumer starts or stops; messages delivered but
+ * not yet acknowledged at that moment may then be redelivered after later messages of their partition.
+ * <p>
+ * The queue itself only supports publishing and iterating; the {@link java.util.concurrent.BlockingQueue} operations
+ * that remove messages throw {@link UnsupportedOperationException}. The limits of the queue apply to each partition.
+ */
+public class PartitionedQueue extends AbstractQueue<String> implements IMessageQueue {
+    public static final int MAX_PARTITIONS = 256;
+
+    private final IMessageQueue[] partitions;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final List<PartitionConsumer> consumers = new ArrayList<>();    // guarded by lock
+    private volatile int waiting = 0;   // written under lock; number of consumers waiting for messages
+
+    /**
+     * @param partitions the partitions, at least one
+     */
+    public PartitionedQueue(IMessageQueue[] partitions) {
+        this.partitions = partitions.clone();
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    @Override
+    public QueueLimits getLimits() {
+        return partitions[0].getLimits();
+    }
+
+    /**
+     * Creates a consumer and reassigns the partitions to include it.
+     *
+     * @return the consumer, which must be {@link PartitionConsumer#close() closed} once its subscription stopped
+     */
+    public PartitionConsumer newConsumer() {
+        lock.lock();
+        try {
+            PartitionConsumer consumer = new PartitionConsumer(this);
+            consumers.add(consumer);
+            rebalance();
+            return consumer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean publish(String message) throws InterruptedException {
+        return publish(null, message);
+    }
+
+    @Override
+    public boolean publish(String key, String message) throws InterruptedException {
+        boolean accepted = partitions[partitionOf(key)].publish(message);
+        if (accepted) {
+            signalWaiting();
+        }
+        return accepted;
+    }
+
+    @Override
+    public int publishAll(List<String> messages) throws InterruptedException {
+        return publishAll(null, messages);
+    }
+
+    /**
+     * Appends the messages to a single partition, so that they stay in order and need one synchronization; batches
+     * without a key are spread over the partitions round-robin.
+     */
+    @Override
+    public int publishAll(String key, List<String> messages) throws InterruptedException {
+        if (messages.isEmpty()) return 0;
+        int accepted = partitions[partitionOf(key)].publishAll(messages);
+        if (accepted > 0) {
+            signalWaiting();
+        }
+        return accepted;
+    }
+
+    @Override
+    public boolean tryPublish(String key, String message) {
+        boolean accepted = partitions[partitionOf(key)].tryPublish(null, message);
+        if (accepted) {
+            signalWaiting();
+        }
+        return accepted;
+    }
+
+    @Override
+    public int tryPublishAll(String key, List<String> messages) {
+        if (messages.isEmpty()) return 0;
+        int accepted = partitions[partitionOf(key)].tryPublishAll(null, messages);
+        if (accepted > 0) {
+            signalWaiting();
+        }
+        return accepted;
+    }
+
+    /**
+     * Reserves room in the partition of the key, which is picked now, also for messages without a key.
+     */
+    @Override
+    public Reservation reserve(String key, List<String> messages) {
+        Reservation reservation = partitions[partitionOf(key)].reserve(null, messages);
+        return new Reservation(reservation.count(), appended -> {
+            reservation.commit(appended);
+            if (appended > 0) {
+                signalWaiting();
+            }
+        });
+    }
+
+    /**
+     * Waits for room in the partition of the key. Without a key, the partition is only picked when the message is
+     * published, so this waits for room in the partition that is next in turn.
+     */
+    @Override
+    public boolean awaitRoom(String key, String message, long deadline) throws InterruptedException {
+        int partition = key == null ? Math.floorMod(nextPartition.get(), partitions.length) : partitionOf(key);
+        return partitions[partition].awaitRoom(null, message, deadline);
+    }
+
+    /**
+     * Appends the messages to the partition of the key, regardless of its limits.
+     */
+    @Override
+    public void replicate(String key, List<String> messages) {
+        if (messages.isEmpty()) return;
+        partitions[partitionOf(key)].replicate(null, messages);
+        signalWaiting();
+    }
+
+    /**
+     * Appends the messages to a partition, regardless of its limits, e.g. to restore a snapshot that kept the
+     * partition of every message.
+     *
+     * @param partition the index of the partition
+     * @param messages  the messages to append
+     */
+    public void replicate(int partition, List<String> messages) {
+        if (messages.isEmpty()) return;
+        partitions[partition].replicate(null, messages);
+        signalWaiting();
+    }
+
+    /**
+     * Returns a read-only view of the messages of a partition, e.g. to take a snapshot that keeps the partition of
+     * every message.
+     *
+     * @param partition the index of the partition
+     * @return the messages, in the order of the partition
+     */
+    public Collection<String> messagesOf(int partition) {
+        return Collections.unmodifiableCollection(partitions[partition]);
+    }
+
+    /**
+     * Removes the message from the first partition that holds it, as far as the partition can tell.
+     */
+    @Override
+    public boolean discard(String message) {
+        for (IMessageQueue partition : partitions) {
+            if (partition.discard(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean offer(String message) {
+        boolean accepted = partitions[partitionOf(null)].offer(message);
+        if (accepted) {
+            signalWaiting();
+        }
+        return accepted;
+    }
+
+    @Override
+    public void put(String message) throws InterruptedException {
+        partitions[partitionOf(null)].put(message);
+        signalWaiting();
+    }
+
+    @Override
+    public boolean offer(String message, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean accepted = partitions[partitionOf(null)].offer(message, timeout, unit);
+        if (accepted) {
+            signalWaiting();
+        }
+        return accepted;
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (IMessageQueue partition : partitions) {
+            size += partition.size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        long capacity = 0;
+        for (IMessageQueue partition : partitions) {
+            capacity += partition.remainingCapacity();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, capacity);
+    }
+
+    @Override
+    public void delete() {
+        for (IMessageQueue partition : partitions) {
+            partition.delete();
+        }
+    }
+
+    @Override
+    public String take() {
+        throw unsupported();
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) {
+        throw unsupported();
+    }
+
+    @Override
+    public String poll() {
+        throw unsupported();
+    }
+
+    @Override
+    public String peek() {
+        throw unsupported();
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        throw unsupported();
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c, int maxElements) {
+        throw unsupported();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the partitions, one after another, which does not support removal.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        List<String> snapshot = new ArrayList<>();
+        for (IMessageQueue partition : partitions) {
+            partition.forEach(snapshot::add);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    // ==============CONSUMERS==============
+
+    IMessageQueue getPartition(int index) {
+        return partitions[index];
+    }
+
+    /**
+     * Removes a consumer and reassigns its partitions to the remaining consumers.
+     */
+    void removeConsumer(PartitionConsumer consumer) {
+        lock.lock();
+        try {
+            if (consumers.remove(consumer)) {
+                consumer.assign(new int[0]);
+                rebalance();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until one of the partitions of a consumer holds messages, or the partitions are reassigned.
+     *
+     * @return false if the timeout elapsed
+     */
+    boolean awaitMessages(PartitionConsumer consumer, long nanos) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waiting++;
+            try {
+                // Checked after announcing the wait, so a publisher either sees the waiter or its message is seen here
+                if (!consumer.hasMessages()) {
+                    nanos = published.awaitNanos(nanos);
+                }
+            } finally {
+                waiting--;
+            }
+            return nanos > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the waiting consumers, e.g. because messages were returned to a partition.
+     */
+    void signalWaiting() {
+        if (waiting > 0) {
+            lock.lock();
+            try {
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private int partitionOf(String key) {
+        if (key == null) {
+            return Math.floorMod(nextPartition.getAndIncrement(), partitions.length);
+        }
+        return Math.floorMod(key.hashCode(), partitions.length);
+    }
+
+    /**
+     * Assigns partition i to consumer i modulo the number of consumers. Must be called while holding the lock.
+     */
+    private void rebalance() {
+        int count = consumers.size();
+        for (int c = 0; c < count; c++) {
+            int[] assigned = new int[c < partitions.length ? (partitions.length - c + count - 1) / count : 0];
+            for (int i = 0; i < assigned.length; i++) {
+                assigned[i] = c + i * count;
+            }
+            consumers.get(c).assign(assigned);
+        }
+        published.signalAll();
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Partitioned queues are read through a PartitionConsumer");
+    }
+}
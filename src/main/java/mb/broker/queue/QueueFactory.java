@@ -0,0 +1,186 @@
+package mb.broker.queue;
+
+import mb.broker.queue.log.LogManager;
+import mb.broker.queue.log.SegmentLog;
+import mb.broker.queue.log.StreamLog;
+import mb.config.QueueConfig;
+import mb.enums.OverflowPolicy;
+import mb.enums.QueueImplementation;
+import mb.enums.QueueType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * Creates broker queues with the implementation selected by the {@link QueueConfig}, and restores durable queues and
+ * stream queues from their logs. Unbounded, non-durable queues of the {@code DEQUE} implementation spill to disk beyond the configured
+ * threshold.
+ */
+public class QueueFactory implements AutoCloseable {
+    private static final String LOG_DIR = "queues";
+    private static final String SPILL_DIR = "spill";
+
+    private final QueueConfig queueConfig;
+    private final LogManager logManager;
+    private final Path spillDir;
+
+    public QueueFactory(QueueConfig queueConfig) {
+        this.queueConfig = queueConfig;
+        this.logManager = new LogManager(Path.of(queueConfig.dataDir(), LOG_DIR), queueConfig.fsyncPolicy(),
+                queueConfig.flushIntervalMs(), queueConfig.segmentBytes());
+        this.spillDir = Path.of(queueConfig.dataDir(), SPILL_DIR);
+        deleteSpilledMessages();    // Left over from a previous run
+    }
+
+    /**
+     * Creates an empty queue. The partitions of a partitioned queue are created like queues of their own, named after
+     * the queue and their index.
+     *
+     * @param name    the name of the queue
+     * @param options the options of the queue
+     * @return the queue
+     * @throws UncheckedIOException if the log of a durable queue cannot be created
+     */
+    public IMessageQueue createQueue(String name, QueueOptions options) {
+        QueueLimits limits = options.limits();
+        if (options.partitions() > 1) {
+            IMessageQueue[] partitions = new IMessageQueue[options.partitions()];
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i] = createQueue(name + "#" + i, new QueueOptions(limits, false, false, 0));
+            }
+            return new PartitionedQueue(partitions);
+        }
+        if (options.isStream()) {
+            try {
+                StreamLog log = logManager.openStream(name, limits.maxBytes(), options.maxAgeMs());
+                log.writeMetadata(toStreamMetadata(log));
+                return new StreamQueue(log);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (options.durable()) {
+            try {
+                SegmentLog log = logManager.open(name);
+                log.writeMetadata(toMetadata(limits));
+                return DurableQueue.open(log, limits, queueConfig.blockTimeoutMs());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (queueConfig.implementation() == QueueImplementation.DEQUE && !limits.isBounded()
+                && queueConfig.spillThresholdBytes() > 0) {
+            return new SpillingQueue(spillDir.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8)),
+                    queueConfig.spillThresholdBytes());
+        }
+        return switch (queueConfig.implementation()) {
+            case DEQUE -> new MessageQueue(limits, queueConfig.blockTimeoutMs());
+            case RING -> new RingBufferQueue(queueConfig.ringCapacity(), limits, queueConfig.blockTimeoutMs());
+        };
+    }
+
+    /**
+     * Deletes a queue with its messages, including its log if it is durable and its spill files if it spilled.
+     *
+     * @param name  the name of the queue
+     * @param queue the queue
+     */
+    public void deleteQueue(String name, IMessageQueue queue) {
+        if (queue.isDurable()) {
+            try {
+                logManager.delete(name);
+            } catch (IOException e) {
+                logErrorMsg(e, "Failed to delete the log of queue %s: %s", name, e.getMessage());
+            }
+        }
+        queue.delete();
+    }
+
+    /**
+     * Restores the durable queues and stream queues stored in the data directory. Queues that cannot be restored are
+     * skipped.
+     *
+     * @return the restored queues by name
+     */
+    public Map<String, IMessageQueue> restoreDurableQueues() {
+        Map<String, IMessageQueue> queues = new HashMap<>();
+        try {
+            for (String name : logManager.list()) {
+                try {
+                    Properties metadata = logManager.readMetadata(name);
+                    if (QueueType.fromString(metadata.getProperty("type", QueueType.CLASSIC.getStringValue()))
+                            == QueueType.STREAM) {
+                        queues.put(name, new StreamQueue(logManager.openStream(name,
+                                Long.parseLong(metadata.getProperty("max-bytes", "0")),
+                                Long.parseLong(metadata.getProperty("max-age", "0")))));
+                        continue;
+                    }
+                    SegmentLog log = logManager.open(name);
+                    queues.put(name, DurableQueue.open(log, fromMetadata(log.readMetadata()), queueConfig.blockTimeoutMs()));
+                } catch (IOException | IllegalArgumentException e) {
+                    logErrorMsg(e, "Failed to restore durable queue %s: %s", name, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to list durable queues in %s: %s", queueConfig.dataDir(), e.getMessage());
+        }
+        return queues;
+    }
+
+    /**
+     * Flushes and checkpoints the logs of durable queues, and deletes spilled messages.
+     */
+    @Override
+    public void close() {
+        logManager.close();
+        deleteSpilledMessages();
+    }
+
+    private void deleteSpilledMessages() {
+        if (!Files.exists(spillDir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(spillDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to delete spilled messages in %s: %s", spillDir, e.getMessage());
+        }
+    }
+
+    private static Properties toMetadata(QueueLimits limits) {
+        Properties metadata = new Properties();
+        metadata.setProperty("max-length", String.valueOf(limits.maxLength()));
+        metadata.setProperty("max-bytes", String.valueOf(limits.maxBytes()));
+        metadata.setProperty("overflow", limits.overflowPolicy().getStringValue());
+        return metadata;
+    }
+
+    private static Properties toStreamMetadata(StreamLog log) {
+        Properties metadata = new Properties();
+        metadata.setProperty("type", QueueType.STREAM.getStringValue());
+        metadata.setProperty("max-bytes", String.valueOf(log.getMaxBytes()));
+        metadata.setProperty("max-age", String.valueOf(log.getMaxAgeMs()));
+        return metadata;
+    }
+
+    private static QueueLimits fromMetadata(Properties metadata) {
+        return new QueueLimits(
+                Integer.parseInt(metadata.getProperty("max-length", "0")),
+                Long.parseLong(metadata.getProperty("max-bytes", "0")),
+                OverflowPolicy.fromString(metadata.getProperty("overflow", OverflowPolicy.BLOCK.getStringValue()))
+        );
+    }
+}
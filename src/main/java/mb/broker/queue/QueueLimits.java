@@ -0,0 +1,22 @@
+package mb.broker.queue;
+
+import mb.enums.OverflowPolicy;
+
+/**
+ * The limits of a broker queue.
+ *
+ * @param maxLength      the maximal number of messages in the queue, 0 if unlimited
+ * @param maxBytes       the maximal total size of the messages in the queue (one byte per character), 0 if unlimited
+ * @param overflowPolicy what happens to a published message that does not fit into the queue
+ */
+public record QueueLimits(
+        int maxLength,
+        long maxBytes,
+        OverflowPolicy overflowPolicy
+) {
+    public static final QueueLimits UNBOUNDED = new QueueLimits(0, 0, OverflowPolicy.BLOCK);
+
+    public boolean isBounded() {
+        return maxLength > 0 || maxBytes > 0;
+    }
+}
@@ -0,0 +1,37 @@
+package mb.broker.queue;
+
+import mb.enums.QueueType;
+
+/**
+ * The options of a queue declaration.
+ *
+ * @param limits     the limits of the queue; for a stream queue, only the maximal size applies, as retention limit
+ * @param durable    whether the messages of the queue survive a restart of the broker, always true for a stream queue
+ * @param autoDelete whether the queue is deleted once its last subscriber unsubscribes
+ * @param expiresMs  how long the queue may go unused (without subscribers or declarations) before it is deleted, 0
+ *                   if it never expires
+ * @param type       whether messages are consumed from the queue, or kept in a stream that subscribers read from
+ *                   offsets of their own
+ * @param maxAgeMs   how long a stream queue retains messages, 0 if unlimited
+ * @param partitions the number of partitions of the queue, 1 if it is not partitioned
+ */
+public record QueueOptions(
+        QueueLimits limits,
+        boolean durable,
+        boolean autoDelete,
+        long expiresMs,
+        QueueType type,
+        long maxAgeMs,
+        int partitions
+) {
+    /**
+     * Creates the options of a classic queue.
+     */
+    public QueueOptions(QueueLimits limits, boolean durable, boolean autoDelete, long expiresMs) {
+        this(limits, durable, autoDelete, expiresMs, QueueType.CLASSIC, 0, 1);
+    }
+
+    public boolean isStream() {
+        return type == QueueType.STREAM;
+    }
+}
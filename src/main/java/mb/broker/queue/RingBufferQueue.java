@@ -0,0 +1,457 @@
+package mb.broker.queue;
+
+import mb.enums.OverflowPolicy;
+
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Lock-free, pre-sized broker queue based on Dmitry Vyukov's bounded multi-producer multi-consumer array queue.
+ * Every slot of the ring carries a sequence number that tells producers and consumers whether it is free for the
+ * current lap, so both sides only contend on a single CAS of their position and no node is allocated per message.
+ * <p>
+ * The ring has {@code capacity} slots, rounded up to a power of two, or fewer if the length limit of the queue is lower.
+ * The length limit is enforced exactly by a separate counter, while a limit beyond the capacity is bounded by the
+ * ring. Threads that must wait (a subscriber on an empty queue, a publisher on a full queue with the {@code BLOCK}
+ * policy) spin briefly and then park; the other side only takes a lock to wake them if someone is actually parked.
+ * <p>
+ * Requeued messages are kept in a separate deque that is served before the ring, so they are redelivered first and
+ * never fail because the ring is full. The iterator is weakly consistent and does not support removal.
+ */
+public class RingBufferQueue extends AbstractQueue<String> implements IMessageQueue {
+    private static final int SPIN_TRIES = 64;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final String[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final int maxLength;        // the length limit, or the size of the ring if it is lower
+    private final AtomicInteger length = new AtomicInteger();   // messages in the ring, including those being appended
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+    private final Deque<String> requeued = new ConcurrentLinkedDeque<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Waiters notEmpty = new Waiters();
+    private final Waiters notFull = new Waiters();
+    private final QueueLimits limits;
+    private final long blockTimeoutNanos;
+
+    /**
+     * @param capacity       the maximal number of messages the ring holds, regardless of the limits
+     * @param limits         the limits of the queue
+     * @param blockTimeoutMs how long the {@code BLOCK} policy waits for space before it rejects a message
+     */
+    public RingBufferQueue(int capacity, QueueLimits limits, long blockTimeoutMs) {
+        int slots = Math.clamp(capacity, 2, MAX_CAPACITY);
+        if (limits.maxLength() > 0) {
+            slots = Math.min(slots, Math.max(2, limits.maxLength()));
+        }
+        int size = Integer.highestOneBit(slots - 1) << 1;
+        this.elements = new String[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.maxLength = limits.maxLength() > 0 ? Math.min(limits.maxLength(), size) : size;
+        this.limits = limits;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+    }
+
+    @Override
+    public QueueLimits getLimits() {
+        return limits;
+    }
+
+    @Override
+    public boolean publish(String message) throws InterruptedException {
+        return publish(message, System.nanoTime() + blockTimeoutNanos);
+    }
+
+    @Override
+    public int publishAll(List<String> messages) throws InterruptedException {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        int published = 0;
+        for (String message : messages) {
+            if (!publish(message, deadline)) {
+                break;
+            }
+            published++;
+        }
+        return published;
+    }
+
+    @Override
+    public boolean tryPublish(String key, String message) {
+        Objects.requireNonNull(message);
+        if (limits.maxBytes() > 0 && message.length() > limits.maxBytes()) {
+            return false;
+        }
+        if (limits.overflowPolicy() == OverflowPolicy.DROP_HEAD) {
+            while (!tryEnqueue(message)) {
+                poll();
+            }
+        } else if (!tryEnqueue(message)) {
+            return false;
+        }
+        notEmpty.signalAll();
+        return true;
+    }
+
+    @Override
+    public Reservation reserve(String key, List<String> reserved) {
+        boolean dropHead = limits.overflowPolicy() == OverflowPolicy.DROP_HEAD;
+        int count = 0;
+        for (String message : reserved) {
+            if ((limits.maxBytes() > 0 && message.length() > limits.maxBytes()) || (!dropHead && !claimRoom(message))) {
+                break;
+            }
+            count++;
+        }
+        int claimed = dropHead ? 0 : count;     // Drop-head queues make room when the messages are appended
+        return new Reservation(count, appended -> commit(reserved, claimed, appended));
+    }
+
+    @Override
+    public boolean awaitRoom(String key, String message, long deadline) throws InterruptedException {
+        if (limits.maxBytes() > 0 && message.length() > limits.maxBytes()) {
+            return false;
+        }
+        return switch (limits.overflowPolicy()) {
+            case BLOCK -> notFull.await(() -> hasRoom(message), deadline);
+            case DROP_HEAD -> true;
+            case REJECT -> hasRoom(message);
+        };
+    }
+
+    @Override
+    public void requeue(List<String> messages) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            String message = messages.get(i);
+            if (limits.maxBytes() > 0) {
+                bytes.addAndGet(message.length());
+            }
+            requeued.addFirst(message);
+        }
+        notEmpty.signalAll();
+    }
+
+    @Override
+    public boolean offer(String message) {
+        Objects.requireNonNull(message);
+        if (!tryEnqueue(message)) {
+            return false;
+        }
+        notEmpty.signalAll();
+        return true;
+    }
+
+    @Override
+    public void put(String message) throws InterruptedException {
+        Objects.requireNonNull(message);
+        notFull.await(() -> tryEnqueue(message), Long.MAX_VALUE);
+        notEmpty.signalAll();
+    }
+
+    @Override
+    public boolean offer(String message, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(message);
+        if (!notFull.await(() -> tryEnqueue(message), System.nanoTime() + unit.toNanos(timeout))) {
+            return false;
+        }
+        notEmpty.signalAll();
+        return true;
+    }
+
+    @Override
+    public String take() throws InterruptedException {
+        String[] message = new String[1];
+        notEmpty.await(() -> (message[0] = poll()) != null, Long.MAX_VALUE);
+        return message[0];
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        String[] message = new String[1];
+        notEmpty.await(() -> (message[0] = poll()) != null, System.nanoTime() + unit.toNanos(timeout));
+        return message[0];
+    }
+
+    @Override
+    public String poll() {
+        String message = requeued.isEmpty() ? null : requeued.pollFirst();
+        if (message == null) {
+            message = tryDequeue();
+        }
+        if (message != null && limits.maxBytes() > 0) {
+            bytes.addAndGet(-message.length());
+        }
+        return message;
+    }
+
+    @Override
+    public String peek() {
+        String message = requeued.peekFirst();
+        if (message != null) {
+            return message;
+        }
+        long position = dequeuePosition.get();
+        int index = (int) (position & mask);
+        return sequences.getAcquire(index) == position + 1 ? elements[index] : null;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) length.get() + requeued.size());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return requeued.isEmpty() && enqueuePosition.get() == dequeuePosition.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, maxLength - length.get());
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException();
+        int n = 0;
+        String message;
+        while (n < maxElements && (message = poll()) != null) {
+            c.add(message);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns a weakly consistent iterator, which does not support removal.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        List<String> snapshot = new ArrayList<>(requeued);
+        long end = enqueuePosition.get();
+        for (long position = dequeuePosition.get(); position < end; position++) {
+            int index = (int) (position & mask);
+            String message = elements[index];
+            if (sequences.getAcquire(index) == position + 1 && message != null) {
+                snapshot.add(message);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    // ==============IMPLEMENTATION==============
+    private boolean publish(String message, long deadline) throws InterruptedException {
+        if (limits.overflowPolicy() != OverflowPolicy.BLOCK) {
+            return tryPublish(null, message);
+        }
+        Objects.requireNonNull(message);
+        if ((limits.maxBytes() > 0 && message.length() > limits.maxBytes())
+                || !notFull.await(() -> tryEnqueue(message), deadline)) {
+            return false;
+        }
+        notEmpty.signalAll();
+        return true;
+    }
+
+    private boolean tryEnqueue(String message) {
+        if (!claimRoom(message)) {
+            return false;
+        }
+        if (!claimSlot(message)) {
+            releaseRoom(message);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Claims room for the message within the length and size limits, before a slot is claimed for it.
+     */
+    private boolean claimRoom(String message) {
+        int current;
+        do {
+            current = length.get();
+            if (current >= maxLength) {
+                return false;
+            }
+        } while (!length.compareAndSet(current, current + 1));
+        if (limits.maxBytes() > 0 && bytes.addAndGet(message.length()) > limits.maxBytes()) {
+            bytes.addAndGet(-message.length());
+            length.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseRoom(String message) {
+        if (limits.maxBytes() > 0) {
+            bytes.addAndGet(-message.length());
+        }
+        length.decrementAndGet();
+    }
+
+    /**
+     * Writes the message into the slot at the enqueue position.
+     *
+     * @return false if the slot still holds the message of the previous lap
+     */
+    private boolean claimSlot(String message) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.getAcquire(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    elements[index] = message;
+                    sequences.setRelease(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {    // The slot still holds the message of the previous lap: full
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Appends the first messages of a reservation and releases the room claimed for the others.
+     *
+     * @param claimed the number of messages room was claimed for, 0 for a drop-head queue, which makes room now
+     */
+    private void commit(List<String> reserved, int claimed, int appended) {
+        for (int i = 0; i < appended; i++) {
+            String message = reserved.get(i);
+            if (claimed == 0) {
+                while (!tryEnqueue(message)) {
+                    poll();
+                }
+            } else {
+                // The room is claimed, so the slot is free once the consumer of the previous lap released it
+                while (!claimSlot(message)) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        for (int i = appended; i < claimed; i++) {
+            releaseRoom(reserved.get(i));
+        }
+        if (appended > 0) {
+            notEmpty.signalAll();
+        }
+        if (appended < claimed) {
+            notFull.signalAll();
+        }
+    }
+
+    /**
+     * Checks whether the message would fit, without reserving a slot for it.
+     */
+    private boolean hasRoom(String message) {
+        return length.get() < maxLength
+                && (limits.maxBytes() == 0 || bytes.get() + message.length() <= limits.maxBytes());
+    }
+
+    private String tryDequeue() {
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.getAcquire(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    String message = elements[index];
+                    elements[index] = null;
+                    sequences.setRelease(index, position + mask + 1);
+                    length.decrementAndGet();
+                    notFull.signalAll();
+                    return message;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {    // The slot was not yet written in this lap: empty
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Wait strategy for one side of the queue: spin briefly, then park until the other side signals. Signalling is
+     * free unless a thread is parked.
+     */
+    private static final class Waiters {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition condition = lock.newCondition();
+        private final AtomicInteger parked = new AtomicInteger();
+
+        /**
+         * Retries the operation until it succeeds or the deadline passes.
+         *
+         * @return true if the operation succeeded, false if the deadline passed
+         */
+        boolean await(BooleanSupplier operation, long deadline) throws InterruptedException {
+            for (int i = 0; i < SPIN_TRIES; i++) {
+                if (operation.getAsBoolean()) {
+                    return true;
+                }
+                Thread.onSpinWait();
+            }
+            lock.lockInterruptibly();
+            parked.incrementAndGet();
+            try {
+                // The counter is incremented before the operation is retried, so a signal cannot get lost in between
+                while (!operation.getAsBoolean()) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (deadline == Long.MAX_VALUE) {
+                        condition.await();
+                    } else {
+                        long nanos = deadline - System.nanoTime();
+                        if (nanos <= 0) {
+                            return false;
+                        }
+                        condition.awaitNanos(nanos);
+                    }
+                }
+                return true;
+            } finally {
+                parked.decrementAndGet();
+                lock.unlock();
+            }
+        }
+
+        void signalAll() {
+            VarHandle.fullFence();  // Order the preceding release of a slot before the check for parked threads
+            if (parked.get() == 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                condition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package mb.broker.queue;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * Unbounded broker queue that keeps its heap use bounded by paging the middle of a deep backlog out to disk. The
+ * queue consists of three parts, in order:
+ * <ul>
+ *     <li>the head, which consumers take messages from, held in memory up to the spill threshold</li>
+ *     <li>the spilled chunks, each an append-only file of messages</li>
+ *     <li>the tail, which publishers append to once the head is full, held in memory until it is large enough to be
+ *     written out as a chunk</li>
+ * </ul>
+ * When the head runs empty, the oldest chunk is read back into it, or the tail is moved into it if nothing is
+ * spilled. As long as the backlog fits into the threshold, the queue behaves like a {@link MessageQueue} and does not
+ * touch the disk. Publishers never block; chunk files are written and read while holding the lock of the queue, in
+ * one sequential operation each. Spilled messages do not survive a restart.
+ */
+public class SpillingQueue extends AbstractQueue<String> implements IMessageQueue {
+    private static final int MIN_CHUNK_BYTES = 64 * 1024;
+
+    private final Path spillDir;
+    private final long thresholdBytes;
+    private final long chunkBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<String> head = new ArrayDeque<>();     // guarded by lock
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();    // guarded by lock
+    private final List<String> tail = new ArrayList<>();            // guarded by lock
+    private long headBytes = 0;                                     // guarded by lock
+    private long tailBytes = 0;                                     // guarded by lock
+    private long nextChunkId = 0;                                   // guarded by lock
+
+    /**
+     * A spilled chunk of messages.
+     */
+    private record Chunk(Path path, int size) {
+    }
+
+    /**
+     * @param spillDir       the directory for the chunk files of this queue, created when the queue first spills
+     * @param thresholdBytes the total size of the messages in the head (one byte per character) above which the queue
+     *                       spills to disk
+     */
+    public SpillingQueue(Path spillDir, long thresholdBytes) {
+        this.spillDir = spillDir;
+        this.thresholdBytes = thresholdBytes;
+        this.chunkBytes = Math.max(MIN_CHUNK_BYTES, thresholdBytes / 8);
+    }
+
+    @Override
+    public boolean publish(String message) {
+        return offer(message);
+    }
+
+    @Override
+    public int publishAll(List<String> messages) {
+        if (messages.isEmpty()) return 0;
+        lock.lock();
+        try {
+            for (String message : messages) {
+                append(message);
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return messages.size();
+    }
+
+    @Override
+    public int tryPublishAll(String key, List<String> messages) {
+        return publishAll(messages);
+    }
+
+    @Override
+    public void requeue(List<String> messages) {
+        if (messages.isEmpty()) return;
+        lock.lock();
+        try {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                head.addFirst(messages.get(i));
+                headBytes += messages.get(i).length();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(String message) {
+        Objects.requireNonNull(message);
+        lock.lock();
+        try {
+            append(message);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(String message) {
+        offer(message);
+    }
+
+    @Override
+    public boolean offer(String message, long timeout, TimeUnit unit) {
+        return offer(message);
+    }
+
+    @Override
+    public String take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!fillHead()) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!fillHead()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String poll() {
+        lock.lock();
+        try {
+            return fillHead() ? removeFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String peek() {
+        lock.lock();
+        try {
+            return fillHead() ? head.peekFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            long size = (long) head.size() + tail.size();
+            for (Chunk chunk : chunks) {
+                size += chunk.size();
+            }
+            return (int) Math.min(Integer.MAX_VALUE, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && fillHead()) {
+                c.add(removeFirst());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the messages held in memory, which does not support removal. Spilled
+     * messages are not included.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        lock.lock();
+        try {
+            List<String> snapshot = new ArrayList<>(head);
+            if (chunks.isEmpty()) {
+                snapshot.addAll(tail);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all messages without reading back the spilled ones, and deletes the spill files.
+     */
+    @Override
+    public void delete() {
+        lock.lock();
+        try {
+            head.clear();
+            tail.clear();
+            headBytes = 0;
+            tailBytes = 0;
+            for (Chunk chunk : chunks) {
+                Files.deleteIfExists(chunk.path());
+            }
+            chunks.clear();
+            Files.deleteIfExists(spillDir);
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to delete spill files in %s: %s", spillDir, e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+    // All methods below must be called while holding the lock.
+
+    private void append(String message) {
+        if (chunks.isEmpty() && tail.isEmpty() && headBytes + message.length() <= thresholdBytes) {
+            head.addLast(message);
+            headBytes += message.length();
+            return;
+        }
+        tail.add(message);
+        tailBytes += message.length();
+        if (tailBytes >= chunkBytes) {
+            spillTail();
+        }
+    }
+
+    private String removeFirst() {
+        String message = head.pollFirst();
+        headBytes -= message.length();
+        return message;
+    }
+
+    /**
+     * Refills an empty head from the oldest chunk, or from the tail if nothing is spilled.
+     *
+     * @return true if the head is not empty
+     */
+    private boolean fillHead() {
+        while (head.isEmpty()) {
+            if (!chunks.isEmpty()) {
+                readChunk(chunks.pollFirst());
+            } else if (!tail.isEmpty()) {
+                head.addAll(tail);
+                headBytes += tailBytes;
+                tail.clear();
+                tailBytes = 0;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void spillTail() {
+        Path path = spillDir.resolve(String.format("%020d.chunk", nextChunkId++));
+        try {
+            Files.createDirectories(spillDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+                for (String message : tail) {
+                    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        } catch (IOException e) {
+            // Keep the messages in memory rather than losing them
+            logErrorMsg(e, "Failed to spill %d messages to %s: %s", tail.size(), path, e.getMessage());
+            return;
+        }
+        chunks.addLast(new Chunk(path, tail.size()));
+        tail.clear();
+        tailBytes = 0;
+    }
+
+    private void readChunk(Chunk chunk) {
+        int read = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(chunk.path())))) {
+            for (; read < chunk.size(); read++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                String message = new String(bytes, StandardCharsets.UTF_8);
+                head.addLast(message);
+                headBytes += message.length();
+            }
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to read spilled messages from %s, %d messages are lost: %s", chunk.path(),
+                    chunk.size() - read, e.getMessage());
+        }
+        try {
+            Files.deleteIfExists(chunk.path());
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to delete spill file %s: %s", chunk.path(), e.getMessage());
+        }
+    }
+}
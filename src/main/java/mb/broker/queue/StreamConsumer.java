@@ -0,0 +1,156 @@
+package mb.broker.queue;
+
+import mb.broker.queue.log.StreamLog;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The view of one subscriber on a {@link StreamQueue}: a queue whose messages are read from the stream, sequentially
+ * from the offset the consumer was created at. Taking a message only advances the offset of this consumer, so the
+ * other consumers of the stream are not affected. Requeued messages are redelivered before the stream is read on.
+ * <p>
+ * Messages cannot be published through a consumer; they are published to the stream queue.
+ */
+public class StreamConsumer extends AbstractQueue<String> implements IMessageQueue {
+    private final StreamLog log;
+    private final StreamLog.Reader reader;                  // guarded by this
+    private final ArrayDeque<String> pending = new ArrayDeque<>();  // guarded by this; requeued or peeked messages
+
+    StreamConsumer(StreamLog log, StreamLog.Reader reader) {
+        this.log = log;
+        this.reader = reader;
+    }
+
+    /**
+     * @return the offset of the next message read from the stream
+     */
+    public synchronized long getOffset() {
+        return reader.getOffset();
+    }
+
+    @Override
+    public String take() throws InterruptedException {
+        while (true) {
+            String message = poll();
+            if (message != null) {
+                return message;
+            }
+            reader.await(Long.MAX_VALUE, TimeUnit.NANOSECONDS, this::hasPending);
+        }
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            String message = poll();
+            if (message != null) {
+                return message;
+            }
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0 || !reader.await(nanos, TimeUnit.NANOSECONDS, this::hasPending)) {
+                return poll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String poll() {
+        if (pending.isEmpty()) {
+            reader.read(pending, 1);
+        }
+        return pending.pollFirst();
+    }
+
+    @Override
+    public synchronized String peek() {
+        if (pending.isEmpty()) {
+            reader.read(pending, 1);
+        }
+        return pending.peekFirst();
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves up to {@code maxElements} messages into the collection, reading them straight from the mapped segments
+     * of the stream.
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super String> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) throw new IllegalArgumentException();
+        int n = 0;
+        while (n < maxElements && !pending.isEmpty()) {
+            c.add(pending.pollFirst());
+            n++;
+        }
+        return n + reader.read(c, maxElements - n);
+    }
+
+    @Override
+    public void requeue(List<String> messages) {
+        if (messages.isEmpty()) return;
+        synchronized (this) {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                pending.addFirst(messages.get(i));
+            }
+        }
+        log.wakeReaders();
+    }
+
+    /**
+     * @return the number of messages this consumer has not read yet
+     */
+    @Override
+    public synchronized int size() {
+        return (int) Math.min(Integer.MAX_VALUE, pending.size() + log.getEndOffset() - reader.getOffset());
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return 0;
+    }
+
+    @Override
+    public boolean publish(String message) {
+        throw unsupported();
+    }
+
+    @Override
+    public int publishAll(List<String> messages) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean offer(String message) {
+        throw unsupported();
+    }
+
+    @Override
+    public void put(String message) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean offer(String message, long timeout, TimeUnit unit) {
+        throw unsupported();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        throw new UnsupportedOperationException("Stream consumers cannot be iterated");
+    }
+
+    private synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Messages are published to the stream queue, not to a consumer");
+    }
+}
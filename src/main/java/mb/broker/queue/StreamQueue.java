@@ -0,0 +1,206 @@
+package mb.broker.queue;
+
+import mb.broker.queue.log.StreamLog;
+
+import java.io.IOException;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * Queue whose messages are appended to a {@link StreamLog} and are not removed by consumers. Each subscriber reads the
+ * stream through a {@link StreamConsumer} of its own, starting at an offset it chooses, so many subscribers can read
+ * (and re-read) the same messages while they are stored only once. Messages are removed by the retention limits of the
+ * log instead.
+ * <p>
+ * The queue itself only supports publishing; the {@link java.util.concurrent.BlockingQueue} operations that remove
+ * messages throw {@link UnsupportedOperationException}. Publishing never blocks and never rejects a message, unless
+ * the log cannot be written.
+ */
+public class StreamQueue extends AbstractQueue<String> implements IMessageQueue {
+    private final StreamLog log;
+
+    /**
+     * Creates the queue with the messages the log retains.
+     *
+     * @param log the log of the queue
+     */
+    public StreamQueue(StreamLog log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the retention limit of the log, as the maximal size of the queue
+     */
+    @Override
+    public QueueLimits getLimits() {
+        return new QueueLimits(0, log.getMaxBytes(), QueueLimits.UNBOUNDED.overflowPolicy());
+    }
+
+    public long getMaxAgeMs() {
+        return log.getMaxAgeMs();
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    /**
+     * @return the offset of the oldest retained message
+     */
+    public long getFirstOffset() {
+        return log.getFirstOffset();
+    }
+
+    /**
+     * @return the offset the next published message gets
+     */
+    public long getEndOffset() {
+        return log.getEndOffset();
+    }
+
+    /**
+     * @param timestamp a time in epoch milliseconds
+     * @return the offset of the first retained message published at or after the time, or {@link #getEndOffset()}
+     */
+    public long offsetAt(long timestamp) {
+        return log.offsetAt(timestamp);
+    }
+
+    /**
+     * Creates a consumer that reads the stream from an offset.
+     *
+     * @param offset the offset of the first message to read
+     * @return the consumer
+     */
+    public StreamConsumer newConsumer(long offset) {
+        return new StreamConsumer(log, log.newReader(offset));
+    }
+
+    @Override
+    public boolean publish(String message) {
+        Objects.requireNonNull(message);
+        if (!append(message)) {
+            return false;
+        }
+        log.commit();
+        return true;
+    }
+
+    @Override
+    public int publishAll(List<String> messages) {
+        int published = 0;
+        for (String message : messages) {
+            if (!append(message)) {
+                break;
+            }
+            published++;
+        }
+        if (published > 0) {
+            log.commit();
+        }
+        return published;
+    }
+
+    @Override
+    public int tryPublishAll(String key, List<String> messages) {
+        return publishAll(messages);
+    }
+
+    @Override
+    public boolean offer(String message) {
+        return publish(message);
+    }
+
+    @Override
+    public void put(String message) {
+        if (!publish(message)) {
+            throw new IllegalStateException("Failed to append message to stream");
+        }
+    }
+
+    @Override
+    public boolean offer(String message, long timeout, TimeUnit unit) {
+        return publish(message);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, log.getEndOffset() - log.getFirstOffset());
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Does nothing, since the log of the queue is deleted along with it.
+     */
+    @Override
+    public void delete() {
+    }
+
+    @Override
+    public String take() {
+        throw unsupported();
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) {
+        throw unsupported();
+    }
+
+    @Override
+    public String poll() {
+        throw unsupported();
+    }
+
+    @Override
+    public String peek() {
+        throw unsupported();
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        throw unsupported();
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c, int maxElements) {
+        throw unsupported();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        throw unsupported();
+    }
+
+    /**
+     * Never removes a message, since subscribers do not consume messages from a stream.
+     */
+    @Override
+    public boolean discard(String message) {
+        return false;
+    }
+
+    private boolean append(String message) {
+        try {
+            log.append(message);
+            return true;
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to append message to stream: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Stream queues are read through a StreamConsumer");
+    }
+}
@@ -0,0 +1,164 @@
+package mb.broker.queue.log;
+
+import mb.enums.FsyncPolicy;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * Manages the {@link SegmentLog logs} of the durable queues of a broker, each stored in its own subdirectory of the
+ * data directory. A background thread periodically checkpoints the logs (applying the retention limits of
+ * {@link StreamLog stream logs}) and, with the {@code INTERVAL} fsync policy, forces them to the storage device.
+ */
+public class LogManager implements AutoCloseable {
+    private final Path dataDir;
+    private final FsyncPolicy fsyncPolicy;
+    private final long flushIntervalMs;
+    private final int segmentBytes;
+    private final Map<String, SegmentLog> logs = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;   // guarded by this
+
+    /**
+     * @param dataDir         the directory to store the logs in
+     * @param fsyncPolicy     when appended messages are forced to the storage device
+     * @param flushIntervalMs the interval of checkpoints and, with the {@code INTERVAL} policy, of forcing the logs
+     * @param segmentBytes    the size of a segment file
+     */
+    public LogManager(Path dataDir, FsyncPolicy fsyncPolicy, long flushIntervalMs, int segmentBytes) {
+        this.dataDir = dataDir;
+        this.fsyncPolicy = fsyncPolicy;
+        this.flushIntervalMs = flushIntervalMs;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Opens the log of a queue, creating it if it does not exist.
+     *
+     * @param queueName the name of the queue
+     * @return the log
+     */
+    public synchronized SegmentLog open(String queueName) throws IOException {
+        SegmentLog log = logs.get(queueName);
+        if (log == null) {
+            log = new SegmentLog(directoryOf(queueName), segmentBytes, fsyncPolicy);
+            logs.put(queueName, log);
+            startFlusher();
+        }
+        return log;
+    }
+
+    /**
+     * Opens the log of a stream queue, creating it if it does not exist.
+     *
+     * @param queueName the name of the queue
+     * @param maxBytes  the size limit of the log, 0 if unlimited
+     * @param maxAgeMs  the age limit of the messages in milliseconds, 0 if unlimited
+     * @return the log
+     * @throws IOException if the log cannot be opened, or the queue has a log that is not a stream log
+     */
+    public synchronized StreamLog openStream(String queueName, long maxBytes, long maxAgeMs) throws IOException {
+        SegmentLog log = logs.get(queueName);
+        if (log == null) {
+            log = new StreamLog(directoryOf(queueName), segmentBytes, fsyncPolicy, maxBytes, maxAgeMs);
+            logs.put(queueName, log);
+            startFlusher();
+        }
+        if (!(log instanceof StreamLog streamLog)) {
+            throw new IOException("The log of queue " + queueName + " is not a stream log");
+        }
+        return streamLog;
+    }
+
+    /**
+     * Reads the metadata of the log of a queue, without opening the log.
+     *
+     * @param queueName the name of the queue
+     * @return the metadata, empty if there is none
+     */
+    public Properties readMetadata(String queueName) throws IOException {
+        return SegmentLog.readMetadata(directoryOf(queueName));
+    }
+
+    /**
+     * @return the names of the queues that have a log in the data directory
+     */
+    public List<String> list() throws IOException {
+        if (!Files.isDirectory(dataDir)) {
+            return List.of();
+        }
+        try (Stream<Path> directories = Files.list(dataDir)) {
+            return directories.filter(Files::isDirectory)
+                    .map(directory -> URLDecoder.decode(directory.getFileName().toString(), StandardCharsets.UTF_8))
+                    .toList();
+        }
+    }
+
+    /**
+     * Deletes the log of a queue.
+     *
+     * @param queueName the name of the queue
+     */
+    public synchronized void delete(String queueName) throws IOException {
+        SegmentLog log = logs.remove(queueName);
+        if (log != null) {
+            log.delete();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(flushIntervalMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        logs.values().forEach(SegmentLog::close);
+        logs.clear();
+    }
+
+    private Path directoryOf(String queueName) {
+        return dataDir.resolve(URLEncoder.encode(queueName, StandardCharsets.UTF_8));
+    }
+
+    private void startFlusher() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void flush() {
+        for (Map.Entry<String, SegmentLog> entry : logs.entrySet()) {
+            try {
+                if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                    entry.getValue().sync();
+                }
+                entry.getValue().checkpoint();
+            } catch (IOException e) {
+                logErrorMsg(e, "Failed to flush the log of queue %s", entry.getKey());
+            }
+        }
+    }
+}
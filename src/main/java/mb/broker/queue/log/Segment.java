@@ -0,0 +1,275 @@
+package mb.broker.queue.log;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32C;
+
+/**
+ * A memory-mapped file of a {@link SegmentLog}, holding the records of consecutive offsets starting at its base
+ * offset. Each record is laid out as follows:
+ * <pre>
+ * payload length (int32) | offset (int64) | CRC32C (int32) | [timestamp (int64)] | UTF-8 payload
+ * </pre>
+ * The append time in epoch milliseconds is only stored in the segments of a {@link StreamLog}. The checksum covers
+ * the length, offset and timestamp as well as the payload, so an empty payload is a valid record.
+ * <p>
+ * The file is zero-filled or holds stale records of a recycled segment beyond its last record, so reading stops at
+ * the first record that does not carry the expected offset or checksum. A zero-filled header never passes, since the
+ * checksum of zero bytes is not zero.
+ */
+class Segment {
+    static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int TIMESTAMP_POSITION = HEADER_BYTES;
+    private static final String SUFFIX = ".log";
+    private static final String FREE_SUFFIX = ".free";
+
+    private final Path path;
+    private final long baseOffset;
+    private final MappedByteBuffer buffer;
+    private final int headerBytes;
+    private int writePosition = 0;
+    private long nextOffset;
+    private long lastTimestamp = -1;    // of the last record, -1 if there is none or records carry no timestamp
+
+    private Segment(Path path, long baseOffset, MappedByteBuffer buffer, boolean timestamped) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.buffer = buffer;
+        this.headerBytes = timestamped ? HEADER_BYTES + Long.BYTES : HEADER_BYTES;
+        this.nextOffset = baseOffset;
+    }
+
+    /**
+     * Maps a segment file, creating or growing it to the given size if necessary, and finds the end of its records.
+     *
+     * @param path       the segment file
+     * @param baseOffset the offset of the first record
+     * @param size        the minimal size of the file
+     * @param timestamped whether the records carry their append time
+     * @return the segment, positioned after its last valid record
+     */
+    static Segment map(Path path, long baseOffset, int size, boolean timestamped) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            int mappedSize = (int) Math.max(size, channel.size());
+            Segment segment = new Segment(path, baseOffset, channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize),
+                    timestamped);
+            segment.scan(Long.MAX_VALUE, (offset, message) -> {
+            }, false);
+            return segment;
+        }
+    }
+
+    static Path pathOf(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+    }
+
+    /**
+     * @return the path a recycled segment file is kept at until it is reused
+     */
+    static Path freePathOf(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, FREE_SUFFIX));
+    }
+
+    static boolean isSegmentFile(Path path) {
+        return path.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    static boolean isFreeSegmentFile(Path path) {
+        return path.getFileName().toString().endsWith(FREE_SUFFIX);
+    }
+
+    static long baseOffsetOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * @return the offset the next appended record gets
+     */
+    long getNextOffset() {
+        return nextOffset;
+    }
+
+    int getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the append time of the last record, -1 if there is none or records carry no timestamp
+     */
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return the number of bytes a record with a payload of the given size takes
+     */
+    int recordBytes(int payloadBytes) {
+        return headerBytes + payloadBytes;
+    }
+
+    boolean fits(int payloadBytes) {
+        return buffer.capacity() - writePosition >= recordBytes(payloadBytes);
+    }
+
+    /**
+     * Appends a record. The caller must check that it {@link #fits(int) fits}.
+     *
+     * @return the offset of the record
+     */
+    long append(byte[] payload) {
+        buffer.put(writePosition + headerBytes, payload);
+        buffer.putLong(writePosition + Integer.BYTES, nextOffset);
+        if (headerBytes > HEADER_BYTES) {
+            lastTimestamp = System.currentTimeMillis();
+            buffer.putLong(writePosition + TIMESTAMP_POSITION, lastTimestamp);
+        }
+        buffer.putInt(writePosition, payload.length);
+        // Written last, but torn records are detected by the checksum anyway
+        buffer.putInt(writePosition + Integer.BYTES + Long.BYTES, checksum(writePosition, payload.length));
+        writePosition += headerBytes + payload.length;
+        return nextOffset++;
+    }
+
+    /**
+     * Reads the records starting at the given offset.
+     *
+     * @param fromOffset the offset of the first record to pass to the consumer
+     * @param consumer   the consumer of the records
+     */
+    void read(long fromOffset, SegmentLog.RecordConsumer consumer) {
+        scan(fromOffset, consumer, true);
+    }
+
+    /**
+     * Finds the position of a record. Only the headers of the records before it are read.
+     *
+     * @param offset    the offset of the record
+     * @param endOffset the offset after the last record that is fully written
+     * @return the position of the record, or the position after the last record if it is not in this segment
+     */
+    int positionOf(long offset, long endOffset) {
+        int position = 0;
+        for (long o = baseOffset; o < offset && isRecordAt(position, o, endOffset); o++) {
+            position += headerBytes + buffer.getInt(position);
+        }
+        return position;
+    }
+
+    /**
+     * Finds the first record appended at or after a time. Only the headers of the records before it are read.
+     *
+     * @param timestamp the time in epoch milliseconds
+     * @param endOffset the offset after the last record that is fully written
+     * @return the offset of the record, or the offset after the last record if all records are older
+     */
+    long offsetAt(long timestamp, long endOffset) {
+        int position = 0;
+        long offset = baseOffset;
+        while (isRecordAt(position, offset, endOffset) && buffer.getLong(position + TIMESTAMP_POSITION) < timestamp) {
+            position += headerBytes + buffer.getInt(position);
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * Reads consecutive records, straight from the mapped file and without verifying their checksums, which were
+     * verified when the segment was mapped or are computed by this process. May be called concurrently with
+     * {@link #append(byte[])}, as long as only records before {@code endOffset} are read.
+     *
+     * @param position  the position of the first record
+     * @param offset    the offset of the first record
+     * @param endOffset the offset after the last record that is fully written
+     * @param max       the maximal number of records to read
+     * @param messages  the collection to add the messages to
+     * @return the position after the last record read
+     */
+    int read(int position, long offset, long endOffset, int max, Collection<? super String> messages) {
+        for (int i = 0; i < max && isRecordAt(position, offset + i, endOffset); i++) {
+            int length = buffer.getInt(position);
+            byte[] payload = new byte[length];
+            buffer.get(position + headerBytes, payload);
+            messages.add(new String(payload, StandardCharsets.UTF_8));
+            position += headerBytes + length;
+        }
+        return position;
+    }
+
+    /**
+     * Writes the records to the storage device.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    private void scan(long fromOffset, SegmentLog.RecordConsumer consumer, boolean untilWritePosition) {
+        int position = 0;
+        long offset = baseOffset;
+        long timestamp = -1;
+        while (buffer.capacity() - position >= headerBytes && (!untilWritePosition || position < writePosition)) {
+            int length = buffer.getInt(position);
+            if (length < 0 || length > buffer.capacity() - position - headerBytes
+                    || buffer.getLong(position + Integer.BYTES) != offset
+                    || checksum(position, length) != buffer.getInt(position + Integer.BYTES + Long.BYTES)) {
+                break;
+            }
+            if (headerBytes > HEADER_BYTES) {
+                timestamp = buffer.getLong(position + TIMESTAMP_POSITION);
+            }
+            if (offset >= fromOffset) {
+                byte[] payload = new byte[length];
+                buffer.get(position + headerBytes, payload);
+                consumer.accept(offset, new String(payload, StandardCharsets.UTF_8));
+            }
+            position += headerBytes + length;
+            offset++;
+        }
+        if (!untilWritePosition) {
+            writePosition = position;
+            nextOffset = offset;
+            lastTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * @return the CRC32C of the header fields and the payload of the record at a position
+     */
+    private int checksum(int position, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(position, Integer.BYTES + Long.BYTES));
+        if (headerBytes > HEADER_BYTES) {
+            crc.update(buffer.slice(position + TIMESTAMP_POSITION, Long.BYTES));
+        }
+        crc.update(buffer.slice(position + headerBytes, length));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks whether the record of an offset, which must be before {@code endOffset}, starts at a position. Since
+     * records are never overwritten while their segment is in use, the offset in the header tells records from stale
+     * or zero-filled bytes; the length may be zero, since empty payloads are valid records.
+     */
+    private boolean isRecordAt(int position, long offset, long endOffset) {
+        if (offset >= endOffset || buffer.capacity() - position < headerBytes) {
+            return false;
+        }
+        int length = buffer.getInt(position);
+        return length >= 0 && length <= buffer.capacity() - position - headerBytes
+                && buffer.getLong(position + Integer.BYTES) == offset;
+    }
+}
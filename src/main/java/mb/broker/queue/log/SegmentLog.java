@@ -0,0 +1,320 @@
+package mb.broker.queue.log;
+
+import mb.enums.FsyncPolicy;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * Append-only log of the messages of a durable queue, stored in a directory of memory-mapped {@link Segment segment}
+ * files. Every message gets a consecutive offset. The owner of the log reports up to which offset messages are
+ * consumed; this offset is periodically checkpointed, and segments that only hold consumed messages are recycled for
+ * new appends instead of allocating new files.
+ * <p>
+ * Appends are written to the mapped segments and reach the storage device depending on the {@link FsyncPolicy}:
+ * with {@code ALWAYS}, {@link #commit()} blocks until the appended messages are forced to the device, and concurrent
+ * committers share one force (group commit); with {@code INTERVAL}, the {@link LogManager} forces the log
+ * periodically; with {@code OS}, the operating system decides when to write back the mapped pages.
+ */
+public class SegmentLog implements AutoCloseable {
+    /**
+     * Consumes the messages of a log.
+     */
+    public interface RecordConsumer {
+        void accept(long offset, String message);
+    }
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String METADATA_FILE = "queue.properties";
+    private static final int MAX_RECYCLED_SEGMENTS = 2;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final boolean timestamped;
+    final TreeMap<Long, Segment> segments = new TreeMap<>();             // guarded by this
+    private final Deque<Path> recycledSegments = new ArrayDeque<>();     // guarded by this
+    Segment activeSegment;                                               // guarded by this
+    private volatile long consumedOffset;
+    private long checkpointedOffset;                                     // guarded by this
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long durableOffset;                                          // guarded by syncLock
+    private boolean syncing = false;                                     // guarded by syncLock
+
+    /**
+     * Opens the log in the given directory, creating it if necessary.
+     *
+     * @param directory    the directory of the log
+     * @param segmentBytes the size of a segment file
+     * @param fsyncPolicy  when appended messages are forced to the storage device
+     */
+    SegmentLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy) throws IOException {
+        this(directory, segmentBytes, fsyncPolicy, false);
+    }
+
+    /**
+     * @param timestamped whether the records carry their append time
+     */
+    SegmentLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, boolean timestamped) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.timestamped = timestamped;
+        Files.createDirectories(directory);
+
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        checkpointedOffset = Files.exists(checkpoint) ? ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getLong() : 0;
+        consumedOffset = checkpointedOffset;
+
+        List<Path> segmentFiles;
+        List<Path> freeSegmentFiles;
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> allFiles = files.sorted().toList();
+            segmentFiles = allFiles.stream().filter(Segment::isSegmentFile).toList();
+            freeSegmentFiles = allFiles.stream().filter(Segment::isFreeSegmentFile).toList();
+        }
+        for (Path freeSegmentFile : freeSegmentFiles) {
+            if (recycledSegments.size() < MAX_RECYCLED_SEGMENTS && Files.size(freeSegmentFile) == segmentBytes) {
+                recycledSegments.addLast(freeSegmentFile);
+            } else {
+                Files.delete(freeSegmentFile);
+            }
+        }
+        for (Path segmentFile : segmentFiles) {
+            Segment segment = Segment.map(segmentFile, Segment.baseOffsetOf(segmentFile), segmentBytes, timestamped);
+            segments.put(segment.getBaseOffset(), segment);
+        }
+        activeSegment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (activeSegment == null) {
+            activeSegment = Segment.map(Segment.pathOf(directory, checkpointedOffset), checkpointedOffset, segmentBytes,
+                    timestamped);
+            segments.put(checkpointedOffset, activeSegment);
+        }
+        durableOffset = activeSegment.getNextOffset();
+        recycleConsumedSegments();
+    }
+
+    /**
+     * Appends a message to the log.
+     *
+     * @param message the message
+     * @return the offset of the message
+     * @throws IOException if a new segment cannot be created
+     */
+    public synchronized long append(String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        if (!activeSegment.fits(payload.length)) {
+            roll(activeSegment.recordBytes(payload.length));
+        }
+        return activeSegment.append(payload);
+    }
+
+    /**
+     * Blocks until all messages appended so far are forced to the storage device, if the fsync policy is
+     * {@code ALWAYS}. Otherwise, returns immediately.
+     */
+    public void commit() {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            sync();
+        }
+    }
+
+    /**
+     * Passes the messages starting at the given offset to the consumer, in offset order.
+     */
+    public synchronized void read(long fromOffset, RecordConsumer consumer) {
+        Long first = segments.floorKey(fromOffset);
+        for (Segment segment : segments.tailMap(first == null ? fromOffset : first).values()) {
+            segment.read(fromOffset, consumer);
+        }
+    }
+
+    /**
+     * @return the offset of the first message that is not yet consumed, as of the last checkpoint
+     */
+    public synchronized long getCheckpointedOffset() {
+        return checkpointedOffset;
+    }
+
+    /**
+     * Reports that all messages before the given offset are consumed. Takes effect with the next checkpoint.
+     *
+     * @param offset the offset of the first message that is not yet consumed
+     */
+    public void setConsumedOffset(long offset) {
+        consumedOffset = offset;
+    }
+
+    /**
+     * Stores the queue metadata in the log directory.
+     */
+    public void writeMetadata(Properties metadata) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(directory.resolve(METADATA_FILE))) {
+            metadata.store(writer, null);
+        }
+    }
+
+    /**
+     * @return the queue metadata stored in the log directory, empty if there is none
+     */
+    public Properties readMetadata() throws IOException {
+        return readMetadata(directory);
+    }
+
+    /**
+     * @param directory the directory of a log, which need not be open
+     * @return the queue metadata stored in the log directory, empty if there is none
+     */
+    static Properties readMetadata(Path directory) throws IOException {
+        Properties metadata = new Properties();
+        Path path = directory.resolve(METADATA_FILE);
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                metadata.load(reader);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Forces all appended messages to the storage device. Concurrent callers share one force.
+     */
+    void sync() {
+        long target;
+        synchronized (this) {
+            target = activeSegment.getNextOffset();
+        }
+        syncLock.lock();
+        try {
+            while (durableOffset < target) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                syncLock.unlock();
+                long forcedOffset;
+                try {
+                    forcedOffset = force();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                }
+                durableOffset = Math.max(durableOffset, forcedOffset);
+                synced.signalAll();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the consumed offset to the checkpoint file, if it changed, and recycles the segments that only hold
+     * consumed messages.
+     */
+    synchronized void checkpoint() throws IOException {
+        long offset = consumedOffset;
+        if (offset == checkpointedOffset) {
+            return;
+        }
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, offset));
+            if (fsyncPolicy != FsyncPolicy.OS) {
+                channel.force(false);
+            }
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        checkpointedOffset = offset;
+        recycleConsumedSegments();
+    }
+
+    /**
+     * Deletes the log directory. The log must not be used afterward.
+     */
+    synchronized void delete() throws IOException {
+        segments.clear();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Override
+    public void close() {
+        if (fsyncPolicy != FsyncPolicy.OS) {
+            sync();
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to checkpoint log %s", directory);
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+    /**
+     * Forces the active segment to the storage device; completed segments were forced when the log rolled over.
+     *
+     * @return the offset up to which messages are durable
+     */
+    private long force() {
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            segment = activeSegment;
+            offset = segment.getNextOffset();
+        }
+        segment.force();
+        return offset;
+    }
+
+    private void roll(int minSize) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.OS) {
+            activeSegment.force();
+        }
+        long baseOffset = activeSegment.getNextOffset();
+        Path path = Segment.pathOf(directory, baseOffset);
+        Path recycled = recycledSegments.pollFirst();
+        if (recycled != null) {
+            Files.move(recycled, path);
+        }
+        activeSegment = Segment.map(path, baseOffset, Math.max(segmentBytes, minSize), timestamped);
+        segments.put(baseOffset, activeSegment);
+    }
+
+    private void recycleConsumedSegments() throws IOException {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == activeSegment || segment.getNextOffset() > checkpointedOffset) {
+                break;
+            }
+            iterator.remove();
+            if (recycledSegments.size() < MAX_RECYCLED_SEGMENTS && segment.getSize() == segmentBytes) {
+                Path freePath = Segment.freePathOf(directory, segment.getBaseOffset());
+                Files.move(segment.getPath(), freePath);
+                recycledSegments.addLast(freePath);
+            } else {
+                Files.delete(segment.getPath());
+            }
+        }
+    }
+}
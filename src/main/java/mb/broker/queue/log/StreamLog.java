@@ -0,0 +1,247 @@
+package mb.broker.queue.log;
+
+import mb.enums.FsyncPolicy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Log of a stream queue. Unlike a queue log, messages are not consumed: any number of {@link Reader readers} read the
+ * log from offsets of their own, sequentially and straight from the mapped segments, so the messages are stored once,
+ * no matter how many readers there are. Each message records its append time, so readers can also start at a time.
+ * <p>
+ * Messages are kept until the retention limits are exceeded: whole segments, oldest first, are deleted when the log
+ * is larger than its size limit, or when their last message is older than the age limit. The active segment is never
+ * deleted. Retention is applied with the periodic checkpoint of the {@link LogManager}, so the log may briefly
+ * exceed its limits.
+ */
+public class StreamLog extends SegmentLog {
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private volatile long endOffset;    // written under this; the offset after the last message readers may read
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition appended = waitLock.newCondition();
+    private volatile int waiting = 0;   // written under waitLock; number of readers waiting for messages
+
+    /**
+     * @param maxBytes the size limit of the log, 0 if unlimited
+     * @param maxAgeMs the age limit of the messages in milliseconds, 0 if unlimited
+     */
+    StreamLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long maxBytes, long maxAgeMs)
+            throws IOException {
+        super(directory, segmentBytes, fsyncPolicy, true);
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        synchronized (this) {
+            endOffset = activeSegment.getNextOffset();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    @Override
+    public synchronized long append(String message) throws IOException {
+        long offset = super.append(message);
+        endOffset = offset + 1;
+        if (waiting > 0) {
+            wakeReaders();
+        }
+        return offset;
+    }
+
+    /**
+     * @return the offset of the oldest retained message
+     */
+    public synchronized long getFirstOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return the offset the next appended message gets
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * Finds the first retained message appended at or after a time.
+     *
+     * @param timestamp the time in epoch milliseconds
+     * @return the offset of the message, or {@link #getEndOffset()} if all retained messages are older
+     */
+    public synchronized long offsetAt(long timestamp) {
+        for (Segment segment : segments.values()) {
+            if (segment.getLastTimestamp() >= timestamp) {
+                return segment.offsetAt(timestamp, endOffset);
+            }
+        }
+        return endOffset;
+    }
+
+    /**
+     * Creates a reader positioned at an offset. Offsets before the oldest retained message start at the oldest
+     * retained message, offsets after the end start at the end.
+     *
+     * @param offset the offset of the first message to read
+     * @return the reader
+     */
+    public Reader newReader(long offset) {
+        return new Reader(Math.min(offset, endOffset));
+    }
+
+    /**
+     * Wakes up all readers waiting in {@link Reader#await(long, TimeUnit, BooleanSupplier)}, so they check their
+     * conditions.
+     */
+    public void wakeReaders() {
+        waitLock.lock();
+        try {
+            appended.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the retention limits.
+     */
+    @Override
+    synchronized void checkpoint() throws IOException {
+        if (maxBytes == 0 && maxAgeMs == 0) {
+            return;
+        }
+        long totalBytes = 0;
+        for (Segment segment : segments.values()) {
+            totalBytes += segment.getSize();
+        }
+        long minTimestamp = System.currentTimeMillis() - maxAgeMs;
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == activeSegment || !((maxBytes > 0 && totalBytes > maxBytes)
+                    || (maxAgeMs > 0 && segment.getLastTimestamp() < minTimestamp))) {
+                break;
+            }
+            // Readers still in the segment finish it from their mapping, which outlives the file
+            iterator.remove();
+            Files.delete(segment.getPath());
+            totalBytes -= segment.getSize();
+        }
+    }
+
+    /**
+     * A position in the log, advanced by reading. A reader is used by one thread at a time, but reads concurrently
+     * with appends and with other readers; it only takes the lock of the log to move on to the next segment.
+     */
+    public final class Reader {
+        private Segment segment;    // null until located
+        private int position;
+        private long offset;
+
+        private Reader(long offset) {
+            this.offset = offset;
+        }
+
+        /**
+         * @return the offset of the next message to read
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Reads the next messages, without waiting for new ones. Messages deleted by retention before they were read
+         * are skipped.
+         *
+         * @param messages the collection to add the messages to
+         * @param max      the maximal number of messages to read
+         * @return the number of messages read
+         */
+        public int read(Collection<? super String> messages, int max) {
+            int count = 0;
+            while (count < max) {
+                long end = endOffset;
+                if (offset >= end) {
+                    break;
+                }
+                if (segment == null && !locate()) {
+                    break;
+                }
+                int before = messages.size();
+                position = segment.read(position, offset, end, max - count, messages);
+                int read = messages.size() - before;
+                if (read == 0) {
+                    Segment current = segment;
+                    segment = null;     // The next message is in a later segment
+                    if (!locate() || segment == current) {
+                        break;
+                    }
+                }
+                offset += read;
+                count += read;
+            }
+            return count;
+        }
+
+        /**
+         * Waits until there are messages to read, or a condition of the owner of the reader holds. The condition is
+         * checked before waiting, so a condition that becomes true before {@link #wakeReaders()} is called is not
+         * missed.
+         *
+         * @param ready the condition, e.g. whether messages were returned to the owner
+         * @return false if the timeout elapsed
+         */
+        public boolean await(long timeout, TimeUnit unit, BooleanSupplier ready) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            waitLock.lockInterruptibly();
+            try {
+                waiting++;
+                try {
+                    if (offset >= endOffset && !ready.getAsBoolean()) {
+                        nanos = appended.awaitNanos(nanos);
+                    }
+                } finally {
+                    waiting--;
+                }
+                return nanos > 0;
+            } finally {
+                waitLock.unlock();
+            }
+        }
+
+        /**
+         * Finds the segment and position of the offset, skipping messages that are no longer retained.
+         *
+         * @return false if the log has no segment for the offset
+         */
+        private boolean locate() {
+            synchronized (StreamLog.this) {
+                if (offset < segments.firstKey()) {
+                    offset = segments.firstKey();
+                }
+                Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+                if (entry == null) {
+                    return false;
+                }
+                segment = entry.getValue();
+                position = segment.positionOf(offset, endOffset);
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package mb.broker.replication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static mb.utils.CommandBuilder.REPLICATE;
+import static mb.utils.ValidationUtils.isInt;
+import static mb.utils.ValidationUtils.isLong;
+
+/**
+ * Consecutive entries of a replication stream, sent to a follower as
+ * {@code replicate <leader-id> <stream-id> <first-seq> [<token-count> <token>...]...}. Each entry is a command of
+ * {@code <token-count>} tokens. Since messages sent with binary framing may contain any character, whitespace and
+ * backslashes in tokens are escaped as a backslash followed by the four hex digits of the character, and an empty
+ * token is sent as a single backslash.
+ * <p>
+ * The follower answers {@code ok <next-seq>} with the sequence number of the first entry it did not apply yet, or
+ * {@value #OUT_OF_SYNC} if it does not know the stream or misses entries before the batch.
+ *
+ * @param leaderId the ID of the leader that sends the entries
+ * @param streamId the ID of the stream, which is new after every snapshot; 0 if the entries belong to no stream yet
+ * @param firstSeq the sequence number of the first entry, where the first entry of a stream has number 1
+ * @param entries  the entries, each split into its tokens
+ */
+public record ReplicationBatch(
+        int leaderId,
+        long streamId,
+        long firstSeq,
+        List<String[]> entries
+) {
+    public static final String OUT_OF_SYNC = "error out of sync";
+    private static final char ESCAPE = '\\';
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return the request that sends the entries to a follower
+     */
+    public String toCommand() {
+        StringBuilder command = new StringBuilder(REPLICATE)
+                .append(' ').append(leaderId)
+                .append(' ').append(streamId)
+                .append(' ').append(firstSeq);
+        for (String[] entry : entries) {
+            command.append(' ').append(entry.length);
+            for (String token : entry) {
+                appendEscaped(command.append(' '), token);
+            }
+        }
+        return command.toString();
+    }
+
+    /**
+     * @param args the request of the leader, split at spaces
+     * @return the entries, or null if the request is malformed
+     */
+    public static ReplicationBatch parse(String[] args) {
+        if (args.length < 4 || !REPLICATE.equals(args[0]) || !isInt(args[1]) || !isLong(args[2]) || !isLong(args[3])
+                || Long.parseLong(args[3]) < 1) {
+            return null;
+        }
+        List<String[]> entries = new ArrayList<>();
+        int i = 4;
+        while (i < args.length) {
+            if (!isInt(args[i]) || Integer.parseInt(args[i]) < 1 || Integer.parseInt(args[i]) > args.length - i - 1) {
+                return null;
+            }
+            int tokenCount = Integer.parseInt(args[i]);
+            String[] entry = Arrays.copyOfRange(args, i + 1, i + 1 + tokenCount);
+            for (int j = 0; j < entry.length; j++) {
+                entry[j] = unescape(entry[j]);
+                if (entry[j] == null) {
+                    return null;
+                }
+            }
+            entries.add(entry);
+            i += tokenCount + 1;
+        }
+        return new ReplicationBatch(Integer.parseInt(args[1]), Long.parseLong(args[2]), Long.parseLong(args[3]),
+                entries);
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private static boolean needsEscape(char c) {
+        return c == ESCAPE || Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+
+    private static void appendEscaped(StringBuilder command, String token) {
+        if (token.isEmpty()) {
+            command.append(ESCAPE);
+            return;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (needsEscape(c)) {
+                command.append(ESCAPE).append(HEX_DIGITS[c >> 12 & 0xF]).append(HEX_DIGITS[c >> 8 & 0xF])
+                        .append(HEX_DIGITS[c >> 4 & 0xF]).append(HEX_DIGITS[c & 0xF]);
+            } else {
+                command.append(c);
+            }
+        }
+    }
+
+    /**
+     * @return the unescaped token, or null if it contains an invalid escape sequence
+     */
+    private static String unescape(String token) {
+        if (token.indexOf(ESCAPE) < 0) {
+            return token;
+        }
+        if (token.length() == 1) {
+            return "";
+        }
+        StringBuilder unescaped = new StringBuilder(token.length());
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c != ESCAPE) {
+                unescaped.append(c);
+                continue;
+            }
+            if (i + 4 >= token.length()) {
+                return null;
+            }
+            int value = 0;
+            for (int j = i + 1; j <= i + 4; j++) {
+                int digit = Character.digit(token.charAt(j), 16);
+                if (digit < 0) {
+                    return null;
+                }
+                value = value << 4 | digit;
+            }
+            unescaped.append((char) value);
+            i += 4;
+        }
+        return unescaped.toString();
+    }
+}
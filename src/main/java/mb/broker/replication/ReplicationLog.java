@@ -0,0 +1,184 @@
+package mb.broker.replication;
+
+import mb.config.ReplicationConfig;
+import mb.election.Peer;
+import mb.enums.ReplicationAck;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Ordered log of the changes to the state of the leader, e.g. declarations, bindings, publishes and acknowledgements,
+ * which is streamed to every follower, so that followers keep a warm copy of the state and a new leader can serve
+ * right away. An entry is a command that replays a change on a follower; the broker defines the entries, the log only
+ * orders and delivers them.
+ * <p>
+ * Every follower has a {@link ReplicationStream} of its own, which starts with a snapshot of the state and starts over
+ * with a new snapshot whenever the follower lost track of it, e.g. after a restart or after falling more than the
+ * backlog behind. A change holds the read lock of the log while it is applied and appended, and a snapshot holds the
+ * write lock, so a snapshot reflects exactly the entries appended before it.
+ * <p>
+ * With {@link ReplicationAck#ASYNC}, a change is confirmed to the client once the leader applied it. With
+ * {@link ReplicationAck#SYNC}, it is confirmed once the followers in sync applied it as well; a follower that does not
+ * confirm it within the timeout is no longer waited for until it caught up again. Nothing blocks meanwhile: the
+ * confirmation completes a future, on the thread of the stream of the last follower.
+ * <p>
+ * The log hands itself to its streams while it is constructed. The streams only use it once the log is started, and
+ * the class is final, so nothing sees the log before its constructor completed.
+ */
+public final class ReplicationLog {
+    private static final Change UNREPLICATED = new Change(null, new long[0]);
+    private static final CompletableFuture<Void> REPLICATED = CompletableFuture.completedFuture(null);
+    private static final long SNAPSHOT_LOCK_TIMEOUT_MS = 50;
+
+    private final ReplicationConfig config;
+    private final Supplier<List<String[]>> snapshot;
+    private final List<ReplicationStream> streams;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean started = false;
+
+    /**
+     * Creates a log that is not started yet, so changes are not replicated.
+     *
+     * @param leaderId  the ID of this node, which sends the entries
+     * @param followers the nodes to replicate to
+     * @param config    the configuration of the replication
+     * @param snapshot  returns the entries that rebuild the current state on a follower, starting with an entry that
+     *                  clears the state of the follower. Called while no change is in progress.
+     */
+    public ReplicationLog(int leaderId, List<Peer> followers, ReplicationConfig config,
+                          Supplier<List<String[]>> snapshot) {
+        this.config = config;
+        this.snapshot = snapshot;
+        this.streams = followers.stream().map(peer -> new ReplicationStream(this, leaderId, peer, config)).toList();
+    }
+
+    /**
+     * Starts replicating to the followers, once this node became leader.
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        streams.forEach(ReplicationStream::start);
+    }
+
+    /**
+     * Stops replicating.
+     */
+    public void close() {
+        started = false;
+        streams.forEach(ReplicationStream::close);
+    }
+
+    /**
+     * @return true if changes are replicated, i.e. the log is started and there are followers
+     */
+    public boolean isReplicating() {
+        return started && !streams.isEmpty();
+    }
+
+    /**
+     * Begins a change of the state, which must be closed once the change is applied and its entries are appended.
+     * Snapshots wait for the change to close, so a change must not block, e.g. a publish should wait for room in the
+     * queues before it begins its change.
+     *
+     * @return the change, which appends nothing if the log is not started or there are no followers
+     */
+    public Change beginChange() {
+        if (!isReplicating()) {
+            return UNREPLICATED;
+        }
+        lock.readLock().lock();
+        return new Change(this, new long[streams.size()]);
+    }
+
+    /**
+     * A change in progress. Entries appended to it are sent in the order they were appended, after the entries of
+     * changes that closed before.
+     */
+    public static final class Change implements AutoCloseable {
+        private final ReplicationLog log;   // null if the change is not replicated
+        private final long[] lastSeqs;      // the sequence number of the last entry per stream, -1 if dropped
+
+        private Change(ReplicationLog log, long[] lastSeqs) {
+            this.log = log;
+            this.lastSeqs = lastSeqs;
+        }
+
+        /**
+         * Appends an entry.
+         *
+         * @param entry the tokens of the entry, which must not be modified afterward
+         */
+        public void append(String... entry) {
+            if (log == null) {
+                return;
+            }
+            for (int i = 0; i < lastSeqs.length; i++) {
+                lastSeqs[i] = log.streams.get(i).enqueue(entry);
+            }
+        }
+
+        /**
+         * Returns a future that completes once the change may be confirmed: right away with asynchronous
+         * acknowledgement, or once the followers in sync applied the entries of the change with synchronous
+         * acknowledgement, but no later than the replication timeout. The future may complete on a replication
+         * thread, so dependent actions must not block. Should be called after the change was closed.
+         */
+        public CompletableFuture<Void> replicated() {
+            if (log == null || log.config.ack() != ReplicationAck.SYNC) {
+                return REPLICATED;
+            }
+            CompletableFuture<?>[] acknowledged = new CompletableFuture<?>[lastSeqs.length];
+            boolean done = true;
+            for (int i = 0; i < lastSeqs.length; i++) {
+                acknowledged[i] = log.streams.get(i).acknowledged(lastSeqs[i]);
+                done &= acknowledged[i].isDone();
+            }
+            if (done) {
+                return REPLICATED;
+            }
+            return CompletableFuture.allOf(acknowledged)
+                    .completeOnTimeout(null, log.config.timeoutMs(), TimeUnit.MILLISECONDS)
+                    .thenRun(() -> {
+                        for (int i = 0; i < acknowledged.length; i++) {
+                            if (!acknowledged[i].isDone()) {
+                                log.streams.get(i).timedOut(lastSeqs[i]);
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        public void close() {
+            if (log != null) {
+                log.lock.readLock().unlock();
+            }
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    /**
+     * Restarts a stream with a snapshot of the state. Gives up if changes are in progress for too long, since changes
+     * that begin meanwhile wait for the snapshot.
+     *
+     * @return true if the stream was restarted
+     */
+    boolean restartWithSnapshot(ReplicationStream stream) throws InterruptedException {
+        if (!lock.writeLock().tryLock(SNAPSHOT_LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        try {
+            stream.restart(snapshot.get());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
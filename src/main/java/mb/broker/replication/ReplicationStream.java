@@ -0,0 +1,333 @@
+package mb.broker.replication;
+
+import mb.config.ReplicationConfig;
+import mb.election.Peer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static mb.broker.replication.ReplicationBatch.OUT_OF_SYNC;
+import static mb.utils.CommandBuilder.OK;
+import static mb.utils.LoggingUtil.logInfoMsg;
+import static mb.utils.LoggingUtil.logWarningMsg;
+import static mb.utils.ValidationUtils.isLong;
+
+/**
+ * The entries of a {@link ReplicationLog} on their way to one follower. Entries are kept until the follower confirms
+ * them, and sent in batches, one batch at a time, which is resent until it is confirmed. The follower skips entries it
+ * already applied, so resending is safe.
+ * <p>
+ * A stream starts with a snapshot and has an ID of its own, under which its entries are numbered from 1. If the
+ * follower does not know the stream, e.g. because it restarted, or if more than the backlog of entries wait for the
+ * follower, the entries are dropped and the stream starts over with a new snapshot once the follower is reachable.
+ */
+class ReplicationStream {
+    private static final int MAX_BATCH_ENTRIES = 1024;
+    private static final int MAX_BATCH_CHARS = 1 << 20;
+    private static final long MIN_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+    private static final CompletableFuture<Void> ACKNOWLEDGED = CompletableFuture.completedFuture(null);
+
+    private final ReplicationLog log;
+    private final int leaderId;
+    private final Peer follower;
+    private final ReplicationConfig config;
+    private final ReentrantLock lock = new ReentrantLock();   // Not synchronized, which would pin virtual threads
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<String[]> unconfirmed = new ArrayDeque<>();    // guarded by lock
+    private final TreeMap<Long, CompletableFuture<Void>> waiters = new TreeMap<>();   // guarded by lock; by sequence
+    private long streamId = 0;          // guarded by lock; 0 while a snapshot is needed
+    private long firstSeq = 1;          // guarded by lock; the sequence number of the first unconfirmed entry
+    private long snapshotEnd = 0;       // guarded by lock; the sequence number of the last entry of the snapshot
+    private boolean inSync = false;     // guarded by lock
+    private boolean reachable = true;   // only accessed by the sender thread
+    private volatile Thread sender;
+    private volatile boolean closed = false;
+
+    ReplicationStream(ReplicationLog log, int leaderId, Peer follower, ReplicationConfig config) {
+        this.log = log;
+        this.leaderId = leaderId;
+        this.follower = follower;
+        this.config = config;
+    }
+
+    void start() {
+        sender = Thread.ofVirtual().name("replication-" + follower.id()).start(this::run);
+    }
+
+    void close() {
+        closed = true;
+        Thread thread = sender;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        List<CompletableFuture<Void>> released;
+        lock.lock();
+        try {
+            released = release(Long.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+        complete(released);
+    }
+
+    /**
+     * Appends an entry, unless the stream waits for a snapshot, which will include the change of the entry.
+     *
+     * @return the sequence number of the entry, or -1 if it was dropped
+     */
+    long enqueue(String[] entry) {
+        List<CompletableFuture<Void>> released;
+        lock.lock();
+        try {
+            if (streamId == 0) {
+                return -1;
+            }
+            long snapshotBacklog = Math.max(0, snapshotEnd - firstSeq + 1);
+            if (unconfirmed.size() - snapshotBacklog < config.backlog()) {
+                unconfirmed.addLast(entry);
+                changed.signalAll();
+                return firstSeq + unconfirmed.size() - 1;
+            }
+            logWarningMsg("Follower %d fell more than %d entries behind, it will get a snapshot",
+                    follower.id(), config.backlog());
+            released = drop();
+        } finally {
+            lock.unlock();
+        }
+        complete(released);
+        return -1;
+    }
+
+    /**
+     * Returns a future that completes once the follower confirmed an entry, or once the follower is no longer waited
+     * for because it is out of sync. The future may complete on the thread of the stream, which must not be blocked.
+     *
+     * @param seq the sequence number of the entry, -1 if it was dropped
+     */
+    CompletableFuture<Void> acknowledged(long seq) {
+        lock.lock();
+        try {
+            if (!inSync || seq < firstSeq) {
+                return ACKNOWLEDGED;
+            }
+            return waiters.computeIfAbsent(seq, s -> new CompletableFuture<>());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops waiting for the follower until it caught up, because it did not confirm an entry in time.
+     *
+     * @param seq the sequence number of the entry
+     */
+    void timedOut(long seq) {
+        List<CompletableFuture<Void>> released;
+        lock.lock();
+        try {
+            if (!inSync || seq < firstSeq) {
+                return;
+            }
+            inSync = false;
+            logWarningMsg("Follower %d did not confirm a change in time, no longer waiting for it until it caught up",
+                    follower.id());
+            released = release(Long.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+        complete(released);
+    }
+
+    /**
+     * Starts a new stream with a snapshot. Called by the log, while no change is in progress.
+     */
+    void restart(List<String[]> snapshot) {
+        List<CompletableFuture<Void>> released;
+        lock.lock();
+        try {
+            streamId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+            firstSeq = 1;
+            snapshotEnd = snapshot.size();
+            unconfirmed.clear();
+            unconfirmed.addAll(snapshot);
+            inSync = false;
+            released = release(Long.MAX_VALUE);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        complete(released);
+        logInfoMsg("Sending a snapshot of %d entries to follower %d", snapshot.size(), follower.id());
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private void run() {
+        long backoffMs = 0;
+        try {
+            while (!closed) {
+                if (backoffMs > 0) {
+                    Thread.sleep(backoffMs);
+                }
+                backoffMs = sendNext() ? 0 : Math.min(MAX_BACKOFF_MS, Math.max(MIN_BACKOFF_MS, backoffMs * 2));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the next batch, or a snapshot if needed.
+     *
+     * @return false if the follower could not be reached or refused the entries, so the next attempt should wait
+     */
+    private boolean sendNext() throws InterruptedException {
+        ReplicationBatch batch = awaitBatch();
+        if (batch == null) {
+            // Only take a snapshot for a follower that answers, e.g. with an empty batch of no stream
+            String response = follower.channel().request(
+                    new ReplicationBatch(leaderId, 0, 1, List.of()).toCommand(), config.timeoutMs());
+            if (!isReachable(response) || !(response.startsWith(OK) || response.equals(OUT_OF_SYNC))) {
+                return false;
+            }
+            return log.restartWithSnapshot(this);
+        }
+        String response = follower.channel().request(batch.toCommand(), config.timeoutMs());
+        if (!isReachable(response)) {
+            return false;
+        }
+        String[] args = response.split(" ");
+        if (args.length == 2 && OK.equals(args[0]) && isLong(args[1])) {
+            confirm(batch.streamId(), Long.parseLong(args[1]));
+            return true;
+        }
+        if (response.equals(OUT_OF_SYNC)) {
+            logWarningMsg("Follower %d lost track of the replication stream, it will get a snapshot", follower.id());
+            List<CompletableFuture<Void>> released = List.of();
+            lock.lock();
+            try {
+                if (streamId == batch.streamId()) {
+                    released = drop();
+                }
+            } finally {
+                lock.unlock();
+            }
+            complete(released);
+            return true;
+        }
+        logWarningMsg("Follower %d refused replication: %s", follower.id(), response);
+        return false;
+    }
+
+    /**
+     * Waits for entries to send.
+     *
+     * @return the first unconfirmed entries, or null if a snapshot is needed
+     */
+    private ReplicationBatch awaitBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            while (streamId != 0 && unconfirmed.isEmpty()) {
+                changed.await();
+            }
+            if (streamId == 0) {
+                return null;
+            }
+            List<String[]> entries = new ArrayList<>(Math.min(unconfirmed.size(), MAX_BATCH_ENTRIES));
+            int chars = 0;
+            for (String[] entry : unconfirmed) {
+                if (entries.size() == MAX_BATCH_ENTRIES || (!entries.isEmpty() && chars >= MAX_BATCH_CHARS)) {
+                    break;
+                }
+                entries.add(entry);
+                for (String token : entry) {
+                    chars += token.length() + 1;
+                }
+            }
+            return new ReplicationBatch(leaderId, streamId, firstSeq, entries);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the entries the follower applied, and completes the futures of those entries. The follower is in sync
+     * once the snapshot is applied and at most one batch of entries waits for it.
+     *
+     * @param id      the ID of the stream the follower confirmed entries of
+     * @param nextSeq the sequence number of the first entry the follower did not apply yet
+     */
+    private void confirm(long id, long nextSeq) {
+        List<CompletableFuture<Void>> released;
+        lock.lock();
+        try {
+            if (streamId != id) {
+                return;
+            }
+            while (firstSeq < nextSeq && !unconfirmed.isEmpty()) {
+                unconfirmed.pollFirst();
+                firstSeq++;
+            }
+            if (!inSync && firstSeq > snapshotEnd && unconfirmed.size() <= MAX_BATCH_ENTRIES) {
+                inSync = true;
+                logInfoMsg("Follower %d is in sync", follower.id());
+            }
+            released = release(firstSeq);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        complete(released);
+    }
+
+    /**
+     * Drops the entries and waits for a snapshot. Must be called while holding the lock.
+     *
+     * @return the futures of the entries, to complete once the lock is released
+     */
+    private List<CompletableFuture<Void>> drop() {
+        streamId = 0;
+        unconfirmed.clear();
+        inSync = false;
+        changed.signalAll();
+        return release(Long.MAX_VALUE);
+    }
+
+    /**
+     * Removes the futures of the entries before a sequence number. Must be called while holding the lock.
+     *
+     * @return the futures, to complete once the lock is released, since completing them runs the callbacks of the
+     * changes that waited for them
+     */
+    private List<CompletableFuture<Void>> release(long beforeSeq) {
+        NavigableMap<Long, CompletableFuture<Void>> released = waiters.headMap(beforeSeq, false);
+        if (released.isEmpty()) {
+            return List.of();
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>(released.values());
+        released.clear();
+        return futures;
+    }
+
+    private static void complete(List<CompletableFuture<Void>> futures) {
+        futures.forEach(future -> future.complete(null));
+    }
+
+    private boolean isReachable(String response) {
+        if (response == null && reachable) {
+            logWarningMsg("Follower %d is unreachable, replication to it is paused", follower.id());
+        } else if (response != null && !reachable) {
+            logInfoMsg("Follower %d is reachable again", follower.id());
+        }
+        reachable = response != null;
+        return reachable;
+    }
+}
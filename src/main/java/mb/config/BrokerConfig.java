@@ -18,8 +18,83 @@ public record BrokerConfig(
         int[] electionPeerIds,
         long electionHeartbeatTimeoutMs,
         String monitoringHost,
-        int monitoringPort
+        int monitoringPort,
+        String transport,
+        int transportIoThreads,
+        int transportFlushBatch,
+        int deliveryBatchSize,
+        long deliveryLingerMs,
+        long queueBlockTimeoutMs,
+        String queueImplementation,
+        int queueRingCapacity,
+        String queueDataDir,
+        String queueFsync,
+        long queueFsyncIntervalMs,
+        int queueSegmentBytes,
+        long queueSpillThresholdBytes,
+        int exchangeRoutingCacheSize,
+        String exchangeTopicMatcher,
+        String exchangeFanoutMode,
+        int exchangeFanoutLogCapacity,
+        String exchangeFanoutSlowPolicy,
+        String electionFailureDetector,
+        double electionPhiThreshold,
+        int electionPhiWindowSize,
+        long electionPhiMinStdDevMs,
+        long electionPhiAcceptablePauseMs,
+        String electionDataDir,
+        int electionRaftTimeoutJitterMs,
+        String replicationAck,
+        int replicationTimeoutMs,
+        int replicationBacklog,
+        int monitoringStatsIntervalMs
 ) {
+    public static final String DEFAULT_TRANSPORT = "blocking";
+    public static final int DEFAULT_TRANSPORT_IO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int DEFAULT_TRANSPORT_FLUSH_BATCH = 64;
+    public static final int DEFAULT_DELIVERY_BATCH_SIZE = 128;
+    public static final int DEFAULT_DELIVERY_LINGER_MS = 0;
+    public static final int DEFAULT_QUEUE_BLOCK_TIMEOUT_MS = 5000;
+    public static final String DEFAULT_QUEUE_IMPLEMENTATION = "deque";
+    public static final int DEFAULT_QUEUE_RING_CAPACITY = 65536;
+    public static final String DEFAULT_QUEUE_DATA_DIR = "data";
+    public static final String DEFAULT_QUEUE_FSYNC = "interval";
+    public static final int DEFAULT_QUEUE_FSYNC_INTERVAL_MS = 1000;
+    public static final int DEFAULT_QUEUE_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_QUEUE_SPILL_THRESHOLD_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_EXCHANGE_ROUTING_CACHE_SIZE = 4096;
+    public static final String DEFAULT_EXCHANGE_TOPIC_MATCHER = "trie";
+    public static final String DEFAULT_EXCHANGE_FANOUT_MODE = "queues";
+    public static final int DEFAULT_EXCHANGE_FANOUT_LOG_CAPACITY = 65536;
+    public static final String DEFAULT_EXCHANGE_FANOUT_SLOW_POLICY = "spill";
+    public static final String DEFAULT_ELECTION_FAILURE_DETECTOR = "fixed";
+    public static final double DEFAULT_ELECTION_PHI_THRESHOLD = 8.0;
+    public static final int DEFAULT_ELECTION_PHI_WINDOW_SIZE = 1000;
+    public static final int DEFAULT_ELECTION_PHI_MIN_STD_DEV_MS = 10;
+    public static final int DEFAULT_ELECTION_PHI_ACCEPTABLE_PAUSE_MS = 0;
+    public static final String DEFAULT_ELECTION_DATA_SUBDIR = "election";
+    public static final int DEFAULT_ELECTION_RAFT_TIMEOUT_JITTER_MS = 150;
+    public static final String DEFAULT_REPLICATION_ACK = "async";
+    public static final int DEFAULT_REPLICATION_TIMEOUT_MS = 1000;
+    public static final int DEFAULT_REPLICATION_BACKLOG = 65536;
+    public static final int DEFAULT_MONITORING_STATS_INTERVAL_MS = 60000;
+
+    /**
+     * Returns the default directory of the durable queues and spilled messages of a broker, which is separate for
+     * every broker.
+     */
+    public static String defaultQueueDataDir(String componentId) {
+        return DEFAULT_QUEUE_DATA_DIR + "/" + componentId;
+    }
+
+    /**
+     * Returns the default directory of the persisted election state of a broker, a subdirectory of the default queue
+     * directory that queues do not use, so that the two stores never share a directory by default.
+     */
+    public static String defaultElectionDataDir(String componentId) {
+        return defaultQueueDataDir(componentId) + "/" + DEFAULT_ELECTION_DATA_SUBDIR;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -31,6 +106,25 @@ public record BrokerConfig(
                 electionPort == that.electionPort &&
                 electionHeartbeatTimeoutMs == that.electionHeartbeatTimeoutMs &&
                 monitoringPort == that.monitoringPort &&
+                transportIoThreads == that.transportIoThreads &&
+                transportFlushBatch == that.transportFlushBatch &&
+                deliveryBatchSize == that.deliveryBatchSize &&
+                deliveryLingerMs == that.deliveryLingerMs &&
+                queueBlockTimeoutMs == that.queueBlockTimeoutMs &&
+                queueRingCapacity == that.queueRingCapacity &&
+                queueFsyncIntervalMs == that.queueFsyncIntervalMs &&
+                queueSegmentBytes == that.queueSegmentBytes &&
+                queueSpillThresholdBytes == that.queueSpillThresholdBytes &&
+                exchangeRoutingCacheSize == that.exchangeRoutingCacheSize &&
+                exchangeFanoutLogCapacity == that.exchangeFanoutLogCapacity &&
+                Double.compare(electionPhiThreshold, that.electionPhiThreshold) == 0 &&
+                electionPhiWindowSize == that.electionPhiWindowSize &&
+                electionPhiMinStdDevMs == that.electionPhiMinStdDevMs &&
+                electionPhiAcceptablePauseMs == that.electionPhiAcceptablePauseMs &&
+                electionRaftTimeoutJitterMs == that.electionRaftTimeoutJitterMs &&
+                replicationTimeoutMs == that.replicationTimeoutMs &&
+                replicationBacklog == that.replicationBacklog &&
+                monitoringStatsIntervalMs == that.monitoringStatsIntervalMs &&
                 Objects.equals(domain, that.domain) &&
                 Objects.equals(dnsHost, that.dnsHost) &&
                 Objects.equals(host, that.host) &&
@@ -38,6 +132,16 @@ public record BrokerConfig(
                 Objects.equals(electionType, that.electionType) &&
                 Objects.equals(electionDomain, that.electionDomain) &&
                 Objects.equals(monitoringHost, that.monitoringHost) &&
+                Objects.equals(transport, that.transport) &&
+                Objects.equals(queueImplementation, that.queueImplementation) &&
+                Objects.equals(queueDataDir, that.queueDataDir) &&
+                Objects.equals(queueFsync, that.queueFsync) &&
+                Objects.equals(exchangeTopicMatcher, that.exchangeTopicMatcher) &&
+                Objects.equals(exchangeFanoutMode, that.exchangeFanoutMode) &&
+                Objects.equals(exchangeFanoutSlowPolicy, that.exchangeFanoutSlowPolicy) &&
+                Objects.equals(electionFailureDetector, that.electionFailureDetector) &&
+                Objects.equals(electionDataDir, that.electionDataDir) &&
+                Objects.equals(replicationAck, that.replicationAck) &&
                 Objects.deepEquals(electionPeerIds, that.electionPeerIds) &&
                 Objects.deepEquals(electionPeerPorts, that.electionPeerPorts) &&
                 Objects.deepEquals(electionPeerHosts, that.electionPeerHosts);
@@ -27,7 +27,36 @@ public class ConfigParser {
                 config.getIntArr("election.peer.ids"),
                 config.getInt("election.heartbeat.timeout.ms"),
                 config.getString("monitoring.host"),
-                config.getInt("monitoring.port")
+                config.getInt("monitoring.port"),
+                config.getString("broker.transport", BrokerConfig.DEFAULT_TRANSPORT),
+                config.getInt("broker.transport.io.threads", BrokerConfig.DEFAULT_TRANSPORT_IO_THREADS),
+                config.getInt("broker.transport.flush.batch", BrokerConfig.DEFAULT_TRANSPORT_FLUSH_BATCH),
+                config.getInt("broker.delivery.batch.size", BrokerConfig.DEFAULT_DELIVERY_BATCH_SIZE),
+                config.getInt("broker.delivery.linger.ms", BrokerConfig.DEFAULT_DELIVERY_LINGER_MS),
+                config.getInt("broker.queue.block.timeout.ms", BrokerConfig.DEFAULT_QUEUE_BLOCK_TIMEOUT_MS),
+                config.getString("broker.queue.implementation", BrokerConfig.DEFAULT_QUEUE_IMPLEMENTATION),
+                config.getInt("broker.queue.ring.capacity", BrokerConfig.DEFAULT_QUEUE_RING_CAPACITY),
+                config.getString("broker.queue.data.dir", BrokerConfig.defaultQueueDataDir(componentId)),
+                config.getString("broker.queue.fsync", BrokerConfig.DEFAULT_QUEUE_FSYNC),
+                config.getInt("broker.queue.fsync.interval.ms", BrokerConfig.DEFAULT_QUEUE_FSYNC_INTERVAL_MS),
+                config.getInt("broker.queue.segment.bytes", BrokerConfig.DEFAULT_QUEUE_SEGMENT_BYTES),
+                config.getLong("broker.queue.spill.threshold.bytes", BrokerConfig.DEFAULT_QUEUE_SPILL_THRESHOLD_BYTES),
+                config.getInt("broker.exchange.routing.cache.size", BrokerConfig.DEFAULT_EXCHANGE_ROUTING_CACHE_SIZE),
+                config.getString("broker.exchange.topic.matcher", BrokerConfig.DEFAULT_EXCHANGE_TOPIC_MATCHER),
+                config.getString("broker.exchange.fanout.mode", BrokerConfig.DEFAULT_EXCHANGE_FANOUT_MODE),
+                config.getInt("broker.exchange.fanout.log.capacity", BrokerConfig.DEFAULT_EXCHANGE_FANOUT_LOG_CAPACITY),
+                config.getString("broker.exchange.fanout.slow.policy", BrokerConfig.DEFAULT_EXCHANGE_FANOUT_SLOW_POLICY),
+                config.getString("election.failure.detector", BrokerConfig.DEFAULT_ELECTION_FAILURE_DETECTOR),
+                config.getDouble("election.phi.threshold", BrokerConfig.DEFAULT_ELECTION_PHI_THRESHOLD),
+                config.getInt("election.phi.window.size", BrokerConfig.DEFAULT_ELECTION_PHI_WINDOW_SIZE),
+                config.getInt("election.phi.min.stddev.ms", BrokerConfig.DEFAULT_ELECTION_PHI_MIN_STD_DEV_MS),
+                config.getInt("election.phi.acceptable.pause.ms", BrokerConfig.DEFAULT_ELECTION_PHI_ACCEPTABLE_PAUSE_MS),
+                config.getString("election.data.dir", BrokerConfig.defaultElectionDataDir(componentId)),
+                config.getInt("election.raft.timeout.jitter.ms", BrokerConfig.DEFAULT_ELECTION_RAFT_TIMEOUT_JITTER_MS),
+                config.getString("broker.replication.ack", BrokerConfig.DEFAULT_REPLICATION_ACK),
+                config.getInt("broker.replication.timeout.ms", BrokerConfig.DEFAULT_REPLICATION_TIMEOUT_MS),
+                config.getInt("broker.replication.backlog", BrokerConfig.DEFAULT_REPLICATION_BACKLOG),
+                config.getInt("monitoring.stats.interval.ms", BrokerConfig.DEFAULT_MONITORING_STATS_INTERVAL_MS)
         );
     }
 
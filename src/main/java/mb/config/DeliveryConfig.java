@@ -0,0 +1,14 @@
+package mb.config;
+
+/**
+ * The configuration of message delivery to subscribers.
+ *
+ * @param batchSize the maximal number of messages that are delivered with one flush
+ * @param lingerMs  how long a subscription waits for more messages to fill a batch once it has taken the first one;
+ *                  0 delivers whatever the queue holds immediately
+ */
+public record DeliveryConfig(
+        int batchSize,
+        long lingerMs
+) {
+}
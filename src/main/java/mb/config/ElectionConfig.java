@@ -1,6 +1,7 @@
 package mb.config;
 
 import mb.enums.ElectionType;
+import mb.enums.FailureDetectorType;
 
 import java.util.Arrays;
 import java.util.Objects;
@@ -13,8 +14,26 @@ public record ElectionConfig(
         String[] electionPeerHosts,
         int[] electionPeerPorts,
         int[] electionPeerIds,
-        long electionHeartbeatTimeoutMs
+        long electionHeartbeatTimeoutMs,
+        FailureDetectorType failureDetector,
+        double phiThreshold,
+        int phiWindowSize,
+        long phiMinStdDevMs,
+        long phiAcceptablePauseMs,
+        String dataDir,
+        int raftTimeoutJitterMs
 ) {
+    /**
+     * Creates an election config that detects leader failures with a fixed heartbeat timeout and keeps its state in
+     * {@code data}.
+     */
+    public ElectionConfig(int electionId, ElectionType electionType, String host, int electionPort,
+                          String[] electionPeerHosts, int[] electionPeerPorts, int[] electionPeerIds,
+                          long electionHeartbeatTimeoutMs) {
+        this(electionId, electionType, host, electionPort, electionPeerHosts, electionPeerPorts, electionPeerIds,
+                electionHeartbeatTimeoutMs, FailureDetectorType.FIXED, 0, 0, 0, 0, "data", 150);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -24,6 +43,13 @@ public record ElectionConfig(
                 electionPort == that.electionPort &&
                 host == that.host &&
                 electionHeartbeatTimeoutMs == that.electionHeartbeatTimeoutMs &&
+                Double.compare(phiThreshold, that.phiThreshold) == 0 &&
+                phiWindowSize == that.phiWindowSize &&
+                phiMinStdDevMs == that.phiMinStdDevMs &&
+                phiAcceptablePauseMs == that.phiAcceptablePauseMs &&
+                failureDetector == that.failureDetector &&
+                raftTimeoutJitterMs == that.raftTimeoutJitterMs &&
+                Objects.equals(dataDir, that.dataDir) &&
                 Objects.equals(electionType, that.electionType) &&
                 Arrays.equals(electionPeerIds, that.electionPeerIds) &&
                 Arrays.equals(electionPeerPorts, that.electionPeerPorts) &&
@@ -40,6 +66,13 @@ public record ElectionConfig(
         result = 31 * result + Arrays.hashCode(electionPeerPorts);
         result = 31 * result + Arrays.hashCode(electionPeerIds);
         result = 31 * result + Long.hashCode(electionHeartbeatTimeoutMs);
+        result = 31 * result + Objects.hashCode(failureDetector);
+        result = 31 * result + Double.hashCode(phiThreshold);
+        result = 31 * result + phiWindowSize;
+        result = 31 * result + Long.hashCode(phiMinStdDevMs);
+        result = 31 * result + Long.hashCode(phiAcceptablePauseMs);
+        result = 31 * result + Objects.hashCode(dataDir);
+        result = 31 * result + raftTimeoutJitterMs;
         return result;
     }
 }
@@ -0,0 +1,25 @@
+package mb.config;
+
+import mb.enums.FanoutMode;
+import mb.enums.SlowConsumerPolicy;
+import mb.enums.TopicMatcher;
+
+/**
+ * The broker-wide configuration of exchanges.
+ *
+ * @param routingCacheSize  the maximal number of routing keys whose resolved queues a topic exchange caches, 0 to
+ *                          disable the cache
+ * @param topicMatcher      the matcher of topic exchanges that are declared without one
+ * @param fanoutMode        the mode of fanout exchanges that are declared without one
+ * @param fanoutLogCapacity the number of messages the shared log of a fanout exchange in log mode holds, rounded up
+ *                          to a power of 2
+ * @param fanoutSlowPolicy  what a fanout exchange in log mode does with a queue that falls a whole log behind
+ */
+public record ExchangeConfig(
+        int routingCacheSize,
+        TopicMatcher topicMatcher,
+        FanoutMode fanoutMode,
+        int fanoutLogCapacity,
+        SlowConsumerPolicy fanoutSlowPolicy
+) {
+}
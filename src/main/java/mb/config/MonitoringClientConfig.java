@@ -1,9 +1,19 @@
 package mb.config;
 
+/**
+ * The configuration of the monitoring of a broker.
+ *
+ * @param monitorHost     the host of the monitoring server, which the published routing keys are reported to
+ * @param monitorPort     the port of the monitoring server
+ * @param serverHost      the host of the broker, which identifies it in its reports
+ * @param serverPort      the port of the broker
+ * @param statsIntervalMs how often the broker logs the statistics of its components, 0 to never log them
+ */
 public record MonitoringClientConfig(
         String monitorHost,
         int monitorPort,
         String serverHost,
-        int serverPort
+        int serverPort,
+        int statsIntervalMs
 ) {
 }
@@ -0,0 +1,32 @@
+package mb.config;
+
+import mb.enums.FsyncPolicy;
+import mb.enums.OverflowPolicy;
+import mb.enums.QueueImplementation;
+
+/**
+ * The broker-wide configuration of queues.
+ *
+ * @param implementation  the data structure backing non-durable queues
+ * @param ringCapacity    the number of slots of a {@link QueueImplementation#RING ring} queue without a length limit
+ * @param blockTimeoutMs  how long a publisher waits for space in a full queue with the {@link OverflowPolicy#BLOCK}
+ *                        policy before the message is rejected
+ * @param dataDir         the directory to store the logs of durable queues in
+ * @param fsyncPolicy     when messages of durable queues are forced to the storage device
+ * @param flushIntervalMs the interval of checkpoints and, with the {@link FsyncPolicy#INTERVAL} policy, of forcing
+ *                        the logs of durable queues
+ * @param segmentBytes    the size of a segment file of a durable queue
+ * @param spillThresholdBytes the size of the in-memory head of an unbounded queue above which it spills to disk, 0 to
+ *                        never spill
+ */
+public record QueueConfig(
+        QueueImplementation implementation,
+        int ringCapacity,
+        long blockTimeoutMs,
+        String dataDir,
+        FsyncPolicy fsyncPolicy,
+        long flushIntervalMs,
+        int segmentBytes,
+        long spillThresholdBytes
+) {
+}
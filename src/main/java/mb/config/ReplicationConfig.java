@@ -0,0 +1,20 @@
+package mb.config;
+
+import mb.enums.ReplicationAck;
+
+/**
+ * The configuration of the replication of the broker state from the leader to its followers.
+ *
+ * @param ack       whether the leader confirms a change to the client right away ({@link ReplicationAck#ASYNC}) or
+ *                  only once the followers in sync applied it ({@link ReplicationAck#SYNC})
+ * @param timeoutMs how long a replication request to a follower may take, and how long a synchronous change waits for
+ *                  the followers before the ones that did not confirm it are no longer waited for
+ * @param backlog   the maximal number of entries kept for a follower that does not keep up; beyond it, the entries
+ *                  are dropped and the follower is brought up to date with a snapshot once it is reachable again
+ */
+public record ReplicationConfig(
+        ReplicationAck ack,
+        int timeoutMs,
+        int backlog
+) {
+}
@@ -0,0 +1,19 @@
+package mb.config;
+
+import mb.enums.TransportType;
+
+/**
+ * The transport configuration of a server.
+ *
+ * @param transportType the transport used to serve client connections
+ * @param port          the port to accept client connections on
+ * @param ioThreads     the number of event loops (only used by the {@link TransportType#NIO NIO} transport)
+ * @param flushBatch    the maximal number of pipelined messages that are handled before replies are flushed
+ */
+public record TransportConfig(
+        TransportType transportType,
+        int port,
+        int ioThreads,
+        int flushBatch
+) {
+}
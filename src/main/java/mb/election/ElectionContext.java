@@ -9,11 +9,15 @@ import java.util.List;
  * @param sortedPeers       list of known peers sorted by id in ascending order.
  * @param responseTimeoutMs timeout when waiting for peer response to election request (in milliseconds)
  * @param leaderCallback    callback function to call when this node becomes the leader.
+ * @param dataDir           directory of the state that strategies persist across restarts.
+ * @param timeoutJitterMs   maximal random delay before a node becomes candidate (in milliseconds).
  */
 public record ElectionContext(
         int selfId,
         int responseTimeoutMs,
         Runnable leaderCallback,
-        List<Peer> sortedPeers
+        List<Peer> sortedPeers,
+        String dataDir,
+        int timeoutJitterMs
 ) {
 }
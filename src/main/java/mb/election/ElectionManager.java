@@ -3,28 +3,37 @@ package mb.election;
 import mb.election.strategies.IElection;
 import mb.config.ElectionConfig;
 import mb.enums.ElectionType;
+import mb.enums.FailureDetectorType;
 import mb.utils.Client;
-import mb.utils.IOUtils;
+import mb.utils.IMessageIO;
 import mb.utils.ValidationUtils;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 import static mb.election.ElectionPicker.getElectionStrategy;
-import static mb.utils.ClientFactory.createClient;
 import static mb.utils.CommandBuilder.*;
 import static mb.utils.ValidationUtils.isInt;
+import static mb.utils.ValidationUtils.isLong;
 
 public class ElectionManager implements IElectionManager {
+    private static final int HEARTBEAT_INTERVAL_MS = 20;
+    private static final int FAILURE_CHECK_INTERVAL_MS = 5;
+
     private final ElectionConfig electionConfig;
     private final List<Peer> sortedPeers;
     private final IElection election;
 
     private final HeartbeatService heartbeatService;
     private final PeerConnectionManager peerConnectionManager;
+    private final Map<String, Function<String[], String>> peerCommands = new ConcurrentHashMap<>();
 
     private boolean shutdown = false;
 
@@ -43,8 +52,10 @@ public class ElectionManager implements IElectionManager {
                 .toList();
         election = getElectionStrategy(
                 electionConfig.electionType(),
-                new ElectionContext(getId(),50, this::onElectionWin, sortedPeers));
-        heartbeatService = new HeartbeatService(electionConfig.electionType() != ElectionType.NONE);
+                new ElectionContext(getId(), 50, this::onElectionWin, sortedPeers, electionConfig.dataDir(),
+                        electionConfig.raftTimeoutJitterMs()));
+        heartbeatService = new HeartbeatService(
+                electionConfig.electionType() != ElectionType.NONE, createFailureDetector(electionConfig));
         try {
             ServerSocket peerConnectionSocket = new ServerSocket(electionConfig.electionPort());
             peerConnectionManager = new PeerConnectionManager(peerConnectionSocket, this::handlePeerConnection);
@@ -73,14 +84,19 @@ public class ElectionManager implements IElectionManager {
     @Override
     public void start(Runnable serverProtocol) {
         peerConnectionManager.joinCluster();
-        heartbeatService.startMonitoring(this::initiateElection, electionConfig.electionHeartbeatTimeoutMs());
+        // A fixed timeout is checked once per timeout, which also spaces out the elections it triggers. The phi
+        // detector is checked often, so the elections it triggers are spaced out by the heartbeat timeout instead
+        long timeoutMs = electionConfig.electionHeartbeatTimeoutMs();
+        boolean fixed = electionConfig.failureDetector() == FailureDetectorType.FIXED;
+        heartbeatService.startMonitoring(
+                this::initiateElection, fixed ? timeoutMs : FAILURE_CHECK_INTERVAL_MS, fixed ? 0 : timeoutMs);
 
         // Wait until this node becomes the leader
         try {
             leaderLatch.await();    // blocks until onElectionWin() is called
             // Start scheduling heartbeats and run the server protocol in the current thread
             if (!shutdown) {
-                heartbeatService.startScheduling(this::sendPingToAllPeers, 20, 0);
+                heartbeatService.startScheduling(this::sendPingToAllPeers, HEARTBEAT_INTERVAL_MS, 0);
                 serverProtocol.run();
             }
         } catch (InterruptedException e) {
@@ -89,6 +105,29 @@ public class ElectionManager implements IElectionManager {
         }
     }
 
+    /**
+     * Registers a command that peers may send besides those of the election protocol, e.g. to replicate the state of
+     * the leader. The handler runs on the thread that received the request, concurrently with other requests.
+     *
+     * @param cmd     the name of the command, which must not be one of the election protocol
+     * @param handler computes the response from the arguments of the request, including the command itself
+     */
+    public void addPeerCommand(String cmd, Function<String[], String> handler) {
+        peerCommands.put(cmd, handler);
+    }
+
+    /**
+     * @return the peers of this node, sorted by ID
+     */
+    public List<Peer> getPeers() {
+        return sortedPeers;
+    }
+
+    @Override
+    public HeartbeatService.Stats getFailureDetectorStats() {
+        return heartbeatService.getStats();
+    }
+
     @Override
     public void shutdown() {
         shutdown = true;
@@ -97,6 +136,15 @@ public class ElectionManager implements IElectionManager {
         }
         peerConnectionManager.shutdown();
         heartbeatService.stop();
+        sortedPeers.forEach(Peer::close);
+    }
+
+    private static IFailureDetector createFailureDetector(ElectionConfig config) {
+        return switch (config.failureDetector()) {
+            case FIXED -> new FixedTimeoutDetector(config.electionHeartbeatTimeoutMs());
+            case PHI -> new PhiAccrualFailureDetector(config.phiThreshold(), config.phiWindowSize(),
+                    config.phiMinStdDevMs(), config.phiAcceptablePauseMs(), config.electionHeartbeatTimeoutMs());
+        };
     }
 
     private void onElectionWin() {
@@ -104,13 +152,7 @@ public class ElectionManager implements IElectionManager {
     }
 
     private void sendPingToAllPeers() {
-        sortedPeers.parallelStream()
-                .forEach(peer -> {
-                    try (Client connection = createClient(peer.host(), peer.port())) {
-                        connection.io.sendMessage(PING);
-                    } catch (IOException ignored) {
-                    }
-                });
+        sortedPeers.forEach(peer -> peer.sendPing(HEARTBEAT_INTERVAL_MS));
     }
 
     private void handlePeerConnection(Client connection) throws IOException {
@@ -126,17 +168,39 @@ public class ElectionManager implements IElectionManager {
                 continue;
             }
             String[] args = message.strip().split(" ");
-            String cmd = args[0];
-            switch (cmd) {
-                case PING -> handlePing(connection.io, args);
-                case DECLARE -> handleDeclare(connection.io, args);
-                case ELECT -> handleElect(connection.io, args);
-                default -> connection.io.printError("protocol error");
+            if (args[0].startsWith(PeerChannel.TAG_PREFIX)) {
+                // Request of a peer channel: handled concurrently, since e.g. an elect may start an election of this
+                // node, which must not hold up the other requests of the channel
+                IMessageIO io = new TaggedMessageIO(connection.io, args[0]);
+                String[] request = Arrays.copyOfRange(args, 1, args.length);
+                Thread.startVirtualThread(() -> handleRequest(io, request));
+            } else {
+                handleRequest(connection.io, args);
             }
         }
     }
 
-    private void handlePing(IOUtils io, String[] args) {
+    private void handleRequest(IMessageIO io, String[] args) {
+        String cmd = args.length > 0 ? args[0] : "";
+        switch (cmd) {
+            case PING -> handlePing(io, args);
+            case DECLARE -> handleDeclare(io, args);
+            case ELECT -> handleElect(io, args);
+            case PREVOTE -> handlePreVote(io, args);
+            default -> handlePeerCommand(io, args);
+        }
+    }
+
+    private void handlePeerCommand(IMessageIO io, String[] args) {
+        Function<String[], String> handler = peerCommands.get(args.length > 0 ? args[0] : "");
+        if (handler == null) {
+            io.printError("protocol error");
+            return;
+        }
+        io.sendMessage(handler.apply(args));
+    }
+
+    private void handlePing(IMessageIO io, String[] args) {
         if (ValidationUtils.invalidArgNum(args, 1)) {
             io.printUsage(PING);
             return;
@@ -145,21 +209,50 @@ public class ElectionManager implements IElectionManager {
         heartbeatService.heartbeatReceived();
     }
 
-    private void handleDeclare(IOUtils io, String[] args) {
-        if (ValidationUtils.invalidArgNum(args, 2) || !isInt(args[1])) {
-            io.printUsage(DECLARE + " <id>");
+    private void handleDeclare(IMessageIO io, String[] args) {
+        if (invalidIdAndTerm(args, false)) {
+            io.printUsage(DECLARE + " <id> [<term>]");
+            return;
+        }
+        String res = election.onDeclare(Integer.parseInt(args[1]), parseTerm(args), heartbeatService);
+        io.sendMessage(res);
+    }
+
+    private void handleElect(IMessageIO io, String[] args) {
+        if (invalidIdAndTerm(args, false)) {
+            io.printUsage(ELECT + " <id> [<term>]");
             return;
         }
-        String res = election.onDeclare(Integer.parseInt(args[1]), heartbeatService);
+        String res = election.onElect(Integer.parseInt(args[1]), parseTerm(args), heartbeatService);
         io.sendMessage(res);
     }
 
-    private void handleElect(IOUtils io, String[] args) {
-        if (ValidationUtils.invalidArgNum(args, 2) || !isInt(args[1])) {
-            io.printUsage(ELECT + " <id>");
+    private void handlePreVote(IMessageIO io, String[] args) {
+        if (invalidIdAndTerm(args, true)) {
+            io.printUsage(PREVOTE + " <id> <term>");
+            return;
+        }
+        String res = election.onPreVote(Integer.parseInt(args[1]), parseTerm(args), heartbeatService);
+        if (res == null) {
+            io.printError("pre-vote is not supported by the election strategy");
             return;
         }
-        String res = election.onElect(Integer.parseInt(args[1]), heartbeatService);
         io.sendMessage(res);
     }
+
+    /**
+     * Validates the arguments {@code <id> [<term>]} of an election command.
+     *
+     * @param termRequired whether the term must be present
+     */
+    private static boolean invalidIdAndTerm(String[] args, boolean termRequired) {
+        if (args.length != 3 && (termRequired || args.length != 2)) {
+            return true;
+        }
+        return !isInt(args[1]) || (args.length == 3 && (!isLong(args[2]) || Long.parseLong(args[2]) < 0));
+    }
+
+    private static long parseTerm(String[] args) {
+        return args.length == 3 ? Long.parseLong(args[2]) : IElection.NO_TERM;
+    }
 }
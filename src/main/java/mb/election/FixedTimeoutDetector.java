@@ -0,0 +1,45 @@
+package mb.election;
+
+/**
+ * Suspects the leader once no heartbeat was received for a fixed timeout.
+ */
+public class FixedTimeoutDetector implements IFailureDetector {
+    private final long timeoutMs;
+    private volatile long lastHeartbeatMs;
+
+    /**
+     * @param timeoutMs the maximal time between heartbeats (in milliseconds)
+     */
+    public FixedTimeoutDetector(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        this.lastHeartbeatMs = System.currentTimeMillis();
+    }
+
+    @Override
+    public void heartbeat(long nowMs) {
+        lastHeartbeatMs = nowMs;
+    }
+
+    @Override
+    public void restart(long nowMs) {
+        lastHeartbeatMs = nowMs;
+    }
+
+    @Override
+    public boolean isSuspected(long nowMs) {
+        return nowMs - lastHeartbeatMs > timeoutMs;
+    }
+
+    @Override
+    public long getLastHeartbeatMs() {
+        return lastHeartbeatMs;
+    }
+
+    /**
+     * @return the time since the last heartbeat in milliseconds
+     */
+    @Override
+    public double getSuspicionLevel(long nowMs) {
+        return nowMs - lastHeartbeatMs;
+    }
+}
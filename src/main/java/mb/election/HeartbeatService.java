@@ -4,39 +4,61 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import static mb.utils.LoggingUtil.logInfoMsg;
+import static mb.utils.LoggingUtil.logWarningMsg;
+
 public class HeartbeatService {
     private volatile ScheduledExecutorService heartbeatScheduler;
-    private volatile long lastHeartbeatTimestamp;
+    private final IFailureDetector failureDetector;
     private final boolean enabled;
 
+    // Suspicions of the leader, so their outcome can be told apart: a suspicion is false if the suspected leader turns
+    // out to be alive, i.e. a heartbeat arrives or the same leader is declared again, and confirmed if another leader
+    // is declared
+    private volatile long lastSuspicionMs = 0;  // written under this
+    private int declaredLeaderId = -1;          // guarded by this
+    private int suspectedLeaderId = -1;         // guarded by this
+    private long suspectedSilenceMs = -1;       // guarded by this; -1 unless a suspicion is outstanding
+    private long suspicions = 0;                // guarded by this
+    private long falseSuspicions = 0;           // guarded by this
+    private long confirmedSuspicions = 0;       // guarded by this
+    private long totalDetectionLatencyMs = 0;   // guarded by this
+    private long maxDetectionLatencyMs = 0;     // guarded by this
+
     /**
      * Create an instance of the heartbeat service.
      *
-     * @param enabled whether the heartbeat service should be enabled at all. If false, any function calls to this
-     *                heartbeat service will simply return without doing anything.
+     * @param enabled         whether the heartbeat service should be enabled at all. If false, any function calls to
+     *                        this heartbeat service will simply return without doing anything.
+     * @param failureDetector the detector that decides from the heartbeats whether the leader failed
      */
-    public HeartbeatService(boolean enabled) {
-        this.lastHeartbeatTimestamp = System.currentTimeMillis(); // Initialize with the current time
+    public HeartbeatService(boolean enabled, IFailureDetector failureDetector) {
+        this.failureDetector = failureDetector;
         this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
         this.enabled = enabled;
+        failureDetector.restart(System.currentTimeMillis());
     }
 
     /**
-     * Periodically checks whether {@link HeartbeatService#lastHeartbeatTimestamp} exceeds the timeout.
+     * Periodically asks the failure detector whether the leader is suspected.
      * Stops previously any started scheduling task first.
      *
-     * @param onMissedHeartbeat  The callback function to run if no heartbeat is received within the timeout.
-     * @param heartbeatTimeoutMs The maximal timeout between heartbeats (in milliseconds).
+     * @param onMissedHeartbeat The callback function to run if the leader is suspected.
+     * @param checkIntervalMs   The interval between checks (in milliseconds).
+     * @param retryIntervalMs   The minimal time between two runs of the callback while the leader stays suspected,
+     *                          i.e. while the election it triggered did not bring up a leader (in milliseconds).
      */
-    public void startMonitoring(Runnable onMissedHeartbeat, long heartbeatTimeoutMs) {
+    public void startMonitoring(Runnable onMissedHeartbeat, long checkIntervalMs, long retryIntervalMs) {
         if (!enabled) return;
         stop(); // Shutdown existing executor
         heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(); // Recreate executor
         heartbeatScheduler.scheduleAtFixedRate(() -> {
-            if (System.currentTimeMillis() - lastHeartbeatTimestamp > heartbeatTimeoutMs) {
+            long now = System.currentTimeMillis();
+            if (now - lastSuspicionMs >= retryIntervalMs && failureDetector.isSuspected(now)) {
+                suspect(now);
                 onMissedHeartbeat.run();
             }
-        }, 0, heartbeatTimeoutMs, TimeUnit.MILLISECONDS);
+        }, 0, checkIntervalMs, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -73,10 +95,105 @@ public class HeartbeatService {
     }
 
     /**
-     * Updates the last heartbeat timestamp to the current time.
+     * @return true if the failure detector currently suspects the leader
+     */
+    public boolean isLeaderSuspected() {
+        return enabled && failureDetector.isSuspected(System.currentTimeMillis());
+    }
+
+    /**
+     * Records a periodic heartbeat of the leader.
      */
     public void heartbeatReceived() {
         if (!enabled) return;
-        lastHeartbeatTimestamp = System.currentTimeMillis();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (suspectedSilenceMs >= 0) {
+                falseSuspicion();
+            }
+        }
+        failureDetector.heartbeat(now);
+    }
+
+    /**
+     * Postpones suspecting the leader because of an election message, without taking it for a periodic heartbeat.
+     */
+    public void electionMessageReceived() {
+        if (!enabled) return;
+        failureDetector.restart(System.currentTimeMillis());
+    }
+
+    /**
+     * Records that a leader was declared, which resolves an outstanding suspicion of the previous leader.
+     *
+     * @param leaderId the ID of the declared leader
+     */
+    public void leaderDeclared(int leaderId) {
+        if (!enabled) return;
+        synchronized (this) {
+            if (suspectedSilenceMs >= 0) {
+                if (leaderId == suspectedLeaderId) {
+                    falseSuspicion();
+                } else {
+                    confirmedSuspicions++;
+                    totalDetectionLatencyMs += suspectedSilenceMs;
+                    maxDetectionLatencyMs = Math.max(maxDetectionLatencyMs, suspectedSilenceMs);
+                    suspectedSilenceMs = -1;
+                }
+            }
+            declaredLeaderId = leaderId;
+        }
+        failureDetector.restart(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the statistics of the suspicions of the leader so far
+     */
+    public synchronized Stats getStats() {
+        return new Stats(suspicions, falseSuspicions, confirmedSuspicions,
+                confirmedSuspicions > 0 ? (double) totalDetectionLatencyMs / confirmedSuspicions : 0,
+                maxDetectionLatencyMs);
+    }
+
+    /**
+     * Statistics of the suspicions of the leader, to tune failover time against stability.
+     *
+     * @param suspicions             the number of times the leader was suspected, starting an election
+     * @param falseSuspicions        the number of suspicions of a leader that turned out to be alive
+     * @param confirmedSuspicions    the number of suspicions after which another leader was declared
+     * @param meanDetectionLatencyMs the mean time from the last heartbeat to a confirmed suspicion
+     * @param maxDetectionLatencyMs  the maximal time from the last heartbeat to a confirmed suspicion
+     */
+    public record Stats(
+            long suspicions,
+            long falseSuspicions,
+            long confirmedSuspicions,
+            double meanDetectionLatencyMs,
+            long maxDetectionLatencyMs
+    ) {
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private synchronized void suspect(long now) {
+        lastSuspicionMs = now;
+        if (declaredLeaderId < 0) {
+            return;     // No leader was declared yet, so there is no leader to suspect
+        }
+        long silence = now - failureDetector.getLastHeartbeatMs();
+        logInfoMsg("Suspecting leader %d after %d ms without heartbeat (suspicion level %.1f)",
+                declaredLeaderId, silence, failureDetector.getSuspicionLevel(now));
+        suspicions++;
+        if (suspectedSilenceMs < 0) {
+            suspectedLeaderId = declaredLeaderId;
+            suspectedSilenceMs = silence;
+        }
+    }
+
+    private void falseSuspicion() {
+        falseSuspicions++;
+        suspectedSilenceMs = -1;
+        logWarningMsg("Leader %d was suspected but is alive (%d of %d suspicions were false)",
+                suspectedLeaderId, falseSuspicions, suspicions);
     }
 }
@@ -31,6 +31,14 @@ public interface IElectionManager {
      */
     int getLeader();
 
+    /**
+     * Retrieves the statistics of the failure detector that monitors the leader, i.e. how often and how quickly the
+     * leader was suspected, and how often wrongly.
+     *
+     * @return the statistics
+     */
+    HeartbeatService.Stats getFailureDetectorStats();
+
     /**
      * Retrieves the ID of this node in the election system.
      *
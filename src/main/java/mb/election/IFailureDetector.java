@@ -0,0 +1,39 @@
+package mb.election;
+
+/**
+ * Decides from the heartbeats of the leader whether the leader is suspected to have failed. Implementations must be
+ * thread-safe, since heartbeats are received on the threads of the peer connections.
+ */
+public interface IFailureDetector {
+    /**
+     * Records a periodic heartbeat of the leader.
+     *
+     * @param nowMs the time of the heartbeat in epoch milliseconds
+     */
+    void heartbeat(long nowMs);
+
+    /**
+     * Restarts the detection from a time without recording a heartbeat interval, e.g. because a new leader was
+     * declared or an election is in progress.
+     *
+     * @param nowMs the time in epoch milliseconds
+     */
+    void restart(long nowMs);
+
+    /**
+     * @param nowMs the current time in epoch milliseconds
+     * @return true if the leader is suspected to have failed
+     */
+    boolean isSuspected(long nowMs);
+
+    /**
+     * @return the time of the last heartbeat or restart in epoch milliseconds
+     */
+    long getLastHeartbeatMs();
+
+    /**
+     * @param nowMs the current time in epoch milliseconds
+     * @return how strongly the leader is suspected, for logging; the unit depends on the detector
+     */
+    double getSuspicionLevel(long nowMs);
+}
@@ -1,20 +1,27 @@
 package mb.election;
 
-import mb.utils.Client;
-
-import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
-import static mb.utils.ClientFactory.createClient;
 import static mb.utils.CommandBuilder.*;
 import static mb.utils.LoggingUtil.logWarningMsg;
-import static mb.utils.ValidationUtils.*;
 
+/**
+ * A peer in the cluster. Requests to the peer share one {@link PeerChannel}, which is not part of the identity of the
+ * peer.
+ *
+ * @param channel the channel to the peer, connected on first use
+ */
 public record Peer(
         int id,
         String host,
-        int port
+        int port,
+        PeerChannel channel
 ) implements Comparable<Peer> {
+    public Peer(int id, String host, int port) {
+        this(id, host, port, new PeerChannel(host, port));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -43,6 +50,16 @@ public record Peer(
      * @return true if the peer responds with ok within the given timeout, false otherwise
      */
     public boolean sendElectExpectOk(int candidateId, int timeoutMs) {
+        return sendElectExpectOkAsync(candidateId, timeoutMs).join();
+    }
+
+    /**
+     * Send elect to peer without waiting for the response.
+     *
+     * @param candidateId the ID of the candidate to elect
+     * @return a future completed with true if the peer responds with ok within the given timeout, false otherwise
+     */
+    public CompletableFuture<Boolean> sendElectExpectOkAsync(int candidateId, int timeoutMs) {
         return sendMessageExpectResStartsWith(electCmd(candidateId), OK, timeoutMs);
     }
 
@@ -53,9 +70,30 @@ public record Peer(
      * @return true if the peer acknowledges the leader within the given timeout, false otherwise
      */
     public boolean sendDeclareExpectAck(int leaderId, int timeoutMs) {
+        return sendDeclareExpectAckAsync(leaderId, timeoutMs).join();
+    }
+
+    /**
+     * Send declare to peer without waiting for the acknowledgement.
+     *
+     * @param leaderId the ID of the leader to declare
+     * @return a future completed with true if the peer acknowledges the leader within the given timeout, false otherwise
+     */
+    public CompletableFuture<Boolean> sendDeclareExpectAckAsync(int leaderId, int timeoutMs) {
         return sendMessageExpectResStartsWith(declareCmd(leaderId), ACK, timeoutMs);
     }
 
+    /**
+     * Send declare with the term of the leader to peer without waiting for the acknowledgement.
+     *
+     * @param leaderId the ID of the leader to declare
+     * @param term     the term the leader was elected in
+     * @return a future completed with true if the peer acknowledges the leader within the given timeout, false otherwise
+     */
+    public CompletableFuture<Boolean> sendDeclareExpectAckAsync(int leaderId, long term, int timeoutMs) {
+        return sendMessageExpectResStartsWith(declareCmd(leaderId, term), ACK, timeoutMs);
+    }
+
     /**
      * Send elect to peer and wait him to respond with a vote.
      *
@@ -63,42 +101,55 @@ public record Peer(
      * @return true if the peer responds with a vote for the candidate within the given timeout, false otherwise.
      */
     public boolean sendElectExpectVote(int candidateId, int timeoutMs) {
-        try (Client connection = createClient(host, port)) {
-            if (!validateResponseEquals(connection, OK + " LEP", timeoutMs)) {
-                logWarningMsg("Peer %d failed to respond with greeting", id);
+        return sendElectExpectVoteAsync(candidateId, timeoutMs).join();
+    }
+
+    /**
+     * Send elect to peer without waiting for the vote.
+     *
+     * @param candidateId the ID of the candidate to elect
+     * @return a future completed with true if the peer responds with a vote for the candidate within the given
+     * timeout, false otherwise
+     */
+    public CompletableFuture<Boolean> sendElectExpectVoteAsync(int candidateId, int timeoutMs) {
+        return sendVoteRequestAsync(electCmd(candidateId), timeoutMs)
+                .thenApply(vote -> vote != null && vote.candidateId() == candidateId);
+    }
+
+    /**
+     * Send a request for a vote, e.g. an elect or a prevote with a term, to peer without waiting for the vote.
+     *
+     * @param request the request
+     * @return a future completed with the vote of the peer, or with null if the peer does not respond with a vote
+     * within the given timeout
+     */
+    public CompletableFuture<Vote> sendVoteRequestAsync(String request, int timeoutMs) {
+        return channel.send(request, timeoutMs).handle((res, e) -> {
+            if (res == null) {
+                return null;
             }
-            connection.io.sendMessage(electCmd(candidateId));
-            String res = connection.waitForResponse(timeoutMs);
-            String[] args = res.strip().split(" ");
-            if (invalidArgNum(args, 3) || !VOTE.equals(args[0]) || !isInt(args[1]) || !isInt(args[2])) {
-                connection.io.printUsage(VOTE + " <sender-id> <candidate-id>");
-                return false;
+            Vote vote = Vote.parse(res);
+            if (vote == null) {
+                logWarningMsg("Peer %d responded with an invalid vote: %s", id, res);
             }
-            return candidateId == Integer.parseInt(args[2]);
-        } catch (IOException e) {
-            // logWarningMsg("Failed to connect to peer %d at %s:%d: %s", id, host, port, e.getMessage());
-        }
-        return false;
+            return vote;
+        });
     }
 
     /**
-     * Send message to peer and expect response.
+     * Send ping to peer without waiting for the pong.
      *
-     * @param message   the message to send
-     * @param timeoutMs the time to wait for the peer's response
-     * @return the peer's response if it responded within the timeout, null otherwise.
+     * @param timeoutMs the time after which the ping is given up if the peer did not respond
      */
-    private String sendMessageExpectRes(String message, int timeoutMs) {
-        try (Client connection = createClient(host, port)) {
-            if (!validateResponseEquals(connection, OK + " LEP", timeoutMs)) {
-                logWarningMsg("Peer %d failed to respond with greeting", id);
-            }
-            connection.io.sendMessage(message);
-            return connection.waitForResponse(timeoutMs);
-        } catch (IOException e) {
-            // logWarningMsg("Failed to connect to peer %d at %s:%d: %s", id, host, port, e.getMessage());
-        }
-        return null;
+    public void sendPing(int timeoutMs) {
+        channel.send(PING, timeoutMs);
+    }
+
+    /**
+     * Closes the channel to the peer.
+     */
+    public void close() {
+        channel.close();
     }
 
     /**
@@ -106,10 +157,10 @@ public record Peer(
      *
      * @param message       the message to send
      * @param expectedStart the string that the response it expected to start with
-     * @return true if the peer responds with a message that starts with the expected string within the given timeout, false otherwise
+     * @return a future completed with true if the peer responds with a message that starts with the expected string
+     * within the given timeout, false otherwise
      */
-    private boolean sendMessageExpectResStartsWith(String message, String expectedStart, int timeoutMs) {
-        String res = sendMessageExpectRes(message, timeoutMs);
-        return res != null && res.startsWith(expectedStart);
+    private CompletableFuture<Boolean> sendMessageExpectResStartsWith(String message, String expectedStart, int timeoutMs) {
+        return channel.send(message, timeoutMs).handle((res, e) -> res != null && res.startsWith(expectedStart));
     }
 }
@@ -0,0 +1,231 @@
+package mb.election;
+
+import mb.utils.Client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static mb.utils.ClientFactory.createClient;
+import static mb.utils.CommandBuilder.OK;
+import static mb.utils.LoggingUtil.logWarningMsg;
+
+/**
+ * Long-lived connection to a peer, shared by all requests to the peer. Each request is tagged with an id that the peer
+ * copies into its response ({@code #<id> <request>} is answered with {@code #<id> <response>}), so concurrent requests
+ * neither need a connection of their own nor wait for each other's responses.
+ * <p>
+ * The channel connects on first use and reconnects on the next request after the connection was lost. Connecting does
+ * not block the sender, so requests to several peers can be sent at once and the responses awaited together. While the
+ * peer cannot be reached, connection attempts are spaced out with exponential backoff, and requests in between fail
+ * immediately.
+ */
+public class PeerChannel {
+    static final String TAG_PREFIX = "#";
+    private static final String GREETING = OK + " LEP";
+    private static final long MIN_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+    private static final Executor connectExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("peer-channel-connect").factory());
+
+    private final String host;
+    private final int port;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ReentrantLock connectLock = new ReentrantLock();
+    private volatile Connection connection;     // written under connectLock; null while disconnected
+    private volatile boolean closed = false;    // written under connectLock
+    private long backoffMs = 0;                 // guarded by connectLock
+    private long nextAttemptMs = 0;             // guarded by connectLock
+
+    public PeerChannel(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sends a request and waits for the response.
+     *
+     * @param message   the request
+     * @param timeoutMs the time to wait for the response (and for connecting, if the channel is not connected)
+     * @return the response, or null if the peer could not be reached or did not respond within the timeout
+     */
+    public String request(String message, int timeoutMs) {
+        try {
+            return send(message, timeoutMs).get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request without waiting for the response. If the channel is not connected, it connects on a virtual
+     * thread and sends the request once connected.
+     *
+     * @param message   the request
+     * @param timeoutMs the time to wait for the response (and for connecting, if the channel is not connected)
+     * @return a future completed with the response, or completed exceptionally if the peer cannot be reached, the
+     * connection is lost or the timeout elapses
+     */
+    public CompletableFuture<String> send(String message, int timeoutMs) {
+        Connection current = connection;
+        if (current != null) {
+            return send(current, message, timeoutMs);
+        }
+        return CompletableFuture.supplyAsync(() -> connect(timeoutMs), connectExecutor)
+                .thenCompose(connected -> connected != null
+                        ? send(connected, message, timeoutMs)
+                        : CompletableFuture.failedFuture(
+                                new ConnectException("Peer at %s:%d is unreachable".formatted(host, port))));
+    }
+
+    /**
+     * Closes the connection, fails the pending requests and rejects further requests.
+     */
+    public void close() {
+        Connection current;
+        connectLock.lock();
+        try {
+            closed = true;
+            current = connection;
+            connection = null;
+        } finally {
+            connectLock.unlock();
+        }
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private CompletableFuture<String> send(Connection current, String message, int timeoutMs) {
+        long id = nextRequestId.incrementAndGet();
+        CompletableFuture<String> response = new CompletableFuture<>();
+        current.pending.put(id, response);
+        response.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((res, e) -> current.pending.remove(id));
+        if (connection != current) {
+            // Lost the connection before the request was registered, so its pending requests may be failed already
+            response.completeExceptionally(new ConnectException("Connection to peer at %s:%d was lost".formatted(host, port)));
+            return response;
+        }
+        current.client.io.sendMessage(TAG_PREFIX + id + " " + message);
+        return response;
+    }
+
+    /**
+     * Returns the connection, connecting if the channel is not connected and the backoff elapsed.
+     *
+     * @return the connection, or null if the peer cannot be reached
+     */
+    private Connection connect(int timeoutMs) {
+        Connection current = connection;
+        if (current != null || closed) {
+            return current;
+        }
+        connectLock.lock();
+        try {
+            if (connection != null || closed) {
+                return connection;
+            }
+            long now = System.currentTimeMillis();
+            if (now < nextAttemptMs) {
+                return null;
+            }
+            Client client = null;
+            try {
+                client = createClient(host, port, timeoutMs);
+                client.socket.setTcpNoDelay(true);  // Requests are small and must not wait for the previous ones' ack
+                client.socket.setSoTimeout(timeoutMs);
+                String greeting = client.io.readMessage();
+                if (greeting == null) {
+                    throw new IOException("Connection closed before greeting");
+                }
+                if (!GREETING.equals(greeting)) {
+                    logWarningMsg("Peer at %s:%d failed to respond with greeting", host, port);
+                }
+                client.socket.setSoTimeout(0);
+            } catch (IOException e) {
+                if (client != null) {
+                    closeQuietly(client);
+                }
+                backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+                nextAttemptMs = now + backoffMs;
+                return null;
+            }
+            backoffMs = 0;
+            nextAttemptMs = 0;
+            connection = new Connection(client);
+            Thread.ofVirtual().name("peer-channel-%s:%d".formatted(host, port)).start(connection::readResponses);
+            return connection;
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private void disconnect(Connection lost) {
+        connectLock.lock();
+        try {
+            if (connection == lost) {
+                connection = null;
+            }
+        } finally {
+            connectLock.unlock();
+        }
+        lost.close();
+    }
+
+    private static void closeQuietly(Client client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * A connection of the channel with the requests awaiting their response on it.
+     */
+    private final class Connection {
+        private final Client client;
+        private final ConcurrentMap<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+        private Connection(Client client) {
+            this.client = client;
+        }
+
+        /**
+         * Completes the pending requests with the responses read from the connection, until it is lost.
+         */
+        private void readResponses() {
+            try {
+                String line;
+                while ((line = client.io.readMessage()) != null) {
+                    int separator = line.indexOf(' ');
+                    if (!line.startsWith(TAG_PREFIX) || separator < 0) {
+                        continue;   // Untagged messages answer no request
+                    }
+                    try {
+                        CompletableFuture<String> response = pending.get(Long.parseLong(line.substring(1, separator)));
+                        if (response != null) {
+                            response.complete(line.substring(separator + 1));
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            } catch (IOException ignored) {     // Connection reset, or closed by the channel
+            } finally {
+                disconnect(this);
+            }
+        }
+
+        private void close() {
+            closeQuietly(client);
+            ConnectException lost = new ConnectException("Connection to peer at %s:%d was lost".formatted(host, port));
+            pending.values().forEach(response -> response.completeExceptionally(lost));
+        }
+    }
+}
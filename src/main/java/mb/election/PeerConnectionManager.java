@@ -67,7 +67,9 @@ public class PeerConnectionManager {
     private void acceptPeerConnections() {
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                Client connection = new Client(peerConnectionSocket.accept());
+                Socket socket = peerConnectionSocket.accept();
+                socket.setTcpNoDelay(true);     // Responses to the concurrent requests of a peer channel are small
+                Client connection = new Client(socket);
                 peerConnectionExecutor.execute(() -> {
                     connection.io.sendMessage("ok LEP");
                     try {
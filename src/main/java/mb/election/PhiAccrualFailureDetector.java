@@ -0,0 +1,122 @@
+package mb.election;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.). Instead of a fixed timeout, it keeps a sliding window of the
+ * intervals between heartbeats and computes, from their mean and standard deviation, how unlikely it is that the next
+ * heartbeat is still on its way after the time elapsed since the last one. That suspicion level is expressed as
+ * {@code phi = -log10(P(interval > elapsed))}, so a threshold of 8 accepts a false suspicion with probability 1e-8
+ * under the observed distribution. The detector thereby adapts to the actual heartbeat interval and its jitter:
+ * regular heartbeats are suspected soon after they stop, while a jittery network or GC pauses widen the window.
+ * <p>
+ * Until the window holds a few intervals, the detector falls back to a fixed timeout.
+ */
+public class PhiAccrualFailureDetector implements IFailureDetector {
+    private static final int MIN_SAMPLES = 3;
+
+    private final double threshold;
+    private final long minStdDevMs;
+    private final long acceptablePauseMs;
+    private final long bootstrapTimeoutMs;
+
+    private final long[] intervals;     // ring buffer of the most recent intervals; guarded by this
+    private int count = 0;              // guarded by this
+    private int next = 0;               // guarded by this
+    private double sum = 0;             // guarded by this
+    private double sumOfSquares = 0;    // guarded by this
+    private long lastHeartbeatMs;       // guarded by this
+    private boolean sampleNext = false; // guarded by this; false if the next interval does not start at a heartbeat
+
+    /**
+     * @param threshold          the phi at which the leader is suspected
+     * @param windowSize         the number of recent intervals the distribution is estimated from
+     * @param minStdDevMs        the minimal standard deviation, so that very regular heartbeats are not suspected
+     *                           after the slightest delay (in milliseconds)
+     * @param acceptablePauseMs  a pause added to the mean interval, e.g. to tolerate GC pauses (in milliseconds)
+     * @param bootstrapTimeoutMs the fixed timeout used until enough intervals were observed (in milliseconds)
+     */
+    public PhiAccrualFailureDetector(double threshold, int windowSize, long minStdDevMs, long acceptablePauseMs,
+                                     long bootstrapTimeoutMs) {
+        if (threshold <= 0 || windowSize < MIN_SAMPLES || minStdDevMs <= 0 || acceptablePauseMs < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid phi accrual failure detector settings: threshold %s, window size %d (min. %d), "
+                            + "min. std. dev. %d ms, acceptable pause %d ms",
+                    threshold, windowSize, MIN_SAMPLES, minStdDevMs, acceptablePauseMs));
+        }
+        this.threshold = threshold;
+        this.minStdDevMs = minStdDevMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+        this.bootstrapTimeoutMs = bootstrapTimeoutMs;
+        this.intervals = new long[windowSize];
+        this.lastHeartbeatMs = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void heartbeat(long nowMs) {
+        if (sampleNext) {
+            addInterval(Math.max(0, nowMs - lastHeartbeatMs));
+        }
+        lastHeartbeatMs = nowMs;
+        sampleNext = true;
+    }
+
+    @Override
+    public synchronized void restart(long nowMs) {
+        lastHeartbeatMs = nowMs;
+        sampleNext = false;
+    }
+
+    @Override
+    public synchronized boolean isSuspected(long nowMs) {
+        return getSuspicionLevel(nowMs) >= threshold;
+    }
+
+    @Override
+    public synchronized long getLastHeartbeatMs() {
+        return lastHeartbeatMs;
+    }
+
+    /**
+     * @return phi, or {@link Double#POSITIVE_INFINITY} once the bootstrap timeout elapsed while too few intervals
+     * were observed
+     */
+    @Override
+    public synchronized double getSuspicionLevel(long nowMs) {
+        long elapsed = nowMs - lastHeartbeatMs;
+        if (count < MIN_SAMPLES) {
+            return elapsed > bootstrapTimeoutMs ? Double.POSITIVE_INFINITY : 0;
+        }
+        double mean = sum / count;
+        double variance = Math.max(0, sumOfSquares / count - mean * mean);
+        double stdDev = Math.max(Math.sqrt(variance), minStdDevMs);
+        return phi(elapsed, mean + acceptablePauseMs, stdDev);
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private void addInterval(long interval) {
+        if (count == intervals.length) {
+            long evicted = intervals[next];
+            sum -= evicted;
+            sumOfSquares -= (double) evicted * evicted;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+
+    /**
+     * Computes phi for normally distributed intervals, approximating the cumulative distribution function with a
+     * logistic function (error below 0.00014), which unlike the exact one is cheap and does not underflow.
+     */
+    private static double phi(long elapsed, double mean, double stdDev) {
+        double y = (elapsed - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
@@ -0,0 +1,54 @@
+package mb.election;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gathers the responses of requests sent to several peers at once. The caller waits only until the outcome is known,
+ * i.e. enough peers responded positively or all peers responded, and at most until a single deadline for all requests,
+ * instead of waiting for the slowest peer.
+ */
+public class ScatterGather {
+    private ScatterGather() {
+    }
+
+    /**
+     * Waits until a number of responses are positive, all responses are complete, or the timeout elapses, whichever
+     * happens first. Responses completed exceptionally count as negative. The responses still outstanding on return
+     * are left to complete (or time out) on their own.
+     *
+     * @param responses the responses of the peers
+     * @param required  the number of positive responses to wait for
+     * @param timeoutMs the overall time to wait (in milliseconds)
+     * @return the number of positive responses received until then
+     */
+    public static int awaitPositive(List<CompletableFuture<Boolean>> responses, int required, long timeoutMs) {
+        AtomicInteger positive = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(responses.size());
+        CompletableFuture<Void> outcome = new CompletableFuture<>();
+        if (required <= 0 || responses.isEmpty()) {
+            outcome.complete(null);
+        }
+        for (CompletableFuture<Boolean> response : responses) {
+            response.whenComplete((res, e) -> {
+                if (Boolean.TRUE.equals(res) && positive.incrementAndGet() >= required) {
+                    outcome.complete(null);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    outcome.complete(null);
+                }
+            });
+        }
+        try {
+            outcome.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return positive.get();
+    }
+}
@@ -0,0 +1,28 @@
+package mb.election;
+
+import mb.utils.IMessageIO;
+
+/**
+ * Output for a request received through a {@link PeerChannel}: prefixes the responses with the tag of the request, so
+ * the channel can match them to the request. Requests of a channel are handled concurrently, so the underlying output
+ * must write each message atomically.
+ *
+ * @param io  the output of the peer connection
+ * @param tag the tag of the request, {@code #<id>}
+ */
+record TaggedMessageIO(IMessageIO io, String tag) implements IMessageIO {
+    @Override
+    public void sendMessage(String message) {
+        io.sendMessage(tag + " " + message);
+    }
+
+    @Override
+    public void printError(String errorMsg) {
+        io.sendMessage(tag + " error " + errorMsg);
+    }
+
+    @Override
+    public void flush() {
+        io.flush();
+    }
+}
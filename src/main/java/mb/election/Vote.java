@@ -0,0 +1,34 @@
+package mb.election;
+
+import mb.election.strategies.IElection;
+
+import static mb.utils.CommandBuilder.VOTE;
+import static mb.utils.ValidationUtils.isInt;
+import static mb.utils.ValidationUtils.isLong;
+
+/**
+ * The vote of a peer, {@code vote <sender-id> <candidate-id> [<term>]}.
+ *
+ * @param senderId    the ID of the peer that voted
+ * @param candidateId the ID of the candidate the peer voted for, -1 if it voted for none
+ * @param term        the term of the vote, {@link IElection#NO_TERM} if the vote has no term
+ */
+public record Vote(
+        int senderId,
+        int candidateId,
+        long term
+) {
+    /**
+     * @param response the response of a peer to an elect
+     * @return the vote, or null if the response is not a vote
+     */
+    public static Vote parse(String response) {
+        String[] args = response.strip().split(" ");
+        if (args.length < 3 || args.length > 4 || !VOTE.equals(args[0]) || !isInt(args[1]) || !isInt(args[2])
+                || (args.length == 4 && !isLong(args[3]))) {
+            return null;
+        }
+        return new Vote(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                args.length == 4 ? Long.parseLong(args[3]) : IElection.NO_TERM);
+    }
+}
@@ -33,7 +33,7 @@ public abstract class BaseElection implements IElection {
 
     @Override
     public String onElect(int receivedId, HeartbeatService heartbeatService) {
-        heartbeatService.heartbeatReceived();
+        heartbeatService.electionMessageReceived();
         resetLeader();
         becomeCandidate();
         return electHook(receivedId);
@@ -41,7 +41,7 @@ public abstract class BaseElection implements IElection {
 
     @Override
     public String onDeclare(int leaderId, HeartbeatService heartbeatService) {
-        heartbeatService.heartbeatReceived();
+        heartbeatService.leaderDeclared(leaderId);
         if (leaderId != context.selfId()) {
             updateLeader(leaderId);
             becomeFollower();
@@ -5,6 +5,7 @@ import mb.election.ElectionContext;
 
 import java.util.List;
 
+import static mb.election.ScatterGather.awaitPositive;
 import static mb.utils.CommandBuilder.OK;
 import static mb.utils.CommandBuilder.ackCmd;
 
@@ -18,12 +19,15 @@ public class BullyElection extends BaseElection {
 
     @Override
     public void initiateHook() {
-        boolean anyHigherIdPeerResponded = higherIdPeers.parallelStream()
-                .anyMatch(peer -> peer.sendElectExpectOk(context.selfId(), context.responseTimeoutMs()));
+        // The election is lost as soon as any higher ID peer responds
+        boolean anyHigherIdPeerResponded = awaitPositive(higherIdPeers.stream()
+                .map(peer -> peer.sendElectExpectOkAsync(context.selfId(), context.responseTimeoutMs()))
+                .toList(), 1, context.responseTimeoutMs()) > 0;
         if (!anyHigherIdPeerResponded) {
             // Assume this node to be the highest ID node in the cluster and declare it as leader
-            context.sortedPeers().parallelStream()
-                    .forEach(peer -> peer.sendDeclareExpectAck(context.selfId(), context.responseTimeoutMs()));
+            awaitPositive(context.sortedPeers().stream()
+                    .map(peer -> peer.sendDeclareExpectAckAsync(context.selfId(), context.responseTimeoutMs()))
+                    .toList(), context.sortedPeers().size(), context.responseTimeoutMs());
             becomeLeader();
         }
     }
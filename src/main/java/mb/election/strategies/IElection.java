@@ -3,11 +3,44 @@ package mb.election.strategies;
 import mb.election.HeartbeatService;
 
 public interface IElection {
+    /**
+     * The term of election messages without a term, which strategies without terms send.
+     */
+    long NO_TERM = -1;
+
     void initiate();
 
     String onElect(int candidateId, HeartbeatService heartbeatService);
 
     String onDeclare(int leaderId, HeartbeatService heartbeatService);
 
+    /**
+     * Handles an elect with a term. Strategies without terms ignore the term.
+     *
+     * @param term the term of the candidate, or {@link #NO_TERM}
+     */
+    default String onElect(int candidateId, long term, HeartbeatService heartbeatService) {
+        return onElect(candidateId, heartbeatService);
+    }
+
+    /**
+     * Handles a declare with a term. Strategies without terms ignore the term.
+     *
+     * @param term the term the leader was elected in, or {@link #NO_TERM}
+     */
+    default String onDeclare(int leaderId, long term, HeartbeatService heartbeatService) {
+        return onDeclare(leaderId, heartbeatService);
+    }
+
+    /**
+     * Handles a pre-vote, i.e. asks whether this node would vote for a candidate in a term, without changing any state.
+     *
+     * @param term the term the candidate would start
+     * @return the vote, or null if the strategy has no pre-vote phase
+     */
+    default String onPreVote(int candidateId, long term, HeartbeatService heartbeatService) {
+        return null;
+    }
+
     int getLeader();
 }
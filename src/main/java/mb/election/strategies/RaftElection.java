@@ -1,64 +1,194 @@
 package mb.election.strategies;
 
 import mb.election.ElectionContext;
+import mb.election.HeartbeatService;
+import mb.election.Peer;
+import mb.election.Vote;
+import mb.enums.ElectionState;
 
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import static mb.election.ScatterGather.awaitPositive;
 import static mb.utils.CommandBuilder.*;
 
+/**
+ * Leader election of Raft. Every election starts a new term, and a node votes for at most one candidate per term, so
+ * at most one leader is elected per term. Terms only grow and, together with the vote of the term, are persisted
+ * before they take effect, so a restarted node neither votes twice in a term nor goes back to an older term.
+ * <p>
+ * A node whose leader is suspected becomes candidate after a random delay, so that candidates that suspected the
+ * leader at the same time rarely split the votes; the first one usually wins before the others start. Before starting
+ * a term, a candidate asks its peers in a pre-vote whether they would vote for it. Peers refuse while they still hear
+ * from a leader, so a node that was partitioned away cannot disrupt a healthy leader by pushing up the term.
+ */
 public class RaftElection extends BaseElection {
+    private static final int MAX_ROUNDS = 5;
 
-    private long votesReceived;
-    private int voteId;
+    private final RaftState state;      // guarded by voteLock
     private final Object voteLock = new Object();
+    private final int majority;
 
     public RaftElection(ElectionContext context) {
         super(context);
-        votesReceived = 0;
-        voteId = -1;
+        state = new RaftState(Path.of(context.dataDir(), "election-%d.state".formatted(context.selfId())));
+        majority = (context.sortedPeers().size() + 1) / 2 + 1;
     }
 
+    /**
+     * Runs up to {@value #MAX_ROUNDS} rounds of randomized delay, pre-vote and vote, until a leader is known.
+     */
     @Override
     public void initiateHook() {
-        synchronized (voteLock) {
-            if (voteId != -1) {
-                // Prevent initiating if already voted this term or election passed to new term
+        for (int round = 0; round < MAX_ROUNDS && leaderId == -1 && electionState == ElectionState.CANDIDATE; round++) {
+            long previousTerm = getTerm();
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(context.timeoutJitterMs() + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return;
             }
-            if (vote(context.selfId())) {
-                votesReceived++;    // vote for self -> tie-breaker in edge case of only two nodes
+            if (leaderId != -1 || getTerm() != previousTerm) {
+                continue;   // Another candidate started a term meanwhile
+            }
+            long term = previousTerm + 1;
+            if (gatherVotes(peer -> peer.sendVoteRequestAsync(preVoteCmd(context.selfId(), term),
+                    context.responseTimeoutMs()), term) < majority) {
+                continue;
             }
-            votesReceived += context.sortedPeers().parallelStream()
-                    .filter(peer -> peer.sendElectExpectVote(context.selfId(), context.responseTimeoutMs()))
-                    .count();
-            if (votesReceived > context.sortedPeers().size() / 2) {
-                context.sortedPeers().parallelStream()
-                        .forEach(peer -> peer.sendDeclareExpectAck(context.selfId(), context.responseTimeoutMs()));
-                becomeLeader();
+            synchronized (voteLock) {
+                if (leaderId != -1 || state.getTerm() != previousTerm || !state.update(term, context.selfId())) {
+                    continue;
+                }
+            }
+            if (gatherVotes(peer -> peer.sendVoteRequestAsync(electCmd(context.selfId(), term),
+                    context.responseTimeoutMs()), term) >= majority && winTerm(term)) {
+                return;
             }
         }
     }
 
+    @Override
+    public String onElect(int candidateId, long term, HeartbeatService heartbeatService) {
+        synchronized (voteLock) {
+            if (term == NO_TERM) {
+                term = state.getTerm();
+            }
+            if (term > state.getTerm() && electionState != ElectionState.LEADER) {
+                stepDown(term);
+            }
+            if (term == state.getTerm() && electionState != ElectionState.LEADER
+                    && (state.getVotedFor() == -1 || state.getVotedFor() == candidateId)
+                    && state.update(term, candidateId)) {
+                heartbeatService.electionMessageReceived();    // Give the candidate time to win before competing
+                return voteCmd(context.selfId(), candidateId, term);
+            }
+            return voteCmd(context.selfId(), state.getVotedFor(), state.getTerm());
+        }
+    }
+
+    @Override
+    public String onPreVote(int candidateId, long term, HeartbeatService heartbeatService) {
+        synchronized (voteLock) {
+            // Heartbeats tell that a leader is alive even before this node learned which one it is, e.g. after it joined
+            boolean leaderAlive = electionState == ElectionState.LEADER || !heartbeatService.isLeaderSuspected();
+            if (term > state.getTerm() && !leaderAlive) {
+                return voteCmd(context.selfId(), candidateId, term);
+            }
+            return voteCmd(context.selfId(), -1, state.getTerm());
+        }
+    }
+
+    @Override
+    public String onDeclare(int leaderId, long term, HeartbeatService heartbeatService) {
+        synchronized (voteLock) {
+            if (term != NO_TERM && term < state.getTerm()) {
+                return "error stale term %d, current term is %d".formatted(term, state.getTerm());
+            }
+            if (term > state.getTerm() && !state.update(term, -1)) {
+                return "error failed to persist term";
+            }
+        }
+        return super.onDeclare(leaderId, heartbeatService);
+    }
+
     @Override
     public String electHook(int candidateId) {
         synchronized (voteLock) {
-            vote(candidateId);
-            return voteCmd(context.selfId(), voteId);
+            return voteCmd(context.selfId(), state.getVotedFor(), state.getTerm());
         }
     }
 
     @Override
     public String declareHook(int leaderId) {
+        return ackCmd(context.selfId());
+    }
+
+    // ==============IMPLEMENTATION==============
+
+    private long getTerm() {
         synchronized (voteLock) {
-            voteId = -1;
-            votesReceived = 0;
+            return state.getTerm();
         }
-        return ackCmd(context.selfId());
     }
 
-    private boolean vote(int candidateId) {
-        if (voteId == -1) {
-            voteId = candidateId;
-            return true;
+    /**
+     * Sends a vote request to all peers and counts the votes for this node in the term, including its own, until they
+     * make a majority. Steps down if a peer is in a later term.
+     */
+    private int gatherVotes(Function<Peer, CompletableFuture<Vote>> request, long term) {
+        List<CompletableFuture<Boolean>> votes = context.sortedPeers().stream()
+                .map(peer -> request.apply(peer).thenApply(vote -> {
+                    if (vote == null) {
+                        return false;
+                    }
+                    if (vote.term() > term) {
+                        synchronized (voteLock) {
+                            if (vote.term() > state.getTerm()) {
+                                stepDown(vote.term());
+                            }
+                        }
+                        return false;
+                    }
+                    return vote.candidateId() == context.selfId() && vote.term() == term;
+                }))
+                .toList();
+        return 1 + awaitPositive(votes, majority - 1, context.responseTimeoutMs());
+    }
+
+    /**
+     * Declares this node leader of a term, unless a later term started or another leader was declared meanwhile.
+     *
+     * @return true if this node became leader
+     */
+    private boolean winTerm(long term) {
+        synchronized (voteLock) {
+            if (leaderId != -1 || state.getTerm() != term || electionState != ElectionState.CANDIDATE) {
+                return false;
+            }
+        }
+        awaitPositive(context.sortedPeers().stream()
+                .map(peer -> peer.sendDeclareExpectAckAsync(context.selfId(), term, context.responseTimeoutMs()))
+                .toList(), context.sortedPeers().size(), context.responseTimeoutMs());
+        synchronized (voteLock) {
+            if (state.getTerm() != term) {
+                return false;   // Stepped down while declaring
+            }
+        }
+        becomeLeader();
+        return true;
+    }
+
+    /**
+     * Moves on to a later term without a vote and gives up a candidacy. Must be called while holding the vote lock.
+     */
+    private void stepDown(long term) {
+        if (state.update(term, -1)) {
+            resetLeader();
+            becomeFollower();
         }
-        return false;
     }
 }
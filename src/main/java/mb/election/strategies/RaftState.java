@@ -0,0 +1,81 @@
+package mb.election.strategies;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * The state of a Raft node that must survive restarts: the current term and the candidate voted for in it, so a node
+ * never votes twice in a term and terms never go backwards. Every update is forced to disk before it takes effect,
+ * written to a temporary file that atomically replaces the previous state, so a crash leaves either state intact.
+ * <p>
+ * Not thread-safe; guarded by the election that owns it.
+ */
+class RaftState {
+    private final Path file;
+    private long term = 0;
+    private int votedFor = -1;
+
+    /**
+     * Loads the state from a file, or starts at term 0 if the file does not exist.
+     *
+     * @param file the file of the state
+     */
+    RaftState(Path file) {
+        this.file = file;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            String[] fields = Files.readString(file, StandardCharsets.UTF_8).strip().split(" ");
+            term = Long.parseLong(fields[0]);
+            votedFor = Integer.parseInt(fields[1]);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException(String.format("Failed to read Raft state from %s: %s", file, e.getMessage()), e);
+        }
+    }
+
+    long getTerm() {
+        return term;
+    }
+
+    int getVotedFor() {
+        return votedFor;
+    }
+
+    /**
+     * Persists a new state.
+     *
+     * @param newTerm     the current term, not lower than the previous one
+     * @param newVotedFor the candidate voted for in the term, -1 if none
+     * @return false if the state could not be written, in which case it remains unchanged
+     */
+    boolean update(long newTerm, int newVotedFor) {
+        if (newTerm == term && newVotedFor == votedFor) {
+            return true;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap((newTerm + " " + newVotedFor).getBytes(StandardCharsets.UTF_8)));
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logErrorMsg(e, "Failed to persist Raft state to %s: %s", file, e.getMessage());
+            return false;
+        }
+        term = newTerm;
+        votedFor = newVotedFor;
+        return true;
+    }
+}
@@ -4,5 +4,6 @@ public enum ExchangeType {
     DEFAULT,
     DIRECT,
     FANOUT,
-    TOPIC
+    TOPIC,
+    CONSISTENT_HASH
 }
@@ -0,0 +1,25 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum FailureDetectorType {
+    FIXED("fixed"),
+    PHI("phi");
+
+    private final String stringValue;
+
+    FailureDetectorType(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static FailureDetectorType fromString(String value) {
+        return Arrays.stream(FailureDetectorType.values())
+                .filter(type -> type.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No failure detector with value " + value));
+    }
+}
@@ -0,0 +1,25 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum FanoutMode {
+    QUEUES("queues"),
+    LOG("log");
+
+    private final String stringValue;
+
+    FanoutMode(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static FanoutMode fromString(String value) {
+        return Arrays.stream(FanoutMode.values())
+                .filter(fanoutMode -> fanoutMode.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No fanout mode with value " + value));
+    }
+}
@@ -0,0 +1,26 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum FsyncPolicy {
+    ALWAYS("always"),
+    INTERVAL("interval"),
+    OS("os");
+
+    private final String stringValue;
+
+    FsyncPolicy(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static FsyncPolicy fromString(String value) {
+        return Arrays.stream(FsyncPolicy.values())
+                .filter(fsyncPolicy -> fsyncPolicy.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No fsync policy with value " + value));
+    }
+}
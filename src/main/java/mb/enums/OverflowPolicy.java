@@ -0,0 +1,26 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum OverflowPolicy {
+    BLOCK("block"),
+    DROP_HEAD("drop-head"),
+    REJECT("reject");
+
+    private final String stringValue;
+
+    OverflowPolicy(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static OverflowPolicy fromString(String value) {
+        return Arrays.stream(OverflowPolicy.values())
+                .filter(overflowPolicy -> overflowPolicy.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No overflow policy with value " + value));
+    }
+}
@@ -0,0 +1,25 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum QueueImplementation {
+    DEQUE("deque"),
+    RING("ring");
+
+    private final String stringValue;
+
+    QueueImplementation(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static QueueImplementation fromString(String value) {
+        return Arrays.stream(QueueImplementation.values())
+                .filter(queueImplementation -> queueImplementation.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No queue implementation with value " + value));
+    }
+}
@@ -0,0 +1,25 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum QueueType {
+    CLASSIC("classic"),
+    STREAM("stream");
+
+    private final String stringValue;
+
+    QueueType(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static QueueType fromString(String value) {
+        return Arrays.stream(QueueType.values())
+                .filter(queueType -> queueType.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No queue type with value " + value));
+    }
+}
@@ -0,0 +1,25 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum ReplicationAck {
+    ASYNC("async"),
+    SYNC("sync");
+
+    private final String stringValue;
+
+    ReplicationAck(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static ReplicationAck fromString(String value) {
+        return Arrays.stream(ReplicationAck.values())
+                .filter(replicationAck -> replicationAck.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No replication acknowledgement with value " + value));
+    }
+}
@@ -0,0 +1,26 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum SlowConsumerPolicy {
+    SPILL("spill"),
+    DROP("drop"),
+    DISCONNECT("disconnect");
+
+    private final String stringValue;
+
+    SlowConsumerPolicy(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static SlowConsumerPolicy fromString(String value) {
+        return Arrays.stream(SlowConsumerPolicy.values())
+                .filter(policy -> policy.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No slow consumer policy with value " + value));
+    }
+}
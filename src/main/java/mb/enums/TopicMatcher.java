@@ -0,0 +1,25 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum TopicMatcher {
+    TRIE("trie"),
+    AUTOMATON("automaton");
+
+    private final String stringValue;
+
+    TopicMatcher(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static TopicMatcher fromString(String value) {
+        return Arrays.stream(TopicMatcher.values())
+                .filter(topicMatcher -> topicMatcher.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No topic matcher with value " + value));
+    }
+}
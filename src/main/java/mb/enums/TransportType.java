@@ -0,0 +1,25 @@
+package mb.enums;
+
+import java.util.Arrays;
+
+public enum TransportType {
+    BLOCKING("blocking"),
+    NIO("nio");
+
+    private final String stringValue;
+
+    TransportType(String value) {
+        this.stringValue = value;
+    }
+
+    public String getStringValue() {
+        return this.stringValue;
+    }
+
+    public static TransportType fromString(String value) {
+        return Arrays.stream(TransportType.values())
+                .filter(transportType -> transportType.getStringValue().equals(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No transport type with value " + value));
+    }
+}
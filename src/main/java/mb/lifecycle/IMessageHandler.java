@@ -0,0 +1,44 @@
+package mb.lifecycle;
+
+import mb.utils.IMessageIO;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Event-driven counterpart of {@link IConnectionHandler}. Instead of owning a socket and blocking on it, the handler
+ * is called back by the transport once per connection and once per received message.
+ *
+ * @param <S> the per-connection session state, closed by the transport when the connection ends
+ */
+public interface IMessageHandler<S extends AutoCloseable> {
+    /**
+     * Called once after a connection has been accepted.
+     *
+     * @param io the output side of the new connection
+     * @return the session state of the connection, passed back on every subsequent message
+     */
+    S onConnect(IMessageIO io);
+
+    /**
+     * Handle a single message received on a connection.
+     *
+     * @param io      the output side of the connection
+     * @param session the session state returned by {@link #onConnect(IMessageIO)}
+     * @param message the received message
+     * @return true if the connection should stay open, false if it should be closed
+     */
+    boolean onMessage(IMessageIO io, S session, String message);
+
+    /**
+     * Handle a single frame received on a connection that switched to binary framing via
+     * {@link IMessageIO#enableBinaryFraming()}.
+     *
+     * @param io      the output side of the connection
+     * @param session the session state returned by {@link #onConnect(IMessageIO)}
+     * @param frame   the frame body without its length prefix, only valid for the duration of the call
+     * @return true if the connection should stay open, false if it should be closed
+     */
+    default boolean onFrame(IMessageIO io, S session, ByteBuffer frame) {
+        return false;
+    }
+}
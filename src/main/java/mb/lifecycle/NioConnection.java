@@ -0,0 +1,206 @@
+package mb.lifecycle;
+
+import mb.utils.IMessageIO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * A non-blocking connection served by a {@link NioEventLoop}. Messages may be sent from any thread; they are buffered
+ * until {@link #flush()} and whatever the socket does not accept immediately is written by the event loop once the
+ * channel becomes writable again. Input is only ever processed on the event loop thread.
+ *
+ * @param <S> the per-connection session state of the served protocol
+ */
+class NioConnection<S extends AutoCloseable> implements IMessageIO {
+    private static final int INITIAL_OUTPUT_BUFFER_SIZE = 512;
+
+    final SocketChannel channel;
+    private final NioEventLoop<S> eventLoop;
+    private SelectionKey key;
+
+    // Only accessed by the event loop thread
+    S session;
+    ByteBuffer pendingInput;
+    boolean binaryFraming = false;
+    boolean inputSuspended = false;
+
+    // Guarded by this
+    private ByteBuffer output;
+    private boolean closeAfterFlush = false;
+    private volatile boolean closed = false;
+
+    NioConnection(SocketChannel channel, NioEventLoop<S> eventLoop) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public synchronized void sendMessage(String message) {
+        if (closed) return;
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ensureOutputCapacity(bytes.length + 1);
+        output.put(bytes).put((byte) '\n');
+    }
+
+    @Override
+    public synchronized void sendFrame(byte[]... parts) {
+        if (closed) return;
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ensureOutputCapacity(Integer.BYTES + length);
+        output.putInt(length);
+        for (byte[] part : parts) {
+            output.put(part);
+        }
+    }
+
+    @Override
+    public boolean enableBinaryFraming() {
+        binaryFraming = true;
+        return true;
+    }
+
+    /**
+     * Stops reading from the channel. Input that was already read is handled once the event loop resumes the
+     * connection.
+     */
+    @Override
+    public Runnable suspendInput() {
+        inputSuspended = true;
+        key.interestOpsAnd(~SelectionKey.OP_READ);
+        return () -> eventLoop.execute(() -> eventLoop.resume(this));
+    }
+
+    /**
+     * Reads from the channel again after {@link #suspendInput()}. Called by the event loop.
+     *
+     * @return false if the connection was closed meanwhile
+     */
+    boolean resumeInput() {
+        inputSuspended = false;
+        if (closed) {
+            return false;
+        }
+        key.interestOpsOr(SelectionKey.OP_READ);
+        return true;
+    }
+
+    @Override
+    public void printError(String errorMsg) {
+        sendMessage("error " + errorMsg);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (closed || output == null || output.position() == 0 || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            return; // Nothing to write, or the event loop is already waiting for the channel to become writable
+        }
+        try {
+            writeOutput();
+        } catch (IOException e) {
+            eventLoop.execute(this::close);
+            return;
+        }
+        if (output != null) {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+            eventLoop.wakeup();
+        }
+    }
+
+    /**
+     * Writes the output that did not fit into the socket on the last flush. Called by the event loop once the channel
+     * is writable.
+     */
+    void writePending() throws IOException {
+        synchronized (this) {
+            if (output != null) {
+                writeOutput();
+            }
+            if (output != null) {
+                return;
+            }
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            if (!closeAfterFlush) {
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Closes the connection as soon as all buffered output has been written. Called by the event loop.
+     */
+    void closeAfterFlush() {
+        synchronized (this) {
+            closeAfterFlush = true;
+        }
+        flush();
+        synchronized (this) {
+            if (output != null) {
+                return; // The event loop closes the connection once the remaining output is written
+            }
+        }
+        close();
+    }
+
+    /**
+     * Closes the channel and the session. Called by the event loop, never while holding this connection's lock, since
+     * closing the session may wait for threads that are currently sending messages.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            output = null;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (session != null) {
+            try {
+                session.close();
+            } catch (Exception e) {
+                logErrorMsg(e, "Failed to close session: %s", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes as much buffered output as the socket accepts and releases the output buffer once it is drained, so idle
+     * connections do not hold on to any output memory.
+     */
+    private void writeOutput() throws IOException {
+        output.flip();
+        channel.write(output);
+        if (output.hasRemaining()) {
+            output.compact();
+        } else {
+            output = null;
+        }
+    }
+
+    private void ensureOutputCapacity(int additional) {
+        if (output == null) {
+            output = ByteBuffer.allocate(Math.max(INITIAL_OUTPUT_BUFFER_SIZE, additional));
+        } else if (output.remaining() < additional) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * output.capacity(), output.position() + additional));
+            output = grown.put(output.flip());
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package mb.lifecycle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static mb.utils.LoggingUtil.logErrorMsg;
+import static mb.utils.LoggingUtil.logWarningMsg;
+
+/**
+ * A single selector thread serving many non-blocking connections. All reads of a loop go through one reusable direct
+ * buffer; only the unterminated tail of a message is copied to a (small) per-connection heap buffer.
+ * <p>
+ * Clients may pipeline messages. Replies are flushed once all messages of a read are handled, or after every
+ * {@code flushBatch} messages, so a client streaming messages is not bound by one round trip per message. A handler
+ * that defers its reply suspends the input of the connection; the remaining messages of the read are handled once
+ * the connection is resumed.
+ *
+ * @param <S> the per-connection session state of the served protocol
+ */
+class NioEventLoop<S extends AutoCloseable> implements Runnable {
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+    private final Selector selector;
+    private final IMessageHandler<S> messageHandler;
+    private final int flushBatch;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private byte[] decodeBuffer = new byte[256];
+    private volatile boolean running = true;
+
+    NioEventLoop(IMessageHandler<S> messageHandler, int flushBatch) throws IOException {
+        this.selector = Selector.open();
+        this.messageHandler = messageHandler;
+        this.flushBatch = Math.max(1, flushBatch);
+    }
+
+    /**
+     * Hands a freshly accepted, non-blocking channel over to this event loop. Thread-safe.
+     *
+     * @param channel the channel to serve
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection<S> connection = new NioConnection<>(channel, this);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+                connection.session = messageHandler.onConnect(connection);
+                connection.flush();
+            } catch (IOException e) {
+                logWarningMsg("Failed to register connection: %s", e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the event loop thread during its next iteration. Thread-safe.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runPendingTasks();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    NioConnection<S> connection = (NioConnection<S>) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.writePending();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logErrorMsg(e, "Event loop terminated unexpectedly: %s", e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void read(NioConnection<S> connection) throws IOException {
+        readBuffer.clear();
+        int read = connection.channel.read(readBuffer);
+        if (read < 0) {
+            connection.close();
+            return;
+        }
+        readBuffer.flip();
+        handleInputAndFlush(connection);
+    }
+
+    /**
+     * Resumes a connection whose input was suspended, handling the messages that were already read. Called on the
+     * event loop thread.
+     */
+    void resume(NioConnection<S> connection) {
+        if (!connection.resumeInput()) {
+            return;
+        }
+        readBuffer.clear().flip();  // Nothing new, only the pending input of the connection
+        handleInputAndFlush(connection);
+    }
+
+    private void handleInputAndFlush(NioConnection<S> connection) {
+        boolean keepOpen;
+        try {
+            keepOpen = handleInput(connection);
+        } catch (RuntimeException e) {
+            logErrorMsg(e, "Runtime exception in handler: " + e.getMessage());
+            keepOpen = false;
+        }
+        if (keepOpen) {
+            connection.flush();
+        } else {
+            connection.closeAfterFlush();
+        }
+    }
+
+    /**
+     * Splits the bytes that were just read into newline-terminated messages, or length-prefixed frames once the
+     * connection switched to binary framing, and passes them to the handler. An incomplete remainder is kept in the
+     * connection's pending input until the next read.
+     *
+     * @return false if the connection should be closed
+     */
+    private boolean handleInput(NioConnection<S> connection) {
+        ByteBuffer input = readBuffer;
+        ByteBuffer pendingInput = connection.pendingInput;
+        if (pendingInput != null) {
+            pendingInput = ensureCapacity(pendingInput, readBuffer.remaining());
+            pendingInput.put(readBuffer).flip();
+            input = pendingInput;
+        }
+
+        int unflushedMessages = 0;
+        while (input.hasRemaining()) {
+            int consumed = connection.binaryFraming
+                    ? handleFrame(connection, input)
+                    : handleMessage(connection, input);
+            if (consumed < 0) {
+                return false;
+            }
+            if (consumed == 0) {
+                break;  // Incomplete message or frame
+            }
+            if (connection.inputSuspended) {
+                break;  // The handler deferred its reply, the remaining input waits until the connection is resumed
+            }
+            if (++unflushedMessages >= flushBatch) {
+                connection.flush();
+                unflushedMessages = 0;
+            }
+        }
+
+        if (!input.hasRemaining()) {
+            connection.pendingInput = null;
+        } else if (!connection.inputSuspended && input.remaining() > MAX_MESSAGE_LENGTH) {
+            if (!connection.binaryFraming) {
+                connection.printError("message too long");
+            }
+            return false;
+        } else if (pendingInput == null) {
+            connection.pendingInput = ByteBuffer.allocate(Math.max(256, 2 * input.remaining())).put(input);
+        } else {
+            connection.pendingInput = pendingInput.compact();
+        }
+        return true;
+    }
+
+    /**
+     * Passes the next newline-terminated message of the input to the handler.
+     *
+     * @return the number of consumed bytes, 0 if the message is incomplete, -1 if the connection should be closed
+     */
+    private int handleMessage(NioConnection<S> connection, ByteBuffer input) {
+        int start = input.position();
+        int end = indexOf(input, (byte) '\n');
+        if (end < 0) {
+            return 0;
+        }
+        String message = decode(input, start, end);
+        input.position(end + 1);
+        return messageHandler.onMessage(connection, connection.session, message) ? end + 1 - start : -1;
+    }
+
+    /**
+     * Passes the next length-prefixed frame of the input to the handler. The handler sees a window of the input
+     * buffer, so frames are never copied.
+     *
+     * @return the number of consumed bytes, 0 if the frame is incomplete, -1 if the connection should be closed
+     */
+    private int handleFrame(NioConnection<S> connection, ByteBuffer input) {
+        int start = input.position();
+        if (input.remaining() < Integer.BYTES) {
+            return 0;
+        }
+        int length = input.getInt(start);
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            return -1;
+        }
+        if (input.remaining() < Integer.BYTES + length) {
+            return 0;
+        }
+        int limit = input.limit();
+        int end = start + Integer.BYTES + length;
+        input.limit(end).position(start + Integer.BYTES);
+        boolean keepOpen = messageHandler.onFrame(connection, connection.session, input);
+        input.limit(limit).position(end);
+        return keepOpen ? end - start : -1;
+    }
+
+    private String decode(ByteBuffer input, int start, int end) {
+        int length = end - start;
+        if (length > 0 && input.get(end - 1) == '\r') {
+            length--;
+        }
+        if (decodeBuffer.length < length) {
+            decodeBuffer = new byte[Math.max(length, 2 * decodeBuffer.length)];
+        }
+        input.get(start, decodeBuffer, 0, length);
+        return new String(decodeBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte b) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int additional) {
+        if (buffer.remaining() >= additional) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + additional));
+        return grown.put(buffer.flip());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void closeAll() {
+        runPendingTasks();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection<?> connection) {
+                    ((NioConnection<S>) connection).close();
+                }
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package mb.lifecycle;
+
+import mb.config.DNSConfig;
+import mb.config.TransportConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static mb.lifecycle.ServerLifecycleManager.registerDomain;
+import static mb.utils.LoggingUtil.logErrorMsg;
+
+/**
+ * Event-loop based alternative to {@link ServerLifecycleManager}. Instead of dedicating a thread and a pair of
+ * buffered streams to every client, connections are accepted on a {@link ServerSocketChannel} and distributed
+ * round-robin over a small, fixed set of {@link NioEventLoop selector loops} that share one direct read buffer each.
+ * Idle connections therefore only cost their channel and a small amount of protocol state.
+ *
+ * @param <S> the per-connection session state of the served protocol
+ */
+public class NioServerLifecycleManager<S extends AutoCloseable> implements IServerLifecycleManager {
+
+    private final ServerSocketChannel clientConnectionChannel;
+    private final NioEventLoop<S>[] eventLoops;
+    private final Thread[] eventLoopThreads;
+    private final DNSConfig dnsConfig;
+    private int nextEventLoop = 0;
+
+    // ==============CONSTRUCTORS==============
+    @SuppressWarnings("unchecked")
+    public NioServerLifecycleManager(TransportConfig transportConfig, IMessageHandler<S> messageHandler, DNSConfig dnsConfig) {
+        try {
+            clientConnectionChannel = ServerSocketChannel.open();
+            clientConnectionChannel.bind(new InetSocketAddress(transportConfig.port()));
+            eventLoops = (NioEventLoop<S>[]) new NioEventLoop<?>[Math.max(1, transportConfig.ioThreads())];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop<>(messageHandler, transportConfig.flushBatch());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Failed to start server on port %d", transportConfig.port()), e);
+        }
+        eventLoopThreads = new Thread[eventLoops.length];
+        this.dnsConfig = dnsConfig;
+    }
+
+    // ==============INTERFACES==============
+    @Override
+    public void run() {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoopThreads[i] = Thread.ofPlatform().name("nio-event-loop-" + i).start(eventLoops[i]);
+        }
+        registerDomain(dnsConfig);
+        acceptClientConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            clientConnectionChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error closing client connection channel", e);
+        }
+
+        for (NioEventLoop<S> eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        for (Thread eventLoopThread : eventLoopThreads) {
+            if (eventLoopThread == null) continue;
+            try {
+                eventLoopThread.join(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Preserve interrupt status
+                return;
+            }
+        }
+    }
+
+    // ==============IMPLEMENTATION==============
+    private void acceptClientConnections() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && clientConnectionChannel.isOpen()) {
+                SocketChannel connection = clientConnectionChannel.accept();
+                connection.configureBlocking(false);
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[nextEventLoop].register(connection);
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            }
+        } catch (ClosedChannelException ignored) {   // Occurs when accept() is interrupted by shutdown()
+        } catch (IOException e) {
+            if (clientConnectionChannel.isOpen()) {
+                logErrorMsg(e, "Error accepting connections: %s", e.getMessage());
+            }
+        }
+    }
+}
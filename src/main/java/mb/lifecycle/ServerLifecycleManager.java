@@ -66,7 +66,7 @@ public class ServerLifecycleManager implements IServerLifecycleManager {
     }
 
     // ==============IMPLEMENTATION==============
-    private void registerDomain(DNSConfig dnsConfig) {
+    static void registerDomain(DNSConfig dnsConfig) {
         if (dnsConfig == null) {
             return;
         }
@@ -23,9 +23,21 @@ public class MonitoringClient {
     }
 
     public void sendMessage(String routingKey) {
-        if (socket.isClosed()) return;
+        sendMessage(routingKey, 1);
+    }
 
-        String message = String.format("%s:%d %s", config.serverHost(), config.serverPort(), routingKey);
+    /**
+     * Reports a number of messages published with the same routing key as a single record.
+     *
+     * @param routingKey the routing key of the messages
+     * @param count      the number of published messages
+     */
+    public void sendMessage(String routingKey, int count) {
+        if (socket.isClosed() || count <= 0) return;
+
+        String message = count == 1
+                ? String.format("%s:%d %s", config.serverHost(), config.serverPort(), routingKey)
+                : String.format("%s:%d %s %d", config.serverHost(), config.serverPort(), routingKey, count);
         byte[] buffer = message.getBytes();
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length, monitorAddress, config.monitorPort());
         try {
@@ -42,15 +42,17 @@ public class MonitoringServer implements IMonitoringServer {
                 socket.receive(packet);
                 String message = new String(packet.getData(), 0, packet.getLength());
                 String[] args = message.split("[ :]");
-                if (invalidArgNum(args, 3) || !isInt(args[1]) || args[1].length() > 5) {
+                if ((invalidArgNum(args, 3) && invalidArgNum(args, 4)) || !isInt(args[1]) || args[1].length() > 5
+                        || (args.length == 4 && (!isInt(args[3]) || Integer.parseInt(args[3]) < 1))) {
                     continue;   // invalid message
                 }
                 Inet4Address ip = (Inet4Address) Inet4Address.getByName(args[0]);
                 int port = Integer.parseInt(args[1]);
                 String routingKey = args[2];
+                int count = args.length == 4 ? Integer.parseInt(args[3]) : 1;   // batch publishes are reported at once
 
-                statistics.recordUsage(ip, port, routingKey);
-                receivedMessages++;
+                statistics.recordUsage(ip, port, routingKey, count);
+                receivedMessages += count;
             } catch (IOException | ClassCastException e) {
                 if (!running) return;
                 logErrorMsg(e, "Failed to receive UDP packet: %s", e.getMessage());
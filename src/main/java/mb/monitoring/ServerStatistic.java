@@ -16,7 +16,11 @@ public class ServerStatistic {
     }
 
     public void incrementRoutingKey(String routingKey) {
-        routingKeyCounts.compute(routingKey, (k, v) -> (v == null) ? 1 : v + 1);
+        incrementRoutingKey(routingKey, 1);
+    }
+
+    public void incrementRoutingKey(String routingKey, long count) {
+        routingKeyCounts.merge(routingKey, count, Long::sum);
     }
 
     @Override
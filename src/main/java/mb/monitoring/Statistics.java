@@ -8,9 +8,13 @@ public class Statistics {
     private final Map<String, ServerStatistic> serverStatistics = new HashMap<>();
 
     public void recordUsage(Inet4Address ip, int port, String routingKey) {
+        recordUsage(ip, port, routingKey, 1);
+    }
+
+    public void recordUsage(Inet4Address ip, int port, String routingKey, int count) {
         String key = ip.getHostAddress() + ":" + port;
         ServerStatistic serverStatistic = serverStatistics.computeIfAbsent(key, k -> new ServerStatistic(ip, port));
-        serverStatistic.incrementRoutingKey(routingKey);
+        serverStatistic.incrementRoutingKey(routingKey, count);
     }
 
     @Override
@@ -1,10 +1,27 @@
 package mb.utils;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 public class ClientFactory {
     public static Client createClient(String host, int port) throws IOException {
         return new Client(new Socket(host, port));
     }
+
+    /**
+     * Connects to a host, failing if the connection is not established within a timeout.
+     *
+     * @param connectTimeoutMs the time to wait for the connection (in milliseconds)
+     */
+    public static Client createClient(String host, int port, int connectTimeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            return new Client(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
 }
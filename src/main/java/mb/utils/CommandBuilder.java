@@ -9,6 +9,8 @@ public class CommandBuilder {   // Copied from test case util (credits to Ho Li
     public static final String PONG = "pong";
     public static final String DECLARE = "declare";
     public static final String ELECT = "elect";
+    public static final String PREVOTE = "prevote";
+    public static final String REPLICATE = "replicate";
     public final static String SUBSCRIBE = "subscribe";
 
     public static String exchangeCmd(String type, String name) {
@@ -43,10 +45,22 @@ public class CommandBuilder {   // Copied from test case util (credits to Ho Li
         return "elect %d".formatted(id);
     }
 
+    public static String electCmd(int id, long term) {
+        return "elect %d %d".formatted(id, term);
+    }
+
+    public static String preVoteCmd(int id, long term) {
+        return "prevote %d %d".formatted(id, term);
+    }
+
     public static String declareCmd(int id) {
         return "declare %d".formatted(id);
     }
 
+    public static String declareCmd(int id, long term) {
+        return "declare %d %d".formatted(id, term);
+    }
+
     public static String ackCmd(int id) {
         return "%s %d".formatted(ACK, id);
     }
@@ -54,4 +68,8 @@ public class CommandBuilder {   // Copied from test case util (credits to Ho Li
     public static String voteCmd(int senderId, int candidateId) {
         return "vote %d %d".formatted(senderId, candidateId);
     }
+
+    public static String voteCmd(int senderId, int candidateId, long term) {
+        return "vote %d %d %d".formatted(senderId, candidateId, term);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package mb.utils;
+
+/**
+ * Output side of a line-based protocol connection, independent of the underlying transport.
+ */
+public interface IMessageIO {
+
+    /**
+     * Sends a message to the peer.
+     *
+     * @param message the message to send
+     */
+    void sendMessage(String message);
+
+    /**
+     * Sends an error message to the peer.
+     *
+     * @param errorMsg the error description
+     */
+    void printError(String errorMsg);
+
+    /**
+     * Sends a usage error to the peer.
+     *
+     * @param usage the expected usage of the command
+     */
+    default void printUsage(String usage) {
+        printError("usage: " + usage);
+    }
+
+    /**
+     * Sends a message that the peer did not request, e.g. a message delivered to a subscriber. Transports that
+     * distinguish replies from deliveries override this; by default it is sent like any other message.
+     *
+     * @param message the message to deliver
+     */
+    default void deliver(String message) {
+        sendMessage(message);
+    }
+
+    /**
+     * Sends a reply that another client addressed to the direct reply-to address of the peer. May be called from any
+     * thread. By default, it is sent as {@code reply <correlation-id> <message>}.
+     *
+     * @param correlationId the id that relates the reply to a request of the peer
+     * @param message       the reply
+     */
+    default void deliverReply(String correlationId, String message) {
+        deliver("reply " + correlationId + " " + message);
+    }
+
+    /**
+     * Flushes all buffered messages to the peer.
+     */
+    void flush();
+
+    /**
+     * Defers the reply to the message being handled, e.g. until a change is replicated: no further message of the
+     * connection is handled until the returned callback runs, so replies stay in the order of the requests, while a
+     * transport that serves many connections on one thread goes on serving the others. The reply may be sent from any
+     * thread before the callback runs; the callback flushes it. May only be called while handling a message.
+     *
+     * @return the callback that resumes handling the messages of the connection, which may run on any thread
+     * @throws UnsupportedOperationException if the transport does not support deferred replies
+     */
+    default Runnable suspendInput() {
+        throw new UnsupportedOperationException("Deferred replies are not supported by this transport");
+    }
+
+    /**
+     * Switches the input of this connection from newline-terminated messages to frames prefixed by their length
+     * (a big-endian int32). Messages that are already being processed are not affected.
+     *
+     * @return true if the transport switched to binary framing, false if it does not support binary framing.
+     */
+    default boolean enableBinaryFraming() {
+        return false;
+    }
+
+    /**
+     * Sends a frame prefixed by its total length (a big-endian int32). The parts are written back to back.
+     *
+     * @param parts the parts making up the frame body
+     * @throws UnsupportedOperationException if the transport does not support binary framing
+     */
+    default void sendFrame(byte[]... parts) {
+        throw new UnsupportedOperationException("Binary framing is not supported by this transport");
+    }
+}
@@ -1,30 +1,82 @@
 package mb.utils;
 
 import java.io.*;
+import java.util.concurrent.CountDownLatch;
 
-public class IOUtils implements AutoCloseable {
+public class IOUtils implements IMessageIO, AutoCloseable {
     private final BufferedReader in;
     private final PrintWriter out;
+    private volatile CountDownLatch suspended = null;   // counted down once the input is resumed
 
     public IOUtils(InputStream in, OutputStream out) {
+        this(in, out, true);
+    }
+
+    /**
+     * @param autoFlush whether every message is flushed immediately. If false, messages are only written to the peer
+     *                  on {@link #flush()} or once the output buffer is full.
+     */
+    public IOUtils(InputStream in, OutputStream out, boolean autoFlush) {
         this.in = new BufferedReader(new InputStreamReader(in));
-        this.out = new PrintWriter(new OutputStreamWriter(out), true);
+        this.out = new PrintWriter(new OutputStreamWriter(out), autoFlush);
     }
 
+    @Override
     public void sendMessage(String message) {
         out.println(message);
     }
 
+    /**
+     * Reads the next message, once the input is no longer {@link #suspendInput() suspended}.
+     *
+     * @return the message, or null if the peer closed the connection
+     */
     public String readMessage() throws IOException {
+        CountDownLatch latch = suspended;
+        if (latch != null) {
+            try {
+                latch.await();
+                suspended = null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while the input was suspended");
+            }
+        }
         return in.readLine();
     }
 
+    /**
+     * Checks whether input is available that can be read without blocking, i.e. whether the peer already sent more
+     * (pipelined) messages.
+     *
+     * @return true if the next read does not block
+     */
+    public boolean hasBufferedInput() throws IOException {
+        return in.ready();
+    }
+
+    @Override
     public void printError(String errorMsg) {
         out.println("error " + errorMsg);
     }
 
-    public void printUsage(String usage) {
-        printError("usage: " + usage);
+    @Override
+    public void flush() {
+        out.flush();
+    }
+
+    /**
+     * Suspends the input by making the next {@link #readMessage()} wait, since a connection has a reading thread of
+     * its own.
+     */
+    @Override
+    public Runnable suspendInput() {
+        CountDownLatch latch = new CountDownLatch(1);
+        suspended = latch;
+        return () -> {
+            flush();
+            latch.countDown();
+        };
     }
 
     @Override
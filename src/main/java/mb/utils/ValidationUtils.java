@@ -25,4 +25,13 @@ public class ValidationUtils {
             return false;
         }
     }
+
+    public static boolean isLong(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }